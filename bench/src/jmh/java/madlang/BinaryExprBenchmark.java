@@ -0,0 +1,47 @@
+package madlang;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// One binary operator over two global variables, through visitBinaryExpr (the
+// result boxed) and through the unboxed evalInt/evalBool path the statements use.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class BinaryExprBenchmark {
+
+    private static final String GLOBALS = "a : int = 7; b : int = 3; p : bool = true; q : bool = false;";
+
+    @Param({"PLUS", "MINUS", "MULTIPLY", "DIVIDE", "MODULO", "AND", "OR",
+            "EQUAL", "NOT_EQUAL", "LESS", "LESS_EQUAL", "GREATER", "GREATER_EQUAL"})
+    Operator operator;
+
+    private Interpreter interp;
+    private Expr.Binary expr;
+
+    @Setup
+    public void setup() {
+        boolean logical = operator == Operator.AND || operator == Operator.OR;
+        expr = new Expr.Binary(new Expr.Variable(logical ? "p" : "a"), operator,
+                new Expr.Variable(logical ? "q" : "b"));
+        interp = Fixture.plain();
+        Fixture.enterMain(interp, GLOBALS, expr);
+    }
+
+    @Benchmark
+    public Object boxed() {
+        return interp.visitBinaryExpr(expr);
+    }
+
+    @Benchmark
+    public int unboxedInt() {
+        return expr.type == VarType.INT ? expr.evalInt(interp, null) : expr.evalBool(interp, null) ? 1 : 0;
+    }
+}
@@ -0,0 +1,52 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// visitCallExpr on a function whose body only returns, so the score is the
+// call itself: callee lookup through the call-site cache, argument evaluation,
+// frame set-up and the return. Three arities cover call0/call1/call2 and the
+// array-based call(Object[]).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CallBenchmark {
+
+    private static final String FUNCTIONS = String.join("\n",
+            "fun int zero() { return 0; }",
+            "fun int one(int a) { return a; }",
+            "fun int two(int a, int b) { return b; }",
+            "fun int three(int a, int b, int c) { return c; }");
+
+    @Param({"0", "1", "2", "3"})
+    int arity;
+
+    private Interpreter interp;
+    private Expr.Call call;
+
+    @Setup
+    public void setup() {
+        String name = new String[] {"zero", "one", "two", "three"}[arity];
+        List<Expr> arguments = new ArrayList<>();
+        for (int i = 0; i < arity; i++) {
+            arguments.add(new Expr.Literal(i + 1));
+        }
+        call = new Expr.Call(name, arguments);
+        interp = Fixture.plain();
+        Fixture.enterMain(interp, FUNCTIONS, call);
+    }
+
+    @Benchmark
+    public Object call() {
+        return interp.visitCallExpr(call);
+    }
+}
@@ -0,0 +1,72 @@
+package madlang;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Variable lookup and assignment for a variable declared `depth` frames up,
+// by name (unresolved, walks every frame) and by the resolver's address.
+// Every frame holds a few other names so a by-name lookup scans like a real one.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EnvironmentBenchmark {
+
+    private static final int LOCALS = 4;
+
+    @Param({"0", "1", "4", "16"})
+    int depth;
+
+    private Environment env;
+    private int slot;
+    private Object value;
+
+    @Setup
+    public void setup() {
+        Environment outer = new Environment(null, LOCALS);
+        for (int i = 0; i < LOCALS - 1; i++) {
+            outer.defineInt(i, "other" + i, i);
+        }
+        slot = LOCALS - 1;
+        outer.defineInt(slot, "x", 1);
+        env = outer;
+        for (int d = 0; d < depth; d++) {
+            env = new Environment(env, LOCALS);
+            for (int i = 0; i < LOCALS; i++) {
+                env.defineInt(i, "local" + i, i);
+            }
+        }
+        value = 42;
+    }
+
+    @Benchmark
+    public Object get() {
+        return env.get("x");
+    }
+
+    @Benchmark
+    public Object getAt() {
+        return env.getAt(depth, slot, "x");
+    }
+
+    @Benchmark
+    public void assign() {
+        env.assign("x", value);
+    }
+
+    @Benchmark
+    public void assignAt() {
+        env.assignAt(depth, slot, "x", value);
+    }
+
+    @Benchmark
+    public void assignIntAt() {
+        env.assignIntAt(depth, slot, "x", 42);
+    }
+}
@@ -0,0 +1,55 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Shared setup for the microbenchmarks: an Interpreter that has run a program
+// and is left inside a fresh frame of main, so expressions resolved as part of
+// main's body can be evaluated straight through its visitor.
+final class Fixture {
+
+    private Fixture() {}
+
+    // An Interpreter that evaluates plainly: no passes beyond the required
+    // ones, no memo and no Jit, so a benchmark measures the tree walk itself
+    static Interpreter plain() {
+        Interpreter interp = new Interpreter();
+        interp.inlineBudget = 0;
+        interp.optimizeLoops = false;
+        interp.reuseExprs = false;
+        interp.shareExprs = false;
+        interp.memoCapacity = 0;
+        interp.jitThreshold = 0;
+        interp.sink = new Discard();
+        return interp;
+    }
+
+    // Runs `declarations` with a main whose body evaluates each probe once,
+    // then enters a new frame of main. The probes stay resolved for that frame,
+    // so the caller can evaluate them again through the visitor.
+    static void enterMain(Interpreter interp, String declarations, Expr... probes) {
+        List<Stmt> program = new ArrayList<>(Parser.parse(declarations));
+        List<Stmt> body = new ArrayList<>();
+        for (Expr probe : probes) {
+            body.add(new Stmt.Expression(probe));
+        }
+        body.add(new Stmt.Return(new Expr.Literal(0)));
+        program.add(new Stmt.Function("main", VarType.INT, List.of(), body));
+        interp.run(program);
+        interp.currentEnv = new Environment(interp.globalEnv);
+    }
+
+    // Drops the program's output, keeping a checksum so it is not dead
+    static final class Discard implements OutputSink {
+        int sum;
+
+        @Override
+        public void write(int value) {
+            sum += value;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package madlang;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Whole programs through Interpreter.run, passes included, on every engine.
+// `optimized` false turns off the optional passes, the memo and the Jit to
+// show what the tree walk alone costs. The passes rewrite the tree, so every
+// invocation parses the program afresh, outside the measurement.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ProgramBenchmark {
+
+    static final String FACTORIAL = String.join("\n",
+            "fun int factorial(int n) {",
+            "  if (n <= 1) { return 1; }",
+            "  return n * factorial(n - 1);",
+            "}",
+            "fun int main() {",
+            "  i : int = 0;",
+            "  while (i < 1000) { output(factorial(12)); i = i + 1; }",
+            "  return 0;",
+            "}");
+
+    static final String FIB = String.join("\n",
+            "fun int fib(int n) {",
+            "  if (n < 2) { return n; }",
+            "  return fib(n - 1) + fib(n - 2);",
+            "}",
+            "fun int main() { output(fib(20)); return 0; }");
+
+    static final String COUNTDOWN = String.join("\n",
+            "fun int main() {",
+            "  total : int = 0;",
+            "  n : int = 1000;",
+            "  while (n > 0) {",
+            "    m : int = 100;",
+            "    while (m > 0) { total = total + m % 7; m = m - 1; }",
+            "    n = n - 1;",
+            "  }",
+            "  output(total);",
+            "  return 0;",
+            "}");
+
+    static final String NESTED_BLOCKS = String.join("\n",
+            "x : int = 0;",
+            "fun int main() {",
+            "  i : int = 0;",
+            "  while (i < 10000) {",
+            "    { a : int = i;",
+            "      { b : int = a + 1;",
+            "        { c : int = b * 2;",
+            "          { x = x + c - a; } } } }",
+            "    i = i + 1;",
+            "  }",
+            "  output(x);",
+            "  return 0;",
+            "}");
+
+    public enum Program {
+        FACTORIAL(ProgramBenchmark.FACTORIAL),
+        FIB(ProgramBenchmark.FIB),
+        COUNTDOWN(ProgramBenchmark.COUNTDOWN),
+        NESTED_BLOCKS(ProgramBenchmark.NESTED_BLOCKS);
+
+        final String source;
+
+        Program(String source) {
+            this.source = source;
+        }
+    }
+
+    @Param
+    Program program;
+
+    // An Interpreter.Engine; the enum is package-private, JMH's generated code is not
+    @Param({"TREE", "CLOSURE", "BYTECODE"})
+    String engine;
+
+    @Param({"true", "false"})
+    boolean optimized;
+
+    private Interpreter interp;
+    private Fixture.Discard output;
+    private List<Stmt> stmts;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        interp = optimized ? new Interpreter() : Fixture.plain();
+        output = new Fixture.Discard();
+        interp.sink = output;
+        interp.engine = Interpreter.Engine.valueOf(engine);
+        stmts = Parser.parse(program.source);
+    }
+
+    @Benchmark
+    public int run() {
+        interp.run(stmts);
+        return output.sum;
+    }
+}
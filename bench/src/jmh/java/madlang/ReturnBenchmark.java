@@ -0,0 +1,65 @@
+package madlang;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// The cost of leaving a function from `depth` nested ifs and whiles. A return
+// travels out as a completion value through every executeBlock on the way;
+// raiseError leaves the same spot by throwing a MadlangError instead, the cost
+// an exception-based return would have.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ReturnBenchmark {
+
+    @Param({"0", "1", "4", "16"})
+    int depth;
+
+    private Interpreter interp;
+    private Expr.Call returning;
+    private Expr.Call raising;
+
+    @Setup
+    public void setup() {
+        returning = new Expr.Call("returning", List.of(new Expr.Literal(1)));
+        raising = new Expr.Call("raising", List.of(new Expr.Literal(1)));
+        interp = Fixture.plain();
+        // raising divides by d, which only becomes 0 once main has run
+        Fixture.enterMain(interp, "d : int = 1;\n" + nested("returning", "n") + nested("raising", "n / d"),
+                returning, raising);
+        interp.globalEnv.assign("d", 0);
+    }
+
+    // fun int name(int n) { if (n > 0) { while (n > 0) { ... return value; ... } } return 0; }
+    private String nested(String name, String value) {
+        StringBuilder source = new StringBuilder("fun int ").append(name).append("(int n) {\n");
+        for (int i = 0; i < depth; i++) {
+            source.append(i % 2 == 0 ? "if (n > 0) {\n" : "while (n > 0) {\n");
+        }
+        source.append("return ").append(value).append(";\n");
+        source.append("}\n".repeat(depth));
+        return source.append("return 0;\n}\n").toString();
+    }
+
+    @Benchmark
+    public Object returnValue() {
+        return interp.visitCallExpr(returning);
+    }
+
+    @Benchmark
+    public Object raiseError() {
+        try {
+            return interp.visitCallExpr(raising);
+        } catch (MadlangError e) {
+            return e;
+        }
+    }
+}
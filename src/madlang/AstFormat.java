@@ -0,0 +1,434 @@
+package madlang;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary form of a parsed program (a .madc file), so a program run over and
+// over is loaded instead of parsed:
+//
+//   "MADL" version:u16
+//   names:varint (length:varint bytes)*        string table, ISO-8859-1
+//   statements:varint node*                    the top-level statements
+//
+// A node is a tag byte, its line (as a change from the last node's) and column
+// as varints, then its fields in declaration order: names as string-table
+// indexes, lists as a count and their nodes, a missing initializer or else
+// branch as the NONE tag, ints as zigzag varints. The Resolver's and optimizers' fields are not stored, they are
+// filled in again when the program runs. Loading is one linear pass over a
+// memory-mapped file.
+class AstFormat {
+
+    static final String EXTENSION = ".madc";
+    static final int MAGIC = 0x4D41444C; // "MADL"
+    // Bump whenever the layout below changes; older files then fail to load
+    static final int VERSION = 1;
+
+    private static final byte NONE = 0;
+    private static final byte BLOCK = 1;
+    private static final byte EXPRESSION = 2;
+    private static final byte FUNCTION = 3;
+    private static final byte IF = 4;
+    private static final byte RETURN = 5;
+    private static final byte VAR = 6;
+    private static final byte ASSIGN = 7;
+    private static final byte WHILE = 8;
+    private static final byte BINARY = 9;
+    private static final byte INT = 10;
+    private static final byte TRUE = 11;
+    private static final byte FALSE = 12;
+    private static final byte UNARY = 13;
+    private static final byte VARIABLE = 14;
+    private static final byte CALL = 15;
+
+    private static final Operator[] OPERATORS = Operator.values();
+    private static final VarType[] TYPES = VarType.values();
+
+    static void write(List<Stmt> program, Path file) throws IOException {
+        Files.write(file, encode(program));
+    }
+
+    // Maps the file and decodes it; a file that is not a program of this
+    // VERSION is an error
+    static List<Stmt> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // ---- Writing ----
+
+    static byte[] encode(List<Stmt> program) {
+        Encoder body = new Encoder();
+        body.statements(program);
+
+        Encoder out = new Encoder();
+        out.u32(MAGIC);
+        out.u16(VERSION);
+        out.varint(body.names.size());
+        for (String name : body.names) {
+            byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+            out.varint(bytes.length);
+            out.bytes(bytes, bytes.length);
+        }
+        out.bytes(body.bytes, body.length);
+        return Arrays.copyOf(out.bytes, out.length);
+    }
+
+    private static final class Encoder {
+        byte[] bytes = new byte[1024];
+        int length;
+        int line;   // of the last node written
+        final List<String> names = new ArrayList<>();
+        final Map<String, Integer> indexes = new HashMap<>();
+
+        void statements(List<Stmt> stmts) {
+            varint(stmts.size());
+            for (Stmt stmt : stmts) {
+                stmt(stmt);
+            }
+        }
+
+        void stmt(Stmt stmt) {
+            if (stmt == null) {
+                u8(NONE);
+            } else if (stmt instanceof Stmt.Block) {
+                header(BLOCK, stmt.line, stmt.column);
+                statements(((Stmt.Block) stmt).statements);
+            } else if (stmt instanceof Stmt.Expression) {
+                header(EXPRESSION, stmt.line, stmt.column);
+                expr(((Stmt.Expression) stmt).expression);
+            } else if (stmt instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) stmt;
+                header(FUNCTION, stmt.line, stmt.column);
+                name(function.name);
+                u8(function.returnType.ordinal());
+                varint(function.params.size());
+                for (Stmt.Parameter param : function.params) {
+                    name(param.name());
+                    u8(param.type().ordinal());
+                }
+                statements(function.body);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                header(IF, stmt.line, stmt.column);
+                expr(ifStmt.condition);
+                stmt(ifStmt.thenBranch);
+                stmt(ifStmt.elseBranch);
+            } else if (stmt instanceof Stmt.Return) {
+                header(RETURN, stmt.line, stmt.column);
+                expr(((Stmt.Return) stmt).value);
+            } else if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var) stmt;
+                header(VAR, stmt.line, stmt.column);
+                name(var.name);
+                u8(var.type.ordinal());
+                expr(var.initializer);
+            } else if (stmt instanceof Stmt.Assign) {
+                header(ASSIGN, stmt.line, stmt.column);
+                name(((Stmt.Assign) stmt).name);
+                expr(((Stmt.Assign) stmt).value);
+            } else {
+                Stmt.While loop = (Stmt.While) stmt;
+                header(WHILE, stmt.line, stmt.column);
+                expr(loop.condition);
+                stmt(loop.body);
+            }
+        }
+
+        void expr(Expr expr) {
+            if (expr == null) {
+                u8(NONE);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                header(BINARY, expr.line, expr.column);
+                expr(binary.left);
+                u8(binary.operator.ordinal());
+                expr(binary.right);
+            } else if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (value instanceof Integer) {
+                    header(INT, expr.line, expr.column);
+                    varint(zigzag((Integer) value));
+                } else {
+                    header(Boolean.TRUE.equals(value) ? TRUE : FALSE, expr.line, expr.column);
+                }
+            } else if (expr instanceof Expr.Unary) {
+                header(UNARY, expr.line, expr.column);
+                u8(((Expr.Unary) expr).operator.ordinal());
+                expr(((Expr.Unary) expr).right);
+            } else if (expr instanceof Expr.Variable) {
+                header(VARIABLE, expr.line, expr.column);
+                name(((Expr.Variable) expr).name);
+            } else {
+                Expr.Call call = (Expr.Call) expr;
+                header(CALL, expr.line, expr.column);
+                name(call.name);
+                varint(call.arguments.size());
+                for (Expr arg : call.arguments) {
+                    expr(arg);
+                }
+            }
+        }
+
+        void header(byte tag, int line, int column) {
+            u8(tag);
+            varint(zigzag(line - this.line));
+            varint(column);
+            this.line = line;
+        }
+
+        void name(String name) {
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                indexes.put(name, index);
+            }
+            varint(index);
+        }
+
+        void u8(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void u16(int value) {
+            u8(value >>> 8);
+            u8(value);
+        }
+
+        void u32(int value) {
+            u16(value >>> 16);
+            u16(value);
+        }
+
+        // Seven bits a byte, low bits first, high bit set on all but the last
+        void varint(int value) {
+            while ((value & ~0x7f) != 0) {
+                u8((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            u8(value);
+        }
+
+        void bytes(byte[] from, int count) {
+            while (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            System.arraycopy(from, 0, bytes, length, count);
+            length += count;
+        }
+    }
+
+    // Small magnitudes of either sign in few varint bytes
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    // ---- Reading ----
+
+    static List<Stmt> decode(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC || (buffer.getShort() & 0xffff) != VERSION) {
+                throw malformed();
+            }
+            Decoder decoder = new Decoder(buffer);
+            List<Stmt> program = decoder.statements();
+            if (buffer.hasRemaining()) {
+                throw malformed();
+            }
+            return program;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw malformed();
+        }
+    }
+
+    private static MadlangError malformed() {
+        return new MadlangError("Error: malformed program file");
+    }
+
+    private static final class Decoder {
+        final ByteBuffer buffer;
+        final String[] names;
+        final ExprPool literals = new ExprPool();
+        int line;   // of the last node read
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+            names = new String[count()];
+            byte[] bytes = new byte[64];
+            for (int i = 0; i < names.length; i++) {
+                int length = varint();
+                if (length > bytes.length) {
+                    bytes = new byte[length];
+                }
+                buffer.get(bytes, 0, length);
+                // Interned, so the built-ins' names are the Interpreter's instances
+                names[i] = new String(bytes, 0, length, StandardCharsets.ISO_8859_1).intern();
+            }
+        }
+
+        List<Stmt> statements() {
+            int count = count();
+            List<Stmt> stmts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                stmts.add(stmt());
+            }
+            return stmts;
+        }
+
+        Stmt stmt() {
+            byte tag = buffer.get();
+            if (tag == NONE) {
+                return null;
+            }
+            int line = this.line += unzigzag(varint());
+            int column = varint();
+            Stmt stmt;
+            switch (tag) {
+                case BLOCK:
+                    stmt = new Stmt.Block(statements());
+                    break;
+                case EXPRESSION:
+                    stmt = new Stmt.Expression(expr());
+                    break;
+                case FUNCTION: {
+                    String name = name();
+                    VarType returnType = TYPES[buffer.get()];
+                    int count = count();
+                    List<Stmt.Parameter> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        params.add(new Stmt.Parameter(name(), TYPES[buffer.get()]));
+                    }
+                    stmt = new Stmt.Function(name, returnType, params, statements());
+                    break;
+                }
+                case IF: {
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt();
+                    stmt = new Stmt.If(condition, thenBranch, stmt());
+                    break;
+                }
+                case RETURN:
+                    stmt = new Stmt.Return(expr());
+                    break;
+                case VAR: {
+                    String name = name();
+                    stmt = new Stmt.Var(name, TYPES[buffer.get()], expr());
+                    break;
+                }
+                case ASSIGN: {
+                    String name = name();
+                    stmt = new Stmt.Assign(name, expr());
+                    break;
+                }
+                case WHILE: {
+                    Expr condition = expr();
+                    stmt = new Stmt.While(condition, stmt());
+                    break;
+                }
+                default:
+                    throw malformed();
+            }
+            stmt.line = line;
+            stmt.column = column;
+            return stmt;
+        }
+
+        Expr expr() {
+            byte tag = buffer.get();
+            if (tag == NONE) {
+                return null;
+            }
+            int line = this.line += unzigzag(varint());
+            int column = varint();
+            Expr expr;
+            switch (tag) {
+                case BINARY: {
+                    Expr left = expr();
+                    Operator operator = OPERATORS[buffer.get()];
+                    expr = new Expr.Binary(left, operator, expr());
+                    break;
+                }
+                case INT: {
+                    int value = unzigzag(varint());
+                    Expr.Literal shared = literals.common(value);
+                    if (shared != null) {
+                        return shared;  // shared literals keep no position
+                    }
+                    expr = new Expr.Literal(value);
+                    break;
+                }
+                case TRUE:
+                case FALSE:
+                    return literals.common(tag == TRUE);
+                case UNARY: {
+                    Operator operator = OPERATORS[buffer.get()];
+                    expr = new Expr.Unary(operator, expr());
+                    break;
+                }
+                case VARIABLE:
+                    expr = new Expr.Variable(name());
+                    break;
+                case CALL: {
+                    String name = name();
+                    int count = count();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    expr = new Expr.Call(name, arguments);
+                    break;
+                }
+                default:
+                    throw malformed();
+            }
+            expr.line = line;
+            expr.column = column;
+            return expr;
+        }
+
+        String name() {
+            return names[varint()];
+        }
+
+        // A list length; every entry takes at least a byte, so a corrupt count
+        // cannot make us allocate more than the file holds
+        int count() {
+            int count = varint();
+            if (count < 0 || count > buffer.remaining()) {
+                throw malformed();
+            }
+            return count;
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw malformed();
+        }
+    }
+}
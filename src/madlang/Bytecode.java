@@ -0,0 +1,89 @@
+package madlang;
+
+// Instruction set and compiled function format for the bytecode VM.
+// Code is a flat int[]: an opcode followed by its inline operands.
+final class Bytecode {
+
+    private Bytecode() {}
+
+    // Constants                                  operands
+    static final int CONST_INT = 0;            // value
+    static final int CONST_BOOL = 1;           // 0 or 1
+    static final int CONST = 2;                // constant index
+    static final int POP = 3;
+
+    // Locals kept in the VM's value stack (functions without nested functions)
+    static final int LOAD_LOCAL = 4;           // offset, fallback index, name index
+    static final int STORE_LOCAL = 5;          // offset, fallback index, name index
+    static final int DECLARE_LOCAL = 6;        // offset
+    static final int CLEAR_LOCALS = 7;         // offset, count
+
+    // Variables kept in Environment frames (globals, captured scopes)
+    static final int LOAD_ENV = 8;             // depth, slot, name index
+    static final int STORE_ENV = 9;            // depth, slot, name index
+    static final int DEFINE_ENV = 10;          // slot, name index
+    static final int LOAD_NAME = 11;           // name index
+    static final int STORE_NAME = 12;          // name index
+    static final int PUSH_ENV = 13;            // frame size
+    static final int POP_ENV = 14;
+    static final int FUNCTION = 15;            // constant index (Proto), slot, name index
+
+    // Operators
+    static final int ADD = 16;
+    static final int SUBTRACT = 17;
+    static final int MULTIPLY = 18;
+    static final int DIVIDE = 19;
+    static final int MODULO = 20;
+    static final int LESS = 21;
+    static final int LESS_EQUAL = 22;
+    static final int GREATER = 23;
+    static final int GREATER_EQUAL = 24;
+    static final int EQUAL = 25;
+    static final int NOT_EQUAL = 26;
+    static final int NEGATE = 27;
+    static final int NOT = 28;
+    static final int REQUIRE_BOOL = 29;
+    static final int MISMATCH = 30;
+
+    // Control flow
+    static final int JUMP = 31;                // target
+    static final int JUMP_IF_FALSE = 32;       // target
+    static final int JUMP_IF_TRUE = 33;        // target
+    static final int CHECK_CALLABLE = 34;
+    static final int CALL = 35;                // argument count
+    static final int RETURN = 36;
+    static final int UNEXPECTED_RETURN = 37;
+    // Call in tail position: a madlang callee replaces the current frame. Always
+    // followed by RETURN, which returns the result of any other callee.
+    static final int TAIL_CALL = 38;           // argument count
+
+    // A compiled function body (or the top-level script)
+    static final class Proto {
+        final String name;
+        final int[] code;
+        final Object[] constants;
+        final String[] names;
+        // Other stack offsets to try, in order, when a local has not been declared yet
+        final int[][] fallbacks;
+        final String[] params;
+        final int[] paramSlots;
+        // Locals on the value stack when true, otherwise in a fresh Environment
+        final boolean stackFrame;
+        final int frameSize;
+        final int maxStack;
+
+        Proto(String name, int[] code, Object[] constants, String[] names, int[][] fallbacks,
+              String[] params, int[] paramSlots, boolean stackFrame, int frameSize, int maxStack) {
+            this.name = name;
+            this.code = code;
+            this.constants = constants;
+            this.names = names;
+            this.fallbacks = fallbacks;
+            this.params = params;
+            this.paramSlots = paramSlots;
+            this.stackFrame = stackFrame;
+            this.frameSize = frameSize;
+            this.maxStack = maxStack;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static madlang.Bytecode.*;
+
+// Compiles a resolved program to Bytecode.Protos for the VM.
+// Functions that define no nested functions can never have their frames captured,
+// so their locals (including those of inner blocks, flattened) live in slots of the
+// VM's value stack. Everything else (top-level code and functions with nested
+// functions) keeps Environment frames, exactly as the Interpreter does.
+class BytecodeCompiler {
+
+    // One compile-time scope per Environment the Interpreter would create
+    private static final class Scope {
+        final Map<String, Integer> layout;
+        final int base; // offset in the value stack frame, or -1 for an Environment
+
+        Scope(Map<String, Integer> layout, int base) {
+            this.layout = layout;
+            this.base = base;
+        }
+    }
+
+    // State of the function currently being compiled
+    private static final class FunctionState {
+        final String name;
+        final boolean stackFrame;
+        final int firstScope;
+        int[] code = new int[64];
+        int length;
+        final List<Object> constants = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final Map<String, Integer> nameIndex = new HashMap<>();
+        final List<int[]> fallbacks = new ArrayList<>();
+        int localsSize;
+        int stack;
+        int maxStack;
+
+        FunctionState(String name, boolean stackFrame, int firstScope) {
+            this.name = name;
+            this.stackFrame = stackFrame;
+            this.firstScope = firstScope;
+        }
+    }
+
+    private final List<Scope> scopes = new ArrayList<>();
+    private FunctionState current;
+
+    // Program must already have been through the Resolver
+    Proto compile(List<Stmt> stmts) {
+        scopes.add(new Scope(null, -1));
+        current = new FunctionState("<script>", false, 0);
+        for (Stmt stmt : stmts) {
+            statement(stmt);
+        }
+        emit(CONST, constant(null));
+        emit(RETURN);
+        return finish(new String[0], new int[0], 0);
+    }
+
+    private Proto finish(String[] params, int[] paramSlots, int frameSize) {
+        FunctionState fn = current;
+        return new Proto(fn.name, Arrays.copyOf(fn.code, fn.length), fn.constants.toArray(),
+                fn.names.toArray(new String[0]), fn.fallbacks.toArray(new int[0][]),
+                params, paramSlots, fn.stackFrame, fn.stackFrame ? fn.localsSize : frameSize,
+                fn.maxStack);
+    }
+
+    // ---- Emitting ----
+
+    private void emit(int... words) {
+        FunctionState fn = current;
+        if (fn.length + words.length > fn.code.length) {
+            fn.code = Arrays.copyOf(fn.code, Math.max(fn.code.length * 2, fn.length + words.length));
+        }
+        System.arraycopy(words, 0, fn.code, fn.length, words.length);
+        fn.length += words.length;
+        stack(effect(words));
+    }
+
+    // Net change in operand stack depth
+    private static int effect(int[] words) {
+        switch (words[0]) {
+          case CONST_INT: case CONST_BOOL: case CONST:
+          case LOAD_LOCAL: case LOAD_ENV: case LOAD_NAME:
+            return 1;
+          case POP: case STORE_LOCAL: case DECLARE_LOCAL: case STORE_ENV: case DEFINE_ENV:
+          case STORE_NAME: case JUMP_IF_FALSE: case JUMP_IF_TRUE: case RETURN: case UNEXPECTED_RETURN:
+          case ADD: case SUBTRACT: case MULTIPLY: case DIVIDE: case MODULO:
+          case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL: case EQUAL: case NOT_EQUAL:
+            return -1;
+          case CALL: case TAIL_CALL:
+            return -words[1];
+          default:
+            return 0;
+        }
+    }
+
+    private void stack(int delta) {
+        current.stack += delta;
+        current.maxStack = Math.max(current.maxStack, current.stack);
+    }
+
+    // Emit a jump with a placeholder target, returns where to patch it
+    private int jump(int op) {
+        emit(op, -1);
+        return current.length - 1;
+    }
+
+    private void patch(int at) {
+        current.code[at] = current.length;
+    }
+
+    private int constant(Object value) {
+        current.constants.add(value);
+        return current.constants.size() - 1;
+    }
+
+    private int name(String name) {
+        return current.nameIndex.computeIfAbsent(name, n -> {
+            current.names.add(n);
+            return current.names.size() - 1;
+        });
+    }
+
+    // ---- Scopes ----
+
+    private int stackTop() {
+        Scope top = scopes.get(scopes.size() - 1);
+        return top.base + top.layout.size();
+    }
+
+    private void beginBlock(Stmt.Block block) {
+        if (current.stackFrame) {
+            int base = stackTop();
+            scopes.add(new Scope(Resolver.layout(block.statements), base));
+            current.localsSize = Math.max(current.localsSize, base + block.frameSize);
+            emit(CLEAR_LOCALS, base, block.frameSize);
+        } else {
+            scopes.add(new Scope(null, -1));
+            emit(PUSH_ENV, block.frameSize);
+        }
+    }
+
+    private void endBlock() {
+        scopes.remove(scopes.size() - 1);
+        if (!current.stackFrame) {
+            emit(POP_ENV);
+        }
+    }
+
+    // Where a resolved (depth, slot) lives from the current point of the code
+    private void load(String name, int depth, int slot) {
+        access(LOAD_LOCAL, LOAD_ENV, LOAD_NAME, name, depth, slot);
+    }
+
+    private void store(String name, int depth, int slot) {
+        access(STORE_LOCAL, STORE_ENV, STORE_NAME, name, depth, slot);
+    }
+
+    private void access(int localOp, int envOp, int nameOp, String name, int depth, int slot) {
+        if (slot < 0) {
+            emit(nameOp, name(name));
+            return;
+        }
+
+        int target = scopes.size() - 1 - depth;
+        if (current.stackFrame && target >= current.firstScope) {
+            // Enclosing stack scopes of this function that also declare the name,
+            // innermost first; after those the lookup continues in the closure
+            List<Integer> others = new ArrayList<>();
+            for (int i = target - 1; i >= current.firstScope; i--) {
+                Scope scope = scopes.get(i);
+                Integer other = scope.layout.get(name);
+                if (other != null) {
+                    others.add(scope.base + other);
+                }
+            }
+            current.fallbacks.add(others.stream().mapToInt(Integer::intValue).toArray());
+            emit(localOp, scopes.get(target).base + slot, current.fallbacks.size() - 1, name(name));
+            return;
+        }
+
+        // Stack scopes do not exist as Environments, skip over them
+        int envDepth = current.stackFrame ? depth - (scopes.size() - current.firstScope) : depth;
+        emit(envOp, envDepth, slot, name(name));
+    }
+
+    private static boolean definesFunctions(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (definesFunctions(stmt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean definesFunctions(Stmt stmt) {
+        if (stmt instanceof Stmt.Function) {
+            return true;
+        }
+        if (stmt instanceof Stmt.Block) {
+            return definesFunctions(((Stmt.Block) stmt).statements);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return definesFunctions(ifStmt.thenBranch)
+                || (ifStmt.elseBranch != null && definesFunctions(ifStmt.elseBranch));
+        }
+        if (stmt instanceof Stmt.While) {
+            return definesFunctions(((Stmt.While) stmt).body);
+        }
+        return false;
+    }
+
+    // ---- Statements ----
+
+    private void statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block) stmt;
+            beginBlock(block);
+            for (Stmt s : block.statements) {
+                statement(s);
+            }
+            endBlock();
+        } else if (stmt instanceof Stmt.Expression) {
+            expression(((Stmt.Expression) stmt).expression);
+            emit(POP);
+        } else if (stmt instanceof Stmt.Function) {
+            function((Stmt.Function) stmt);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            expression(ifStmt.condition);
+            int toElse = jump(JUMP_IF_FALSE);
+            statement(ifStmt.thenBranch);
+            if (ifStmt.elseBranch != null) {
+                int toEnd = jump(JUMP);
+                patch(toElse);
+                statement(ifStmt.elseBranch);
+                patch(toEnd);
+            } else {
+                patch(toElse);
+            }
+        } else if (stmt instanceof Stmt.Return) {
+            Expr value = ((Stmt.Return) stmt).value;
+            if (current.firstScope == 0) {
+                expression(value);
+                emit(UNEXPECTED_RETURN);
+            } else if (value instanceof Expr.Call) {
+                call((Expr.Call) value, TAIL_CALL);
+                emit(RETURN);
+            } else {
+                expression(value);
+                emit(RETURN);
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.initializer != null) {
+                expression(var.initializer);
+            } else {
+                emit(CONST, constant(null));
+            }
+            Scope scope = scopes.get(scopes.size() - 1);
+            if (scope.base >= 0) {
+                emit(DECLARE_LOCAL, scope.base + var.slot);
+            } else {
+                emit(DEFINE_ENV, var.slot, name(var.name));
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            expression(assign.value);
+            store(assign.name, assign.depth, assign.slot);
+        } else {
+            Stmt.While loop = (Stmt.While) stmt;
+            int start = current.length;
+            expression(loop.condition);
+            int toEnd = jump(JUMP_IF_FALSE);
+            statement(loop.body);
+            emit(JUMP, start);
+            patch(toEnd);
+        }
+    }
+
+    private void function(Stmt.Function stmt) {
+        FunctionState enclosing = current;
+        boolean stackFrame = !definesFunctions(stmt.body);
+
+        scopes.add(new Scope(Resolver.layout(stmt.params, stmt.body), stackFrame ? 0 : -1));
+        current = new FunctionState(stmt.name, stackFrame, scopes.size() - 1);
+        current.localsSize = stackFrame ? stmt.frameSize : 0;
+        for (Stmt s : stmt.body) {
+            statement(s);
+        }
+        // Falling off the end returns nothing
+        emit(CONST, constant(null));
+        emit(RETURN);
+        Proto proto = finish(stmt.params.stream().map(Stmt.Parameter::name).toArray(String[]::new),
+                stmt.paramSlots, stmt.frameSize);
+        scopes.remove(scopes.size() - 1);
+        current = enclosing;
+
+        emit(FUNCTION, constant(proto), stmt.slot, name(stmt.name));
+    }
+
+    // ---- Expressions ----
+
+    private void expression(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Integer) {
+                emit(CONST_INT, (Integer) value);
+            } else if (value instanceof Boolean) {
+                emit(CONST_BOOL, (Boolean) value ? 1 : 0);
+            } else {
+                emit(CONST, constant(value));
+            }
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            load(variable.name, variable.depth, variable.slot);
+        } else if (expr instanceof Expr.Call) {
+            call((Expr.Call) expr, CALL);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            expression(unary.right);
+            switch (unary.operator) {
+              case MINUS:
+                emit(NEGATE);
+                break;
+              case NOT:
+                emit(NOT);
+                break;
+              default:
+                emit(MISMATCH);
+            }
+        } else {
+            binary((Expr.Binary) expr);
+        }
+    }
+
+    // The callee is looked up before the arguments are evaluated
+    private void call(Expr.Call call, int op) {
+        load(call.name, call.depth, call.slot);
+        emit(CHECK_CALLABLE);
+        for (Expr arg : call.arguments) {
+            expression(arg);
+        }
+        emit(op, call.arguments.size());
+    }
+
+    private void binary(Expr.Binary expr) {
+        expression(expr.left);
+
+        // lhs of && and || is checked before rhs is evaluated
+        if (expr.operator == Operator.AND || expr.operator == Operator.OR) {
+            int shortCircuit = jump(expr.operator == Operator.AND ? JUMP_IF_FALSE : JUMP_IF_TRUE);
+            expression(expr.right);
+            emit(REQUIRE_BOOL);
+            int toEnd = jump(JUMP);
+            patch(shortCircuit);
+            stack(-1); // only one of the two paths pushes
+            emit(CONST_BOOL, expr.operator == Operator.AND ? 0 : 1);
+            patch(toEnd);
+            return;
+        }
+
+        expression(expr.right);
+        switch (expr.operator) {
+          case PLUS:
+            emit(ADD);
+            break;
+          case MINUS:
+            emit(SUBTRACT);
+            break;
+          case MULTIPLY:
+            emit(MULTIPLY);
+            break;
+          case DIVIDE:
+            emit(DIVIDE);
+            break;
+          case MODULO:
+            emit(MODULO);
+            break;
+          case EQUAL:
+            emit(EQUAL);
+            break;
+          case NOT_EQUAL:
+            emit(NOT_EQUAL);
+            break;
+          case LESS:
+            emit(LESS);
+            break;
+          case LESS_EQUAL:
+            emit(LESS_EQUAL);
+            break;
+          case GREATER:
+            emit(GREATER);
+            break;
+          case GREATER_EQUAL:
+            emit(GREATER_EQUAL);
+            break;
+          default:
+            emit(MISMATCH);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package madlang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal class file writer for the Jit: a constant pool, methods with a Code
+// attribute, and nothing else. Classes are written as version 49, which the JVM
+// verifies by type inference, so no StackMapTable frames have to be computed.
+final class ClassFile {
+
+    // Opcodes used by the Jit
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int INEG = 0x74;
+    static final int IXOR = 0x82;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // ---- Constant pool ----
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, Entry entry) {
+        Integer index = entries.get(key);
+        if (index == null) {
+            try {
+                entry.write(poolOut);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            index = poolCount++;
+            entries.put(key, index);
+        }
+        return index;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return constant("C" + name, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return constant("S" + value, out -> {
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int typeIndex = nameAndType(name, descriptor);
+        return constant(tag + owner + "." + name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    // ---- Methods ----
+
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(access, utf8(name), utf8(descriptor),
+                argumentSlots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1));
+        methods.add(code);
+        return code;
+    }
+
+    // Every type the Jit uses takes one slot (no long or double)
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            while (descriptor.charAt(i) == '[') {
+                i++;
+            }
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            i++;
+            slots++;
+        }
+        return slots;
+    }
+
+    // Jump target inside one method
+    static final class Label {
+        int position = -1;
+        int stack = -1;
+        private final List<int[]> uses = new ArrayList<>(); // {opcode position, operand position}
+    }
+
+    // Bytecode of one method. Tracks the operand stack depth to size max_stack.
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stack;
+        private int maxStack;
+        private int maxLocals;
+        private boolean reachable = true;
+
+        private Code(int access, int name, int descriptor, int locals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = locals;
+        }
+
+        private void u1(int value) {
+            bytes.write(value);
+        }
+
+        private void u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        // An instruction without operands and its effect on the stack
+        void op(int opcode, int delta) {
+            u1(opcode);
+            adjust(delta);
+            if (opcode == ATHROW || opcode == IRETURN || opcode == ARETURN || opcode == RETURN) {
+                reachable = false;
+            }
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                u1(LDC_W);
+                u2(integer(value));
+            }
+            adjust(1);
+        }
+
+        void ldc(String value) {
+            u1(LDC_W);
+            u2(string(value));
+            adjust(1);
+        }
+
+        void local(int opcode, int index) {
+            if (index > 255) {
+                throw new IllegalStateException("too many locals");
+            }
+            u1(opcode);
+            u1(index);
+            adjust(opcode == ILOAD || opcode == ALOAD ? 1 : -1);
+            maxLocals = Math.max(maxLocals, index + 1);
+        }
+
+        // CHECKCAST, INSTANCEOF or ANEWARRAY
+        void type(int opcode, String className) {
+            u1(opcode);
+            u2(classRef(className));
+        }
+
+        // GETSTATIC or GETFIELD of a reference or int
+        void field(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(member(9, owner, name, descriptor));
+            adjust(opcode == GETSTATIC ? 1 : 0);
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int args = argumentSlots(descriptor);
+            boolean returns = !descriptor.endsWith(")V");
+            u1(opcode);
+            u2(member(opcode == INVOKEINTERFACE ? 11 : 10, owner, name, descriptor));
+            if (opcode == INVOKEINTERFACE) {
+                u1(args + 1);
+                u1(0);
+            }
+            adjust(-args - (opcode == INVOKESTATIC ? 0 : 1) + (returns ? 1 : 0));
+        }
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void jump(int opcode, Label target) {
+            int at = bytes.size();
+            u1(opcode);
+            u2(0);
+            target.uses.add(new int[] {at, at + 1});
+            if (opcode == GOTO) {
+                reachable = false;
+            } else {
+                adjust(opcode == IFEQ || opcode == IFNE ? -1 : -2);
+            }
+            if (target.stack < 0) {
+                target.stack = stack;
+            }
+        }
+
+        void mark(Label label) {
+            label.position = bytes.size();
+            if (!reachable) {
+                stack = Math.max(label.stack, 0);
+                reachable = true;
+            } else if (label.stack < 0) {
+                label.stack = stack;
+            }
+        }
+
+        private byte[] resolve() {
+            byte[] code = bytes.toByteArray();
+            for (Label label : labels) {
+                for (int[] use : label.uses) {
+                    int offset = label.position - use[0];
+                    if (label.position < 0 || offset != (short) offset) {
+                        throw new IllegalStateException("bad jump");
+                    }
+                    code[use[1]] = (byte) (offset >> 8);
+                    code[use[1] + 1] = (byte) offset;
+                }
+            }
+            return code;
+        }
+
+        private void write(DataOutputStream out, int codeAttribute) throws IOException {
+            byte[] code = resolve();
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+
+    byte[] toBytes() {
+        int codeAttribute = utf8("Code");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                method.write(out, codeAttribute);
+            }
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,1006 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Alternative execution engine. A resolved program is compiled once into a tree of
+// executable nodes, one class per operator, with operands, slots and control flow
+// bound at compile time. Running it skips the Expr/Stmt visitor dispatch and the
+// per-evaluation operator switch. Nodes run on the same Environment frames and
+// built-ins as the Interpreter and raise the same errors in the same order.
+class ClosureCompiler {
+
+    // Completion value of a statement that did not return
+    static final Object NORMAL = new Object();
+
+    // A compiled program: top-level statements plus the call to main
+    static class Program {
+        final List<Exec> statements;
+
+        Program(List<Exec> statements) {
+            this.statements = statements;
+        }
+
+        void run(Environment global) {
+            for (Exec stmt : statements) {
+                if (stmt.exec(global) != NORMAL) {
+                    throw new MadlangError("Error: unexpected return");
+                }
+            }
+            Object mainProgram = global.get("main");
+
+            if (!(mainProgram instanceof Interpreter.MadlangCallable)) {
+                throw new MadlangError("Error: unbound reference");
+            }
+
+            ((Interpreter.MadlangCallable) mainProgram).call0();
+        }
+    }
+
+    // Program must already have been through the Resolver
+    Program compile(List<Stmt> stmts) {
+        return new Program(compileAll(stmts));
+    }
+
+    private List<Exec> compileAll(List<Stmt> stmts) {
+        List<Exec> compiled = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            compiled.add(compile(stmt));
+        }
+        return compiled;
+    }
+
+    private static Exec[] toArray(List<Exec> stmts) {
+        return stmts.toArray(new Exec[0]);
+    }
+
+    private static MadlangError typeMismatch() {
+        return new MadlangError("Error: type mismatch");
+    }
+
+    private static MadlangError arithmeticError() {
+        return new MadlangError("Error: arithmetic error");
+    }
+
+    // ---- Statements ----
+
+    Exec compile(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block) stmt;
+            return new Block(toArray(compileAll(block.statements)), block.frameSize);
+        }
+        if (stmt instanceof Stmt.Expression) {
+            return new ExpressionStmt(compile(((Stmt.Expression) stmt).expression));
+        }
+        if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            return new FunctionDef(function.slot, function.name, new FunctionCode(function,
+                    toArray(compileAll(function.body))));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return new If(compile(ifStmt.condition), compile(ifStmt.thenBranch),
+                    ifStmt.elseBranch != null ? compile(ifStmt.elseBranch) : null);
+        }
+        if (stmt instanceof Stmt.Return) {
+            return new Return(compile(((Stmt.Return) stmt).value));
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.initializer == null) {
+                return new VarDecl(var.slot, var.name, null);
+            }
+            Node initializer = compile(var.initializer);
+            if (var.initializer.type == VarType.INT) {
+                return new IntVarDecl(var.slot, var.name, initializer);
+            }
+            if (var.initializer.type == VarType.BOOL) {
+                return new BoolVarDecl(var.slot, var.name, initializer);
+            }
+            return new VarDecl(var.slot, var.name, initializer);
+        }
+        if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            Node value = compile(assign.value);
+            if (assign.slot < 0) {
+                return new NamedAssign(assign.name, value);
+            }
+            if (assign.value.type == VarType.INT) {
+                return new IntAssign(assign.depth, assign.slot, assign.name, value);
+            }
+            if (assign.value.type == VarType.BOOL) {
+                return new BoolAssign(assign.depth, assign.slot, assign.name, value);
+            }
+            return new Assign(assign.depth, assign.slot, assign.name, value);
+        }
+        Stmt.While loop = (Stmt.While) stmt;
+        return new While(compile(loop.condition), compile(loop.body));
+    }
+
+    abstract static class Exec {
+        // Returns NORMAL, or the value of a return statement
+        abstract Object exec(Environment env);
+    }
+
+    static final class Block extends Exec {
+        final Exec[] body;
+        final int frameSize;
+
+        Block(Exec[] body, int frameSize) {
+            this.body = body;
+            this.frameSize = frameSize;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            Environment local = new Environment(env, frameSize);
+            for (Exec stmt : body) {
+                Object result = stmt.exec(local);
+                if (result != NORMAL) {
+                    return result;
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    static final class ExpressionStmt extends Exec {
+        final Node expression;
+
+        ExpressionStmt(Node expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            expression.eval(env);
+            return NORMAL;
+        }
+    }
+
+    // Compiled body of a Stmt.Function, shared by every closure over it
+    static final class FunctionCode {
+        final String[] params;
+        final int[] paramSlots;
+        final int frameSize;
+        final Exec[] body;
+
+        FunctionCode(Stmt.Function function, Exec[] body) {
+            this.params = function.paramNames;
+            this.paramSlots = function.paramSlots;
+            this.frameSize = function.frameSize;
+            this.body = body;
+        }
+    }
+
+    static final class CompiledFunction implements Interpreter.MadlangCallable {
+        final FunctionCode code;
+        final Environment closure;
+
+        CompiledFunction(FunctionCode code, Environment closure) {
+            this.code = code;
+            this.closure = closure;
+        }
+
+        @Override
+        public Object call(Object[] args) {
+            Environment local = frame(args.length);
+            for (int i = 0; i < args.length; i++) {
+                local.define(code.paramSlots[i], code.params[i], args[i]);
+            }
+            return run(local);
+        }
+
+        @Override
+        public Object call0() {
+            return run(frame(0));
+        }
+
+        @Override
+        public Object call1(Object a) {
+            Environment local = frame(1);
+            local.define(code.paramSlots[0], code.params[0], a);
+            return run(local);
+        }
+
+        @Override
+        public Object call2(Object a, Object b) {
+            Environment local = frame(2);
+            local.define(code.paramSlots[0], code.params[0], a);
+            local.define(code.paramSlots[1], code.params[1], b);
+            return run(local);
+        }
+
+        private Environment frame(int argc) {
+            if (argc != code.params.length) {
+                throw typeMismatch();
+            }
+            return new Environment(closure, code.frameSize);
+        }
+
+        private Object run(Environment local) {
+            for (Exec stmt : code.body) {
+                Object result = stmt.exec(local);
+                if (result != NORMAL) {
+                    return result;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class FunctionDef extends Exec {
+        final int slot;
+        final String name;
+        final FunctionCode code;
+
+        FunctionDef(int slot, String name, FunctionCode code) {
+            this.slot = slot;
+            this.name = name;
+            this.code = code;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.define(slot, name, new CompiledFunction(code, env));
+            return NORMAL;
+        }
+    }
+
+    static final class If extends Exec {
+        final Node condition;
+        final Exec thenBranch;
+        final Exec elseBranch;
+
+        If(Node condition, Exec thenBranch, Exec elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            if (condition.evalBool(env, null)) {
+                return thenBranch.exec(env);
+            } else if (elseBranch != null) {
+                return elseBranch.exec(env);
+            }
+            return NORMAL;
+        }
+    }
+
+    static final class Return extends Exec {
+        final Node value;
+
+        Return(Node value) {
+            this.value = value;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            return value.eval(env);
+        }
+    }
+
+    static final class VarDecl extends Exec {
+        final int slot;
+        final String name;
+        final Node initializer;
+
+        VarDecl(int slot, String name, Node initializer) {
+            this.slot = slot;
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.define(slot, name, initializer != null ? initializer.eval(env) : null);
+            return NORMAL;
+        }
+    }
+
+    static final class IntVarDecl extends Exec {
+        final int slot;
+        final String name;
+        final Node initializer;
+
+        IntVarDecl(int slot, String name, Node initializer) {
+            this.slot = slot;
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.defineInt(slot, name, initializer.evalInt(env, null));
+            return NORMAL;
+        }
+    }
+
+    static final class BoolVarDecl extends Exec {
+        final int slot;
+        final String name;
+        final Node initializer;
+
+        BoolVarDecl(int slot, String name, Node initializer) {
+            this.slot = slot;
+            this.name = name;
+            this.initializer = initializer;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.defineBool(slot, name, initializer.evalBool(env, null));
+            return NORMAL;
+        }
+    }
+
+    static final class Assign extends Exec {
+        final int depth;
+        final int slot;
+        final String name;
+        final Node value;
+
+        Assign(int depth, int slot, String name, Node value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.assignAt(depth, slot, name, value.eval(env));
+            return NORMAL;
+        }
+    }
+
+    static final class IntAssign extends Exec {
+        final int depth;
+        final int slot;
+        final String name;
+        final Node value;
+
+        IntAssign(int depth, int slot, String name, Node value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.assignIntAt(depth, slot, name, value.evalInt(env, null));
+            return NORMAL;
+        }
+    }
+
+    static final class BoolAssign extends Exec {
+        final int depth;
+        final int slot;
+        final String name;
+        final Node value;
+
+        BoolAssign(int depth, int slot, String name, Node value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.assignBoolAt(depth, slot, name, value.evalBool(env, null));
+            return NORMAL;
+        }
+    }
+
+    // Assignment to a name the Resolver could not find
+    static final class NamedAssign extends Exec {
+        final String name;
+        final Node value;
+
+        NamedAssign(String name, Node value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            env.assign(name, value.eval(env));
+            return NORMAL;
+        }
+    }
+
+    static final class While extends Exec {
+        final Node condition;
+        final Exec body;
+
+        While(Node condition, Exec body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Object exec(Environment env) {
+            while (condition.evalBool(env, null)) {
+                Object result = body.exec(env);
+                if (result != NORMAL) {
+                    return result;
+                }
+            }
+            return NORMAL;
+        }
+    }
+
+    // ---- Expressions ----
+
+    Node compile(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Integer) {
+                return new IntConst((Integer) value);
+            }
+            if (value instanceof Boolean) {
+                return new BoolConst((Boolean) value);
+            }
+            return new Const(value);
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.slot < 0) {
+                return new NamedVariable(variable.name);
+            }
+            return new Variable(variable.depth, variable.slot, variable.name);
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            Node[] args = new Node[call.arguments.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = compile(call.arguments.get(i));
+            }
+            return new Call(call.depth, call.slot, call.name, args);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            Node right = compile(unary.right);
+            switch (unary.operator) {
+              case MINUS:
+                return new Negate(right);
+              case NOT:
+                return new Not(right);
+              default:
+                return new Invalid(null, right);
+            }
+        }
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        Node left = compile(binary.left);
+        Node right = compile(binary.right);
+        switch (binary.operator) {
+          case PLUS:
+            return new Add(left, right);
+          case MINUS:
+            return new Subtract(left, right);
+          case MULTIPLY:
+            return new Multiply(left, right);
+          case DIVIDE:
+            return new Divide(left, right);
+          case MODULO:
+            return new Modulo(left, right);
+          case AND:
+            return new And(left, right);
+          case OR:
+            return new Or(left, right);
+          case EQUAL:
+            return equality(binary, left, right, false);
+          case NOT_EQUAL:
+            return equality(binary, left, right, true);
+          case LESS:
+            return new Less(left, right);
+          case LESS_EQUAL:
+            return new LessEqual(left, right);
+          case GREATER:
+            return new Greater(left, right);
+          case GREATER_EQUAL:
+            return new GreaterEqual(left, right);
+          default:
+            return new Invalid(left, right);
+        }
+    }
+
+    // Pick the int or bool comparison when one side's type is known statically
+    private static Node equality(Expr.Binary binary, Node left, Node right, boolean negate) {
+        VarType type = binary.left.type != null ? binary.left.type : binary.right.type;
+        if (type == VarType.INT) {
+            return new IntEqual(left, right, negate);
+        }
+        if (type == VarType.BOOL) {
+            return new BoolEqual(left, right, negate);
+        }
+        return new Equal(left, right, negate);
+    }
+
+    // Every node can be evaluated boxed or unboxed. As in the Interpreter, when an
+    // operand has the wrong type the pending right operand is evaluated before the
+    // type mismatch is raised.
+    abstract static class Node {
+        abstract Object eval(Environment env);
+
+        int evalInt(Environment env, Node pending) {
+            Object value = eval(env);
+            if (value instanceof Integer) {
+                return (Integer) value;
+            }
+            throw mismatch(env, pending);
+        }
+
+        boolean evalBool(Environment env, Node pending) {
+            Object value = eval(env);
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            throw mismatch(env, pending);
+        }
+
+        static MadlangError mismatch(Environment env, Node pending) {
+            if (pending != null) {
+                pending.eval(env);
+            }
+            return typeMismatch();
+        }
+    }
+
+    // Nodes that always produce an int (or fail on their own)
+    abstract static class IntNode extends Node {
+        @Override
+        Object eval(Environment env) {
+            return evalInt(env, null);
+        }
+
+        @Override
+        abstract int evalInt(Environment env, Node pending);
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            evalInt(env, null);
+            throw mismatch(env, pending);
+        }
+    }
+
+    // Nodes that always produce a bool (or fail on their own)
+    abstract static class BoolNode extends Node {
+        @Override
+        Object eval(Environment env) {
+            return evalBool(env, null);
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            evalBool(env, null);
+            throw mismatch(env, pending);
+        }
+
+        @Override
+        abstract boolean evalBool(Environment env, Node pending);
+    }
+
+    static final class IntConst extends IntNode {
+        final int value;
+
+        IntConst(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            return value;
+        }
+    }
+
+    static final class BoolConst extends BoolNode {
+        final boolean value;
+
+        BoolConst(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            return value;
+        }
+    }
+
+    static final class Const extends Node {
+        final Object value;
+
+        Const(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object eval(Environment env) {
+            return value;
+        }
+    }
+
+    static final class Variable extends Node {
+        final int depth;
+        final int slot;
+        final String name;
+
+        Variable(int depth, int slot, String name) {
+            this.depth = depth;
+            this.slot = slot;
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Environment env) {
+            return env.getAt(depth, slot, name);
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            Environment frame = env.ancestor(depth);
+            if (frame.holdsInt(slot)) {
+                return frame.intAt(slot);
+            }
+            return super.evalInt(env, pending);
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            Environment frame = env.ancestor(depth);
+            if (frame.holdsBool(slot)) {
+                return frame.boolAt(slot);
+            }
+            return super.evalBool(env, pending);
+        }
+    }
+
+    // Reference to a name the Resolver could not find
+    static final class NamedVariable extends Node {
+        final String name;
+
+        NamedVariable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        Object eval(Environment env) {
+            return env.get(name);
+        }
+    }
+
+    static final class Call extends Node {
+        final int depth;
+        final int slot;
+        final String name;
+        final Node[] args;
+
+        Call(int depth, int slot, String name, Node[] args) {
+            this.depth = depth;
+            this.slot = slot;
+            this.name = name;
+            this.args = args;
+        }
+
+        @Override
+        Object eval(Environment env) {
+            Object callee = slot >= 0 ? env.getAt(depth, slot, name) : env.get(name);
+
+            if (!(callee instanceof Interpreter.MadlangCallable)) {
+                throw new MadlangError("Error: unbound reference");
+            }
+
+            Interpreter.MadlangCallable function = (Interpreter.MadlangCallable) callee;
+            switch (args.length) {
+              case 0:
+                return function.call0();
+              case 1:
+                return function.call1(args[0].eval(env));
+              case 2: {
+                Object first = args[0].eval(env);
+                return function.call2(first, args[1].eval(env));
+              }
+              default: {
+                Object[] arguments = new Object[args.length];
+                for (int i = 0; i < args.length; i++) {
+                    arguments[i] = args[i].eval(env);
+                }
+                return function.call(arguments);
+              }
+            }
+        }
+    }
+
+    static final class Negate extends IntNode {
+        final Node right;
+
+        Negate(Node right) {
+            this.right = right;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            return -right.evalInt(env, null);
+        }
+    }
+
+    static final class Not extends BoolNode {
+        final Node right;
+
+        Not(Node right) {
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            return !right.evalBool(env, null);
+        }
+    }
+
+    // Operator that is not valid in its position: evaluate the operands, then fail
+    static final class Invalid extends Node {
+        final Node left;
+        final Node right;
+
+        Invalid(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object eval(Environment env) {
+            if (left != null) {
+                left.eval(env);
+            }
+            right.eval(env);
+            throw typeMismatch();
+        }
+    }
+
+    static final class Add extends IntNode {
+        final Node left;
+        final Node right;
+
+        Add(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs + right.evalInt(env, null);
+        }
+    }
+
+    static final class Subtract extends IntNode {
+        final Node left;
+        final Node right;
+
+        Subtract(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs - right.evalInt(env, null);
+        }
+    }
+
+    static final class Multiply extends IntNode {
+        final Node left;
+        final Node right;
+
+        Multiply(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs * right.evalInt(env, null);
+        }
+    }
+
+    static final class Divide extends IntNode {
+        final Node left;
+        final Node right;
+
+        Divide(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            int rhs = right.evalInt(env, null);
+            if (rhs == 0) {
+                throw arithmeticError();
+            }
+            return lhs / rhs;
+        }
+    }
+
+    static final class Modulo extends IntNode {
+        final Node left;
+        final Node right;
+
+        Modulo(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        int evalInt(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            int rhs = right.evalInt(env, null);
+            if (rhs == 0) {
+                throw arithmeticError();
+            }
+            return lhs % rhs;
+        }
+    }
+
+    static final class And extends BoolNode {
+        final Node left;
+        final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            return left.evalBool(env, null) && right.evalBool(env, null);
+        }
+    }
+
+    static final class Or extends BoolNode {
+        final Node left;
+        final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            return left.evalBool(env, null) || right.evalBool(env, null);
+        }
+    }
+
+    static final class Less extends BoolNode {
+        final Node left;
+        final Node right;
+
+        Less(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs < right.evalInt(env, null);
+        }
+    }
+
+    static final class LessEqual extends BoolNode {
+        final Node left;
+        final Node right;
+
+        LessEqual(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs <= right.evalInt(env, null);
+        }
+    }
+
+    static final class Greater extends BoolNode {
+        final Node left;
+        final Node right;
+
+        Greater(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs > right.evalInt(env, null);
+        }
+    }
+
+    static final class GreaterEqual extends BoolNode {
+        final Node left;
+        final Node right;
+
+        GreaterEqual(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return lhs >= right.evalInt(env, null);
+        }
+    }
+
+    static final class IntEqual extends BoolNode {
+        final Node left;
+        final Node right;
+        final boolean negate;
+
+        IntEqual(Node left, Node right, boolean negate) {
+            this.left = left;
+            this.right = right;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            int lhs = left.evalInt(env, right);
+            return (lhs == right.evalInt(env, null)) != negate;
+        }
+    }
+
+    static final class BoolEqual extends BoolNode {
+        final Node left;
+        final Node right;
+        final boolean negate;
+
+        BoolEqual(Node left, Node right, boolean negate) {
+            this.left = left;
+            this.right = right;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            boolean lhs = left.evalBool(env, right);
+            return (lhs == right.evalBool(env, null)) != negate;
+        }
+    }
+
+    // == / != when neither operand's type is known until run time
+    static final class Equal extends BoolNode {
+        final Node left;
+        final Node right;
+        final boolean negate;
+
+        Equal(Node left, Node right, boolean negate) {
+            this.left = left;
+            this.right = right;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean evalBool(Environment env, Node pending) {
+            Object lhs = left.eval(env);
+            Object rhs = right.eval(env);
+            if (!(lhs instanceof Integer && rhs instanceof Integer) &&
+            !(lhs instanceof Boolean && rhs instanceof Boolean)) {
+                throw typeMismatch();
+            }
+            return lhs.equals(rhs) != negate;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Optimizer pass, run after the LoopOptimizer: local value numbering over each
+// statement list (a function body or a block) of functions without nested
+// functions. An operator expression computed more than once in a list with the
+// same operands, say (a * b + c) * (a * b + c) or the x % 3 == 0 of an if and
+// its else if, is computed once into a fresh local ($cse0, $cse1, ...) declared
+// just before the statement it first appears in, and read from there.
+//
+// Only what the LoopOptimizer would hoist is numbered: typed ints and bools,
+// literals, locals certain to be declared, no calls, no division except by a
+// non-zero literal. Such an expression cannot raise an error, so computing it
+// at the start of its statement rather than where it stood changes nothing,
+// and division by a possibly-zero divisor stays where it is. A local's value
+// number changes whenever it is assigned or declared, in the list or anywhere
+// inside its nested statements, so an assignment ends the run of equal values.
+// Calls need not: with no nested functions, a callee cannot assign the
+// function's locals, and a read of anything else (a global, which a callee may
+// assign) is never numbered; local() enforces that. While conditions
+// are left alone, loop bodies are lists of their own. The program is resolved
+// again afterwards since the new locals take slots.
+class CommonSubexpressionEliminator {
+
+    // A value number: a local's address and how often it changed, a literal's
+    // value, or an operator and its operands' numbers
+    private record Local(long address, int version) {}
+    private record Constant(Object value) {}
+    private record Unary(Operator operator, Object right) {}
+    private record Binary(Object left, Operator operator, Object right) {}
+
+    // A repeated expression: where it first appears and the local it goes into
+    private static final class Temp {
+        final Expr first;
+        final int order;
+        final int statement;
+        Stmt.Var var;
+
+        Temp(Expr first, int order, int statement) {
+            this.first = first;
+            this.order = order;
+            this.statement = statement;
+        }
+    }
+
+    private int eliminated;
+    private int temps;
+
+    // For each frame of the function being optimized, the slots certain to be
+    // declared at this point, and the times each local changed
+    private List<Set<Integer>> declared;
+    private final Map<Long, Integer> versions = new HashMap<>();
+
+    // Loop unrolling repeats a body block; it is numbered once
+    private final Set<Stmt.Block> done = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Returns the number of computations replaced by a read of a local
+    int eliminate(List<Stmt> program) {
+        for (Stmt stmt : program) {
+            if (stmt instanceof Stmt.Function) {
+                function((Stmt.Function) stmt);
+            }
+        }
+        new Resolver().resolveProgram(program);
+        return eliminated;
+    }
+
+    private void function(Stmt.Function function) {
+        if (LoopOptimizer.containsFunction(function.body) || function.paramSlots == null) {
+            return;
+        }
+        Set<Integer> params = new HashSet<>();
+        for (int slot : function.paramSlots) {
+            params.add(slot);
+        }
+        declared = new ArrayList<>();
+        declared.add(params);
+        versions.clear();
+        function.body = statements(function.body);
+        declared = null;
+    }
+
+    // ---- Numbering a statement list ----
+
+    // The list's state while it is numbered
+    private final class Region {
+        final Map<Object, Temp> values = new HashMap<>();
+        final Map<Object, Integer> counts = new HashMap<>();
+        final Map<Expr, Object> numbers = new IdentityHashMap<>();
+        int order;
+        int statement;
+    }
+
+    private Region region;
+
+    private List<Stmt> statements(List<Stmt> stmts) {
+        Region enclosing = region;
+        region = new Region();
+
+        for (int i = 0; i < stmts.size(); i++) {
+            region.statement = i;
+            Stmt stmt = stmts.get(i);
+            for (Expr root : roots(stmt)) {
+                number(root);
+            }
+            effects(stmt);
+        }
+        List<Stmt> result = rewrite(stmts, choose());
+
+        region = enclosing;
+        return result;
+    }
+
+    // The expressions the statement evaluates before anything it contains can
+    // assign: its own, and the conditions of an if ... else if chain
+    private static List<Expr> roots(Stmt stmt) {
+        List<Expr> roots = new ArrayList<>(1);
+        if (stmt instanceof Stmt.Expression) {
+            roots.add(((Stmt.Expression) stmt).expression);
+        } else if (stmt instanceof Stmt.Return) {
+            roots.add(((Stmt.Return) stmt).value);
+        } else if (stmt instanceof Stmt.Var) {
+            if (((Stmt.Var) stmt).initializer != null) {
+                roots.add(((Stmt.Var) stmt).initializer);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            roots.add(((Stmt.Assign) stmt).value);
+        } else {
+            for (Stmt s = stmt; s instanceof Stmt.If; s = ((Stmt.If) s).elseBranch) {
+                roots.add(((Stmt.If) s).condition);
+            }
+        }
+        return roots;
+    }
+
+    // The expression's value number, or null when it may fail or isn't numbered
+    private Object number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return expr.type != null ? new Constant(((Expr.Literal) expr).value) : null;
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.type == null || !local(variable)) {
+                return null;
+            }
+            int frame = declared.size() - 1 - variable.depth;
+            long address = LoopOptimizer.address(frame, variable.slot);
+            return new Local(address, versions.getOrDefault(address, 0));
+        }
+        if (expr instanceof Expr.Call) {
+            for (Expr arg : ((Expr.Call) expr).arguments) {
+                number(arg);
+            }
+            return null;
+        }
+
+        Object number = null;
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            Object right = number(unary.right);
+            if (right != null && unary.right.type == unary.type) {
+                number = new Unary(unary.operator, right);
+            }
+        } else {
+            Expr.Binary binary = (Expr.Binary) expr;
+            Object left = number(binary.left);
+            Object right = number(binary.right);
+            if (left != null && right != null && LoopOptimizer.safe(binary)) {
+                number = new Binary(left, binary.operator, right);
+            }
+        }
+        if (number != null) {
+            region.numbers.put(expr, number);
+            region.counts.merge(number, 1, Integer::sum);
+            region.values.putIfAbsent(number, new Temp(expr, region.order, region.statement));
+        }
+        region.order++;
+        return number;
+    }
+
+    // Whether the read is of a slot in one of the function's own frames that is
+    // certain to be declared. Only those keep their value number across calls.
+    private boolean local(Expr.Variable variable) {
+        int frame = declared.size() - 1 - variable.depth;
+        return variable.slot >= 0 && variable.depth >= 0 && frame >= 0
+                && declared.get(frame).contains(variable.slot);
+    }
+
+    // Declares and assigns what the statement does, numbering the statement
+    // lists inside it
+    private void effects(Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.slot >= 0) {
+                declared.get(declared.size() - 1).add(var.slot);
+                changed(0, var.slot);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            if (assign.slot >= 0) {
+                changed(assign.depth, assign.slot);
+            }
+        } else if (stmt instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block) stmt;
+            if (done.add(block)) {
+                declared.add(new HashSet<>());
+                block.statements = statements(block.statements);
+                declared.remove(declared.size() - 1);
+            } else {
+                // Already numbered, but its assignments still happen again
+                List<Long> assigned = new ArrayList<>();
+                LoopOptimizer.assignments(block, declared.size(), assigned);
+                for (long address : assigned) {
+                    versions.merge(address, 1, Integer::sum);
+                }
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            branch(ifStmt.thenBranch);
+            if (ifStmt.elseBranch != null) {
+                branch(ifStmt.elseBranch);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            branch(((Stmt.While) stmt).body);
+        }
+    }
+
+    // A declaration standing alone as a branch may not run, so it changes its
+    // local without making it certain to be declared
+    private void branch(Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            if (((Stmt.Var) stmt).slot >= 0) {
+                changed(0, ((Stmt.Var) stmt).slot);
+            }
+        } else {
+            effects(stmt);
+        }
+    }
+
+    private void changed(int depth, int slot) {
+        int frame = declared.size() - 1 - depth;
+        if (frame >= 0) {
+            versions.merge(LoopOptimizer.address(frame, slot), 1, Integer::sum);
+        }
+    }
+
+    // The repeated values worth a local, largest first. An occurrence inside
+    // another repeated one goes away with it, so it no longer counts.
+    private Map<Object, Temp> choose() {
+        List<Object> candidates = new ArrayList<>();
+        for (Map.Entry<Object, Integer> entry : region.counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                candidates.add(entry.getKey());
+            }
+        }
+        candidates.sort(Comparator.comparingInt((Object number) -> size(region.values.get(number).first)).reversed());
+
+        Map<Object, Temp> chosen = new HashMap<>();
+        for (Object number : candidates) {
+            int count = region.counts.get(number);
+            if (count < 2) {
+                continue;
+            }
+            Temp temp = region.values.get(number);
+            chosen.put(number, temp);
+            subtract(temp.first, temp.first, count - 1);
+        }
+        return chosen;
+    }
+
+    private void subtract(Expr expr, Expr root, int times) {
+        Object number = region.numbers.get(expr);
+        if (number != null && expr != root) {
+            region.counts.merge(number, -times, Integer::sum);
+        }
+        if (expr instanceof Expr.Binary) {
+            subtract(((Expr.Binary) expr).left, root, times);
+            subtract(((Expr.Binary) expr).right, root, times);
+        } else if (expr instanceof Expr.Unary) {
+            subtract(((Expr.Unary) expr).right, root, times);
+        }
+    }
+
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return 1 + size(((Expr.Binary) expr).left) + size(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) {
+            return 1 + size(((Expr.Unary) expr).right);
+        }
+        return 1;
+    }
+
+    // ---- Rewriting ----
+
+    private List<Stmt> rewrite(List<Stmt> stmts, Map<Object, Temp> chosen) {
+        if (chosen.isEmpty()) {
+            return stmts;
+        }
+        List<Temp> declarations = new ArrayList<>(chosen.values());
+        declarations.sort(Comparator.comparingInt((Temp temp) -> temp.order));
+
+        List<Stmt> result = new ArrayList<>(stmts.size() + declarations.size());
+        int next = 0;
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt stmt = stmts.get(i);
+            rewrite(stmt, chosen);
+            while (next < declarations.size() && declarations.get(next).statement == i) {
+                result.add(declarations.get(next++).var);
+            }
+            result.add(stmt);
+        }
+        return result;
+    }
+
+    private void rewrite(Stmt stmt, Map<Object, Temp> chosen) {
+        if (stmt instanceof Stmt.Expression) {
+            Stmt.Expression expression = (Stmt.Expression) stmt;
+            expression.expression = rewrite(expression.expression, chosen);
+        } else if (stmt instanceof Stmt.Return) {
+            Stmt.Return returnStmt = (Stmt.Return) stmt;
+            returnStmt.value = rewrite(returnStmt.value, chosen);
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.initializer != null) {
+                var.initializer = rewrite(var.initializer, chosen);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            assign.value = rewrite(assign.value, chosen);
+        } else {
+            for (Stmt s = stmt; s instanceof Stmt.If; s = ((Stmt.If) s).elseBranch) {
+                ((Stmt.If) s).condition = rewrite(((Stmt.If) s).condition, chosen);
+            }
+        }
+    }
+
+    // Occurrences of a chosen value become reads of its local; the first one,
+    // its own repeated parts replaced first, becomes the local's initializer
+    private Expr rewrite(Expr expr, Map<Object, Temp> chosen) {
+        Object number = region.numbers.get(expr);
+        Temp temp = number != null ? chosen.get(number) : null;
+        if (temp != null && temp.first != expr) {
+            eliminated++;
+            return read(temp);
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            binary.left = rewrite(binary.left, chosen);
+            binary.right = rewrite(binary.right, chosen);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            unary.right = rewrite(unary.right, chosen);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            List<Expr> arguments = new ArrayList<>(call.arguments.size());
+            for (Expr arg : call.arguments) {
+                arguments.add(rewrite(arg, chosen));
+            }
+            call.arguments = arguments;
+        }
+
+        if (temp != null) {
+            temp.var = new Stmt.Var("$cse" + temps++, expr.type, expr);
+            return read(temp);
+        }
+        return expr;
+    }
+
+    private static Expr read(Temp temp) {
+        Expr.Variable variable = new Expr.Variable(temp.var.name);
+        variable.type = temp.first.type;
+        return variable;
+    }
+}
@@ -0,0 +1,288 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Optimizer pass, run after the TypeChecker. Folds operators over literals into
+// literals and applies identities that cannot change what a program does:
+//   e + 0, 0 + e, e - 0, e * 1, 1 * e, e / 1, -(-e)           when e is an int
+//   !!e, true && e, e && true, false || e, e || false          when e is a bool
+//   false && e, true || e                                      (e never runs)
+// e's type comes from its shape or the TypeChecker's annotations. Anything that
+// would raise an error at run time (1 / 0, 1 + true, -false) is left in place so
+// it still raises it at the same moment.
+class ConstantFolder implements Expr.Visitor<Expr>, Stmt.Visitor<Void> {
+
+    // Expr nodes removed so far
+    private int eliminated;
+
+    // Literals this pass makes, shared within the program
+    private final ExprPool literals = new ExprPool();
+
+    // Returns the number of Expr nodes eliminated
+    int fold(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            stmt.accept(this);
+        }
+        return eliminated;
+    }
+
+    private Expr fold(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private static boolean isInt(Expr expr, int value) {
+        return expr instanceof Expr.Literal && Integer.valueOf(value).equals(((Expr.Literal) expr).value);
+    }
+
+    private static boolean isBool(Expr expr, boolean value) {
+        return expr instanceof Expr.Literal && Boolean.valueOf(value).equals(((Expr.Literal) expr).value);
+    }
+
+    // The node and its literal operand are gone, `kept` takes their place
+    private Expr keep(Expr kept) {
+        eliminated += 2;
+        return kept;
+    }
+
+    // The node and both operands become one literal
+    private Expr literal(Object value) {
+        eliminated += 2;
+        return literals.literal(value);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt s : stmt.statements) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression = fold(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        for (Stmt s : stmt.body) {
+            s.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition = fold(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        stmt.value = fold(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer = fold(stmt.initializer);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        stmt.value = fold(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition = fold(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        expr.left = fold(expr.left);
+        expr.right = fold(expr.right);
+        Expr left = expr.left;
+        Expr right = expr.right;
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object folded = evaluate(((Expr.Literal) left).value, expr.operator, ((Expr.Literal) right).value);
+            if (folded != null) {
+                return literal(folded);
+            }
+        }
+
+        boolean intLeft = left.type == VarType.INT;
+        boolean intRight = right.type == VarType.INT;
+        boolean boolLeft = left.type == VarType.BOOL;
+        boolean boolRight = right.type == VarType.BOOL;
+        switch (expr.operator) {
+          case PLUS:
+            if (intLeft && isInt(right, 0)) {
+                return keep(left);
+            }
+            if (isInt(left, 0) && intRight) {
+                return keep(right);
+            }
+            break;
+          case MINUS:
+            if (intLeft && isInt(right, 0)) {
+                return keep(left);
+            }
+            break;
+          case MULTIPLY:
+            if (intLeft && isInt(right, 1)) {
+                return keep(left);
+            }
+            if (isInt(left, 1) && intRight) {
+                return keep(right);
+            }
+            break;
+          case DIVIDE:
+            if (intLeft && isInt(right, 1)) {
+                return keep(left);
+            }
+            break;
+          case AND:
+            // The right operand never runs after false
+            if (isBool(left, false)) {
+                eliminated += countNodes(right) + 1;
+                return left;
+            }
+            if (isBool(left, true) && boolRight) {
+                return keep(right);
+            }
+            if (boolLeft && isBool(right, true)) {
+                return keep(left);
+            }
+            break;
+          case OR:
+            // ... nor after true
+            if (isBool(left, true)) {
+                eliminated += countNodes(right) + 1;
+                return left;
+            }
+            if (isBool(left, false) && boolRight) {
+                return keep(right);
+            }
+            if (boolLeft && isBool(right, false)) {
+                return keep(left);
+            }
+            break;
+          default:
+            break;
+        }
+        return expr;
+    }
+
+    // Value of a literal-only operation, or null when it raises an error at run time
+    private static Object evaluate(Object lhs, Operator operator, Object rhs) {
+        if (lhs instanceof Integer && rhs instanceof Integer) {
+            int a = (Integer) lhs;
+            int b = (Integer) rhs;
+            switch (operator) {
+              case PLUS: return a + b;
+              case MINUS: return a - b;
+              case MULTIPLY: return a * b;
+              case DIVIDE: return b == 0 ? null : a / b;
+              case MODULO: return b == 0 ? null : a % b;
+              case LESS: return a < b;
+              case LESS_EQUAL: return a <= b;
+              case GREATER: return a > b;
+              case GREATER_EQUAL: return a >= b;
+              case EQUAL: return a == b;
+              case NOT_EQUAL: return a != b;
+              default: return null;
+            }
+        }
+        if (lhs instanceof Boolean && rhs instanceof Boolean) {
+            boolean a = (Boolean) lhs;
+            boolean b = (Boolean) rhs;
+            switch (operator) {
+              case AND: return a && b;
+              case OR: return a || b;
+              case EQUAL: return a == b;
+              case NOT_EQUAL: return a != b;
+              default: return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        expr.right = fold(expr.right);
+        Expr right = expr.right;
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator == Operator.MINUS && value instanceof Integer) {
+                eliminated++;
+                return literals.literal(-(Integer) value);
+            }
+            if (expr.operator == Operator.NOT && value instanceof Boolean) {
+                eliminated++;
+                return literals.literal(!(Boolean) value);
+            }
+        }
+
+        // -(-e) and !!e
+        if (right instanceof Expr.Unary && ((Expr.Unary) right).operator == expr.operator) {
+            Expr inner = ((Expr.Unary) right).right;
+            if ((expr.operator == Operator.MINUS && inner.type == VarType.INT)
+                    || (expr.operator == Operator.NOT && inner.type == VarType.BOOL)) {
+                return keep(inner);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr arg : expr.arguments) {
+            arguments.add(fold(arg));
+        }
+        expr.arguments = arguments;
+        return expr;
+    }
+
+    private static int countNodes(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return 1 + countNodes(((Expr.Binary) expr).left) + countNodes(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) {
+            return 1 + countNodes(((Expr.Unary) expr).right);
+        }
+        if (expr instanceof Expr.Call) {
+            int count = 1;
+            for (Expr arg : ((Expr.Call) expr).arguments) {
+                count += countNodes(arg);
+            }
+            return count;
+        }
+        return 1;
+    }
+}
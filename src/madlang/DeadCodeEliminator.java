@@ -0,0 +1,316 @@
+package madlang;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Optimizer pass, run after the ConstantFolder. Removes statements that can
+// never run or whose running cannot be observed:
+//   - top-level functions no name reachable from main or the top-level code
+//     refers to,
+//   - the untaken branch of an if with a literal condition, while (false) loops,
+//     empty blocks and literal expression statements,
+//   - statements after one that always returns,
+//   - locals (variables and functions) whose name nothing in their function
+//     refers to, when the initializer cannot raise an error: literals, locals
+//     certain to be declared and typed operators that cannot fail.
+// Names are matched by name, not slot, so nothing reachable through the
+// Environment's by-name fallback goes. The program is resolved again afterwards
+// since frames lose slots.
+class DeadCodeEliminator {
+
+    private int removed;
+
+    // Names referred to by each function's body, nested functions included
+    private final Map<Stmt.Function, Set<String>> references = new IdentityHashMap<>();
+
+    // Names referred to in the innermost function and, for each of its frames,
+    // the slots certain to be declared at this point; null at top level
+    private Set<String> used;
+    private List<Set<Integer>> declared;
+
+    // Statements removed by the last eliminate()
+    int removed() {
+        return removed;
+    }
+
+    // Returns the program without its dead code
+    List<Stmt> eliminate(List<Stmt> program) {
+        Set<String> reachable = reachable(program);
+        List<Stmt> live = new ArrayList<>(program.size());
+        for (Stmt stmt : program) {
+            if (stmt instanceof Stmt.Function && !reachable.contains(((Stmt.Function) stmt).name)) {
+                removed += count(stmt);
+            } else {
+                live.add(stmt);
+            }
+        }
+        live = statements(live);
+        new Resolver().resolveProgram(live);
+        return live;
+    }
+
+    // ---- Reachability ----
+
+    // Names main and the top-level code can get to, following the bodies of the
+    // top-level functions of each name reached
+    private Set<String> reachable(List<Stmt> program) {
+        Deque<String> work = new ArrayDeque<>();
+        work.add("main");
+        Set<String> top = new HashSet<>();
+        for (Stmt stmt : program) {
+            if (!(stmt instanceof Stmt.Function)) {
+                names(stmt, top);
+            }
+        }
+        work.addAll(top);
+
+        Set<String> reached = new HashSet<>();
+        while (!work.isEmpty()) {
+            String name = work.pop();
+            if (!reached.add(name)) {
+                continue;
+            }
+            for (Stmt stmt : program) {
+                if (stmt instanceof Stmt.Function && ((Stmt.Function) stmt).name.equals(name)) {
+                    work.addAll(references((Stmt.Function) stmt));
+                }
+            }
+        }
+        return reached;
+    }
+
+    private Set<String> references(Stmt.Function function) {
+        return references.computeIfAbsent(function, f -> {
+            Set<String> names = new HashSet<>();
+            for (Stmt stmt : f.body) {
+                names(stmt, names);
+            }
+            return names;
+        });
+    }
+
+    // Adds every name the statement refers to (declarations excluded)
+    private static void names(Stmt stmt, Set<String> into) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).statements) {
+                names(s, into);
+            }
+        } else if (stmt instanceof Stmt.Expression) {
+            names(((Stmt.Expression) stmt).expression, into);
+        } else if (stmt instanceof Stmt.Function) {
+            for (Stmt s : ((Stmt.Function) stmt).body) {
+                names(s, into);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            names(ifStmt.condition, into);
+            names(ifStmt.thenBranch, into);
+            if (ifStmt.elseBranch != null) {
+                names(ifStmt.elseBranch, into);
+            }
+        } else if (stmt instanceof Stmt.Return) {
+            names(((Stmt.Return) stmt).value, into);
+        } else if (stmt instanceof Stmt.Var) {
+            if (((Stmt.Var) stmt).initializer != null) {
+                names(((Stmt.Var) stmt).initializer, into);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            into.add(((Stmt.Assign) stmt).name);
+            names(((Stmt.Assign) stmt).value, into);
+        } else if (stmt instanceof Stmt.While) {
+            names(((Stmt.While) stmt).condition, into);
+            names(((Stmt.While) stmt).body, into);
+        }
+    }
+
+    private static void names(Expr expr, Set<String> into) {
+        if (expr instanceof Expr.Binary) {
+            names(((Expr.Binary) expr).left, into);
+            names(((Expr.Binary) expr).right, into);
+        } else if (expr instanceof Expr.Unary) {
+            names(((Expr.Unary) expr).right, into);
+        } else if (expr instanceof Expr.Variable) {
+            into.add(((Expr.Variable) expr).name);
+        } else if (expr instanceof Expr.Call) {
+            into.add(((Expr.Call) expr).name);
+            for (Expr arg : ((Expr.Call) expr).arguments) {
+                names(arg, into);
+            }
+        }
+    }
+
+    private static int count(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            return 1 + count(((Stmt.Block) stmt).statements);
+        }
+        if (stmt instanceof Stmt.Function) {
+            return 1 + count(((Stmt.Function) stmt).body);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return 1 + count(ifStmt.thenBranch) + (ifStmt.elseBranch != null ? count(ifStmt.elseBranch) : 0);
+        }
+        if (stmt instanceof Stmt.While) {
+            return 1 + count(((Stmt.While) stmt).body);
+        }
+        return 1;
+    }
+
+    private static int count(List<Stmt> stmts) {
+        int count = 0;
+        for (Stmt stmt : stmts) {
+            count += count(stmt);
+        }
+        return count;
+    }
+
+    // ---- Removing ----
+
+    private List<Stmt> statements(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<>(stmts.size());
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt stmt = simplify(stmts.get(i));
+            if (stmt == null || unused(stmt)) {
+                if (stmt != null) {
+                    removed += count(stmt);
+                }
+                continue;
+            }
+            result.add(stmt);
+            if (declared != null && stmt instanceof Stmt.Var && ((Stmt.Var) stmt).slot >= 0) {
+                declared.get(declared.size() - 1).add(((Stmt.Var) stmt).slot);
+            }
+            if (TypeChecker.returns(List.of(stmt))) {
+                removed += count(stmts.subList(i + 1, stmts.size()));
+                break;
+            }
+        }
+        return result;
+    }
+
+    // The statement with its dead parts gone, or null when none of it is left
+    private Stmt simplify(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            Stmt.Block block = (Stmt.Block) stmt;
+            if (declared != null) {
+                declared.add(new HashSet<>());
+            }
+            block.statements = statements(block.statements);
+            if (declared != null) {
+                declared.remove(declared.size() - 1);
+            }
+            if (block.statements.isEmpty()) {
+                removed++;
+                return null;
+            }
+            return block;
+        }
+        if (stmt instanceof Stmt.Function) {
+            function((Stmt.Function) stmt);
+            return stmt;
+        }
+        if (stmt instanceof Stmt.If) {
+            return simplifyIf((Stmt.If) stmt);
+        }
+        if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            if (Boolean.FALSE.equals(literal(loop.condition))) {
+                removed += count(loop);
+                return null;
+            }
+            loop.body = branch(loop.body);
+            return loop;
+        }
+        if (stmt instanceof Stmt.Expression && ((Stmt.Expression) stmt).expression instanceof Expr.Literal) {
+            removed++;
+            return null;
+        }
+        return stmt;
+    }
+
+    private Stmt simplifyIf(Stmt.If stmt) {
+        Object condition = literal(stmt.condition);
+        if (condition instanceof Boolean) {
+            Stmt taken = (Boolean) condition ? stmt.thenBranch : stmt.elseBranch;
+            Stmt untaken = (Boolean) condition ? stmt.elseBranch : stmt.thenBranch;
+            removed += 1 + (untaken != null ? count(untaken) : 0);
+            return taken != null ? simplify(taken) : null;
+        }
+        stmt.thenBranch = branch(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch = simplify(stmt.elseBranch);
+        }
+        return stmt;
+    }
+
+    // A statement that can't be left out of its parent becomes an empty block
+    private Stmt branch(Stmt stmt) {
+        Stmt simplified = simplify(stmt);
+        return simplified != null ? simplified : new Stmt.Block(new ArrayList<>());
+    }
+
+    private static Object literal(Expr expr) {
+        return expr instanceof Expr.Literal ? ((Expr.Literal) expr).value : null;
+    }
+
+    private void function(Stmt.Function function) {
+        Set<String> enclosingUsed = used;
+        List<Set<Integer>> enclosingDeclared = declared;
+
+        used = references(function);
+        declared = new ArrayList<>();
+        Set<Integer> params = new HashSet<>();
+        if (function.paramSlots != null) {
+            for (int slot : function.paramSlots) {
+                params.add(slot);
+            }
+        }
+        declared.add(params);
+        function.body = statements(function.body);
+
+        used = enclosingUsed;
+        declared = enclosingDeclared;
+    }
+
+    // A local declaration nothing refers to, which can go without a trace
+    private boolean unused(Stmt stmt) {
+        if (used == null) {
+            return false;
+        }
+        if (stmt instanceof Stmt.Function) {
+            return !used.contains(((Stmt.Function) stmt).name);
+        }
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            return !used.contains(var.name) && (var.initializer == null || harmless(var.initializer));
+        }
+        return false;
+    }
+
+    // Evaluating it cannot raise an error
+    private boolean harmless(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            return variable.slot >= 0 && variable.depth < declared.size()
+                && declared.get(declared.size() - 1 - variable.depth).contains(variable.slot);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.right.type == unary.type && harmless(unary.right);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return LoopOptimizer.safe(binary) && harmless(binary.left) && harmless(binary.right);
+        }
+        return false;
+    }
+}
@@ -1,33 +1,151 @@
 package madlang;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class Environment {
 
     Environment parent;
-    private final Map<String, Object> values = new HashMap<>();
+
+    // Array-backed frame. A slot is declared once its name is set; the resolver
+    // hands out slot indices ahead of time so lookups become index loads.
+    // Ints and bools are kept unboxed in prims, tagged by INT_SLOT/BOOL_SLOT.
+    private String[] names;
+    private Object[] values;
+    private int[] prims;
+    private int size;
+
+    // Bumped whenever a slot is declared or starts holding something else than
+    // an int or bool it already held; call sites cache callees against it
+    private int version;
+
+    private static final Object INT_SLOT = new Object();
+    private static final Object BOOL_SLOT = new Object();
 
     // Constructue
     public Environment(Environment parent) {
+        this(parent, 4);
+    }
+
+    // Frame with room for a known number of slots (from the resolver)
+    Environment(Environment parent, int capacity) {
         this.parent = parent;
+        this.names = new String[Math.max(capacity, 1)];
+        this.values = new Object[names.length];
+        this.prims = new int[names.length];
+        Events.frame(names.length);
     }
 
     // Declare a variable in the current scope
     void declare(String name, Object value) {
         // Create variable if it doesn't exist, or update it
-        values.put(name, value);
+        int slot = indexOf(name);
+        define(slot >= 0 ? slot : size, name, value);
+    }
+
+    // Declare a variable in a slot chosen by the resolver
+    void define(int slot, String name, Object value) {
+        reserve(slot, name);
+        store(slot, value);
+    }
+
+    void defineInt(int slot, String name, int value) {
+        reserve(slot, name);
+        setInt(slot, value);
+    }
+
+    void defineBool(int slot, String name, boolean value) {
+        reserve(slot, name);
+        setBool(slot, value);
+    }
+
+    private void reserve(int slot, String name) {
+        if (slot >= names.length) {
+            int capacity = Math.max(slot + 1, names.length * 2);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            prims = Arrays.copyOf(prims, capacity);
+        }
+        names[slot] = name;
+        version++;
+        if (slot >= size) {
+            size = slot + 1;
+        }
+    }
+
+    // Unbox on the way in, so every int/bool slot can be read without allocation
+    private void store(int slot, Object value) {
+        if (value instanceof Integer) {
+            setInt(slot, (Integer) value);
+        } else if (value instanceof Boolean) {
+            setBool(slot, (Boolean) value);
+        } else {
+            values[slot] = value;
+            version++;
+        }
+    }
+
+    private Object load(int slot) {
+        Object value = values[slot];
+        if (value == INT_SLOT) {
+            return prims[slot];
+        }
+        if (value == BOOL_SLOT) {
+            return prims[slot] != 0;
+        }
+        return value;
+    }
+
+    // Primitive access to a declared slot of this frame
+    boolean isDeclared(int slot) {
+        return slot < size && names[slot] != null;
+    }
+
+    boolean holdsInt(int slot) {
+        return slot < size && values[slot] == INT_SLOT;
+    }
+
+    boolean holdsBool(int slot) {
+        return slot < size && values[slot] == BOOL_SLOT;
+    }
+
+    int intAt(int slot) {
+        return prims[slot];
+    }
+
+    boolean boolAt(int slot) {
+        return prims[slot] != 0;
+    }
+
+    void setInt(int slot, int value) {
+        if (values[slot] != INT_SLOT) {
+            values[slot] = INT_SLOT;
+            version++;
+        }
+        prims[slot] = value;
+    }
+
+    void setBool(int slot, boolean value) {
+        if (values[slot] != BOOL_SLOT) {
+            values[slot] = BOOL_SLOT;
+            version++;
+        }
+        prims[slot] = value ? 1 : 0;
+    }
+
+    int version() {
+        return version;
     }
 
     // If assigning a variable outside the scope, walk the chain of environments
     void assign(String name, Object value) {
-        if (values.containsKey(name)) {
-            values.put(name, value);
+        int slot = indexOf(name);
+        if (slot >= 0) {
+            store(slot, value);
             return;
         }
 
         if (parent == null) {
-            throw new RuntimeException("Error: unbound reference");
+            throw new MadlangError("Error: unbound reference");
         }
 
         parent.assign(name, value);
@@ -35,28 +153,96 @@ class Environment {
 
     // Get name in current environment or search for parent declaration
     Object get(String name) {
-        if (values.containsKey(name)) {
-            return values.get(name);
+        int slot = indexOf(name);
+        if (slot >= 0) {
+            return load(slot);
         }
 
         if (parent == null) {
-            throw new RuntimeException("Error: unbound reference");
+            throw new MadlangError("Error: unbound reference");
         }
 
         return parent.get(name);
     }
 
+    // Resolved lookup. If the declaration has not run yet (e.g. it sits later in
+    // the block), fall back to searching the enclosing scopes by name.
+    Object getAt(int depth, int slot, String name) {
+        Environment env = ancestor(depth);
+        if (env.isDeclared(slot)) {
+            return env.load(slot);
+        }
+
+        if (env.parent == null) {
+            throw new MadlangError("Error: unbound reference");
+        }
+
+        return env.parent.get(name);
+    }
+
+    // Resolved assignment, same fallback as getAt
+    void assignAt(int depth, int slot, String name, Object value) {
+        Environment env = ancestor(depth);
+        if (env.isDeclared(slot)) {
+            env.store(slot, value);
+            return;
+        }
+
+        if (env.parent == null) {
+            throw new MadlangError("Error: unbound reference");
+        }
+
+        env.parent.assign(name, value);
+    }
+
+    // Resolved primitive assignments, same fallback as assignAt
+    void assignIntAt(int depth, int slot, String name, int value) {
+        Environment env = ancestor(depth);
+        if (env.isDeclared(slot)) {
+            env.setInt(slot, value);
+            return;
+        }
+        assignAt(depth, slot, name, value);
+    }
+
+    void assignBoolAt(int depth, int slot, String name, boolean value) {
+        Environment env = ancestor(depth);
+        if (env.isDeclared(slot)) {
+            env.setBool(slot, value);
+            return;
+        }
+        assignAt(depth, slot, name, value);
+    }
+
+    Environment ancestor(int depth) {
+        Environment env = this;
+        for (int i = 0; i < depth; i++) {
+            env = env.parent;
+        }
+        return env;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (name.equals(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder("{");
       boolean first = true;
-      for (Map.Entry<String, Object> entry : values.entrySet()) {
+      for (int i = 0; i < size; i++) {
+          if (names[i] == null) {
+              continue;
+          }
           if (!first) {
               sb.append(", ");
           }
-          String name = entry.getKey();
-          Object value = entry.getValue();
-          sb.append(name).append(" = ").append(value);
+          sb.append(names[i]).append(" = ").append(load(i));
           first = false;
       }
       sb.append("}");
@@ -0,0 +1,144 @@
+package madlang;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events for a running interpreter, under "Madlang" in
+// JDK Mission Control and `jfr print --categories Madlang`. The sites go
+// through the helpers below, which do nothing until Flight Recorder has been
+// started in this JVM: loading the first event class costs a JVM a few hundred
+// milliseconds, far more than a short run takes. Frames come by the thousand
+// per millisecond, so their event is off unless a recording turns it on:
+//   -XX:StartFlightRecording:filename=run.jfr,+madlang.Frame#enabled=true
+final class Events {
+
+    private Events() {}
+
+    private static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    // A started Call event, null while there is no recorder
+    static Call call() {
+        if (!recording()) {
+            return null;
+        }
+        Call event = new Call();
+        event.begin();
+        return event;
+    }
+
+    static void commit(Call event, Stmt.Function function) {
+        if (event != null && event.shouldCommit()) {
+            event.function = function.name;
+            event.arguments = function.params.size();
+            event.commit();
+        }
+    }
+
+    static void frame(int slots) {
+        if (recording()) {
+            Frame event = new Frame();
+            if (event.shouldCommit()) {
+                event.slots = slots;
+                event.commit();
+            }
+        }
+    }
+
+    // A started Input event, null while there is no recorder
+    static Input input() {
+        if (!recording()) {
+            return null;
+        }
+        Input event = new Input();
+        event.begin();
+        return event;
+    }
+
+    static void commit(Input event, int value) {
+        if (event != null && event.shouldCommit()) {
+            event.value = value;
+            event.commit();
+        }
+    }
+
+    static void output(int value) {
+        if (recording()) {
+            Output event = new Output();
+            if (event.shouldCommit()) {
+                event.value = value;
+                event.commit();
+            }
+        }
+    }
+
+    static void error(String message) {
+        if (recording()) {
+            Error event = new Error();
+            if (event.shouldCommit()) {
+                event.message = message;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("madlang.Call")
+    @Label("Function Call")
+    @Description("A call of a madlang function whose body the tree walk runs; calls inside Jit-compiled code are not seen")
+    @Category("Madlang")
+    @StackTrace(false)
+    static final class Call extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Arguments")
+        int arguments;
+    }
+
+    @Name("madlang.Frame")
+    @Label("Frame")
+    @Description("An Environment created for a call, block or global scope")
+    @Category("Madlang")
+    @StackTrace(false)
+    @Enabled(false)
+    static final class Frame extends Event {
+        @Label("Slots")
+        int slots;
+    }
+
+    @Name("madlang.Input")
+    @Label("Input")
+    @Description("A call of the input built-in")
+    @Category("Madlang")
+    @StackTrace(false)
+    static final class Input extends Event {
+        @Label("Value")
+        int value;
+    }
+
+    @Name("madlang.Output")
+    @Label("Output")
+    @Description("A call of the output built-in")
+    @Category("Madlang")
+    @StackTrace(false)
+    static final class Output extends Event {
+        @Label("Value")
+        int value;
+    }
+
+    @Name("madlang.Error")
+    @Label("Error")
+    @Description("A madlang error raised, syntax and run-time errors alike")
+    @Category("Madlang")
+    static final class Error extends Event {
+        @Label("Message")
+        String message;
+    }
+}
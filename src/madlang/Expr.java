@@ -16,6 +16,15 @@ abstract class Expr {
       this.left = left;
       this.operator = operator;
       this.right = right;
+      switch (operator) {
+        case PLUS: case MINUS: case MULTIPLY: case DIVIDE: case MODULO:
+          this.type = VarType.INT;
+          break;
+        case NOT:
+          break;
+        default:
+          this.type = VarType.BOOL;
+      }
     }
 
     @Override
@@ -23,14 +32,29 @@ abstract class Expr {
       return visitor.visitBinaryExpr(this);
     }
 
-    final Expr left;
+    @Override
+    int evalInt(Interpreter interpreter, Expr pending) {
+      return interpreter.intBinary(this, pending);
+    }
+
+    @Override
+    boolean evalBool(Interpreter interpreter, Expr pending) {
+      return interpreter.boolBinary(this, pending);
+    }
+
+    Expr left;
     final Operator operator;
-    final Expr right;
+    Expr right;
   }
 
   static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
+      if (value instanceof Integer) {
+        this.type = VarType.INT;
+      } else if (value instanceof Boolean) {
+        this.type = VarType.BOOL;
+      }
     }
 
     @Override
@@ -38,6 +62,16 @@ abstract class Expr {
       return visitor.visitLiteralExpr(this);
     }
 
+    @Override
+    int evalInt(Interpreter interpreter, Expr pending) {
+      return interpreter.intLiteral(this, pending);
+    }
+
+    @Override
+    boolean evalBool(Interpreter interpreter, Expr pending) {
+      return interpreter.boolLiteral(this, pending);
+    }
+
     final Object value;
   }
 
@@ -45,6 +79,11 @@ abstract class Expr {
     Unary(Operator operator, Expr right) {
       this.operator = operator;
       this.right = right;
+      if (operator == Operator.MINUS) {
+        this.type = VarType.INT;
+      } else if (operator == Operator.NOT) {
+        this.type = VarType.BOOL;
+      }
     }
 
     @Override
@@ -52,8 +91,18 @@ abstract class Expr {
       return visitor.visitUnaryExpr(this);
     }
 
+    @Override
+    int evalInt(Interpreter interpreter, Expr pending) {
+      return interpreter.intUnary(this, pending);
+    }
+
+    @Override
+    boolean evalBool(Interpreter interpreter, Expr pending) {
+      return interpreter.boolUnary(this, pending);
+    }
+
     final Operator operator;
-    final Expr right;
+    Expr right;
   }
 
   static class Variable extends Expr {
@@ -66,7 +115,21 @@ abstract class Expr {
       return visitor.visitVariableExpr(this);
     }
 
+    @Override
+    int evalInt(Interpreter interpreter, Expr pending) {
+      return interpreter.intVariable(this, pending);
+    }
+
+    @Override
+    boolean evalBool(Interpreter interpreter, Expr pending) {
+      return interpreter.boolVariable(this, pending);
+    }
+
     final String name;
+
+    // Lexical address filled in by the Resolver (-1 when unresolved)
+    int depth = -1;
+    int slot = -1;
   }
 
   static class Call extends Expr {
@@ -80,9 +143,48 @@ abstract class Expr {
       return visitor.visitCallExpr(this);
     }
 
+    @Override
+    int evalInt(Interpreter interpreter, Expr pending) {
+      return interpreter.intCall(this, pending);
+    }
+
+    @Override
+    boolean evalBool(Interpreter interpreter, Expr pending) {
+      return interpreter.boolCall(this, pending);
+    }
+
     final String name;
-    final List<Expr> arguments;
+    List<Expr> arguments;
+
+    // Inline cache kept by the Interpreter: the callee found last time, the
+    // frame it is bound in and that frame's version then, and how often the
+    // cache held
+    Environment cachedFrame;
+    int cachedVersion;
+    Interpreter.MadlangCallable cached;
+    long hits;
+    long misses;
+
+    // Lexical address filled in by the Resolver (-1 when unresolved)
+    int depth = -1;
+    int slot = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  // Unboxed evaluation, see Interpreter.evalInt/evalBool. If this operand turns out
+  // to have the wrong type, `pending` (the right operand of the same operator, or
+  // null) is evaluated before the type mismatch is raised, as the boxed path does.
+  abstract int evalInt(Interpreter interpreter, Expr pending);
+  abstract boolean evalBool(Interpreter interpreter, Expr pending);
+
+  // Result type when it is known from the node's shape (literals and operators)
+  // or proven by the TypeChecker (variables and calls), null when it is only
+  // known at run time
+  VarType type;
+
+  // Where the node starts in the source, set by the Parser (0 when the node
+  // was built some other way)
+  int line;
+  int column;
 }
@@ -0,0 +1,167 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hash-consing of Expr nodes: structurally identical literals, variables,
+// unary and binary operators end up as one shared node. A pool belongs to one
+// program; nodes are never shared between programs, whose passes may rewrite
+// them.
+//
+// Two levels, because the optimizer passes rewrite nodes in place (operands,
+// types, lexical addresses) and a node shared between two sites must not be
+// rewritten for one of them:
+//   - common() hands out the pool's shared literals for true, false and small
+//     ints. The Parser, AstFormat and ConstantFolder each build the literals
+//     of the program they work on through a pool of their own; a shared
+//     literal carries no source position.
+//   - share() runs after the last pass, when nothing rewrites the tree any
+//     more. A node is keyed by its operator or value, its already shared
+//     operands by identity, and for variables the name, lexical address and
+//     proven type, so two nodes only merge when they evaluate alike wherever
+//     they are. Calls are never shared (each keeps its inline cache) but their
+//     arguments are.
+// Equal shared nodes are the same object, so later passes can compare them by
+// identity.
+class ExprPool implements Expr.Visitor<Expr>, Stmt.Visitor<Void> {
+
+    private static final int LOW = -128;
+    private static final int HIGH = 1023;
+
+    private record LiteralKey(Object value) {}
+    private record VariableKey(String name, int depth, int slot, VarType type) {}
+    private record UnaryKey(Operator operator, Expr right, VarType type) {}
+    private record BinaryKey(Expr left, Operator operator, Expr right, VarType type) {}
+
+    private final Map<Object, Expr> pool = new HashMap<>();
+
+    // Nodes replaced by a shared one
+    private int dropped;
+
+    // The pool's literal for the value, or null when it is not a common one
+    Expr.Literal common(Object value) {
+        boolean common = value instanceof Boolean
+                || value instanceof Integer && (Integer) value >= LOW && (Integer) value <= HIGH;
+        return common ? (Expr.Literal) pool.computeIfAbsent(new LiteralKey(value), key -> new Expr.Literal(value)) : null;
+    }
+
+    // A literal node for the value, shared when the value is a common one
+    Expr.Literal literal(Object value) {
+        Expr.Literal shared = common(value);
+        return shared != null ? shared : new Expr.Literal(value);
+    }
+
+    // Shares the program's expressions; returns the number of nodes dropped
+    int share(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            stmt.accept(this);
+        }
+        return dropped;
+    }
+
+    // The shared node equal to the expression
+    Expr share(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Expr intern(Object key, Expr expr) {
+        Expr shared = pool.putIfAbsent(key, expr);
+        if (shared == null) {
+            return expr;
+        }
+        if (shared != expr) {
+            dropped++;
+        }
+        return shared;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return intern(new LiteralKey(expr.value), expr);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return intern(new VariableKey(expr.name, expr.depth, expr.slot, expr.type), expr);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        expr.right = share(expr.right);
+        return intern(new UnaryKey(expr.operator, expr.right, expr.type), expr);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        expr.left = share(expr.left);
+        expr.right = share(expr.right);
+        return intern(new BinaryKey(expr.left, expr.operator, expr.right, expr.type), expr);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr arg : expr.arguments) {
+            arguments.add(share(arg));
+        }
+        expr.arguments = arguments;
+        return expr;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        share(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression = share(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        share(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition = share(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        stmt.value = share(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer = share(stmt.initializer);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        stmt.value = share(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition = share(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+package madlang;
+
+// Limits for running programs nobody has vetted: executed statements, wall-clock
+// time, call depth and live frames. Each limit has its own error. All of them
+// are off by default.
+//
+// A Metered interpreter enforces them. Depth and frames are checked where a
+// call or frame starts. The statement budget and the deadline are checked on
+// an amortized tick, every CHECK_INTERVAL statements and calls, so a program
+// can run a little past its budget or deadline.
+class Governor {
+
+    static final int CHECK_INTERVAL = 1024;
+
+    long maxStatements = Long.MAX_VALUE;
+    long timeoutMillis;   // 0: no deadline
+    int maxDepth = Integer.MAX_VALUE;
+    int maxFrames = Integer.MAX_VALUE;
+
+    private long deadline;
+
+    boolean limited() {
+        return maxStatements != Long.MAX_VALUE || timeoutMillis > 0
+                || maxDepth != Integer.MAX_VALUE || maxFrames != Integer.MAX_VALUE;
+    }
+
+    // Starts the clock for a run
+    void start() {
+        deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1_000_000 : 0;
+    }
+
+    // The slow path of a tick
+    void check(Metrics metrics) {
+        if (metrics.statements > maxStatements) {
+            throw new MadlangError("Error: statement limit exceeded");
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new MadlangError("Error: time limit exceeded");
+        }
+    }
+
+    void checkDepth(int depth) {
+        if (depth > maxDepth) {
+            throw new MadlangError("Error: call depth exceeded");
+        }
+    }
+
+    void checkFrames(int frames) {
+        if (frames > maxFrames) {
+            throw new MadlangError("Error: frame limit exceeded");
+        }
+    }
+}
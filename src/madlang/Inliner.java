@@ -0,0 +1,365 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Optimizer pass, run after the TypeChecker. Replaces calls to small helpers
+// (abs, max, isEven, ...) by the helper's return expression with the arguments
+// substituted for the parameters. Only done where it cannot be observed:
+//   - the helper is a top-level function whose body is a single return of an
+//     expression over its parameters, without calls, and at most `budget` nodes,
+//   - its name is bound to nothing else (one declaration, not a variable or a
+//     built-in, never assigned) and it is declared before any top-level code
+//     that could call it runs, so it is always there when a function body runs,
+//   - the call is inside a function and resolves to the global frame, so a
+//     local function or variable of the same name blocks it,
+//   - every argument is a literal or a local certain to be declared, which
+//     makes evaluating it once, many times or not at all the same.
+class Inliner implements Expr.Visitor<Expr>, Stmt.Visitor<Void> {
+
+    static final int BUDGET = 16;
+
+    private final int budget;
+    private final List<String> sites = new ArrayList<>();
+    private final Map<String, Stmt.Function> helpers = new HashMap<>();
+
+    // Frames open at the current point, the global frame included
+    private int frames;
+    // Innermost function and, for each of its frames, the slots certain to be
+    // declared at this point; null at top level
+    private Stmt.Function caller;
+    private List<Set<Integer>> declared;
+
+    Inliner(int budget) {
+        this.budget = budget;
+    }
+
+    // Inlines what it can, returns the sites as "caller: helper"
+    List<String> inline(List<Stmt> program) {
+        findHelpers(program);
+        frames = 1;
+        statements(program);
+        return sites;
+    }
+
+    // ---- Finding helpers ----
+
+    private void findHelpers(List<Stmt> program) {
+        Map<String, Integer> functions = new HashMap<>();
+        Set<String> others = new HashSet<>(Resolver.BUILTINS);
+        for (Stmt stmt : program) {
+            countDeclarations(stmt, functions, others);
+        }
+        assignedGlobals(program, 1, others);
+
+        for (Stmt stmt : program) {
+            if (!(stmt instanceof Stmt.Function)) {
+                if (containsCall(stmt)) {
+                    break;
+                }
+                continue;
+            }
+            Stmt.Function function = (Stmt.Function) stmt;
+            if (functions.get(function.name) == 1 && !others.contains(function.name)
+                    && function.paramSlots != null && function.body.size() == 1
+                    && function.body.get(0) instanceof Stmt.Return) {
+                Expr value = ((Stmt.Return) function.body.get(0)).value;
+                if (overParams(value) && size(value) <= budget) {
+                    helpers.put(function.name, function);
+                }
+            }
+        }
+    }
+
+    private static void countDeclarations(Stmt stmt, Map<String, Integer> functions, Set<String> others) {
+        if (stmt instanceof Stmt.Function) {
+            functions.merge(((Stmt.Function) stmt).name, 1, Integer::sum);
+        } else if (stmt instanceof Stmt.Var) {
+            others.add(((Stmt.Var) stmt).name);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            countDeclarations(ifStmt.thenBranch, functions, others);
+            if (ifStmt.elseBranch != null) {
+                countDeclarations(ifStmt.elseBranch, functions, others);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            countDeclarations(((Stmt.While) stmt).body, functions, others);
+        }
+    }
+
+    // Adds the names of globals assigned anywhere in the program
+    private static void assignedGlobals(List<Stmt> stmts, int frames, Set<String> names) {
+        for (Stmt stmt : stmts) {
+            assignedGlobals(stmt, frames, names);
+        }
+    }
+
+    private static void assignedGlobals(Stmt stmt, int frames, Set<String> names) {
+        if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            if (assign.depth < 0 || assign.depth == frames - 1) {
+                names.add(assign.name);
+            }
+        } else if (stmt instanceof Stmt.Block) {
+            assignedGlobals(((Stmt.Block) stmt).statements, frames + 1, names);
+        } else if (stmt instanceof Stmt.Function) {
+            assignedGlobals(((Stmt.Function) stmt).body, frames + 1, names);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            assignedGlobals(ifStmt.thenBranch, frames, names);
+            if (ifStmt.elseBranch != null) {
+                assignedGlobals(ifStmt.elseBranch, frames, names);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            assignedGlobals(((Stmt.While) stmt).body, frames, names);
+        }
+    }
+
+    private static boolean containsCall(Stmt stmt) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).statements) {
+                if (containsCall(s)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (stmt instanceof Stmt.Expression) {
+            return containsCall(((Stmt.Expression) stmt).expression);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return containsCall(ifStmt.condition) || containsCall(ifStmt.thenBranch)
+                || (ifStmt.elseBranch != null && containsCall(ifStmt.elseBranch));
+        }
+        if (stmt instanceof Stmt.Return) {
+            return containsCall(((Stmt.Return) stmt).value);
+        }
+        if (stmt instanceof Stmt.Var) {
+            Expr initializer = ((Stmt.Var) stmt).initializer;
+            return initializer != null && containsCall(initializer);
+        }
+        if (stmt instanceof Stmt.Assign) {
+            return containsCall(((Stmt.Assign) stmt).value);
+        }
+        if (stmt instanceof Stmt.While) {
+            return containsCall(((Stmt.While) stmt).condition) || containsCall(((Stmt.While) stmt).body);
+        }
+        return false;
+    }
+
+    private static boolean containsCall(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return containsCall(((Expr.Binary) expr).left) || containsCall(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) {
+            return containsCall(((Expr.Unary) expr).right);
+        }
+        return expr instanceof Expr.Call;
+    }
+
+    // Literals, operators and the helper's own parameters only
+    private static boolean overParams(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return overParams(((Expr.Binary) expr).left) && overParams(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) {
+            return overParams(((Expr.Unary) expr).right);
+        }
+        if (expr instanceof Expr.Variable) {
+            return ((Expr.Variable) expr).depth == 0;
+        }
+        return expr instanceof Expr.Literal;
+    }
+
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return 1 + size(((Expr.Binary) expr).left) + size(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) {
+            return 1 + size(((Expr.Unary) expr).right);
+        }
+        return 1;
+    }
+
+    // ---- Rewriting ----
+
+    // Vars directly in a statement list are certain to be declared after it
+    private void statements(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            stmt.accept(this);
+            if (stmt instanceof Stmt.Var && caller != null && ((Stmt.Var) stmt).slot >= 0) {
+                declared.get(declared.size() - 1).add(((Stmt.Var) stmt).slot);
+            }
+        }
+    }
+
+    private Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        frames++;
+        if (caller != null) {
+            declared.add(new HashSet<>());
+        }
+        statements(stmt.statements);
+        if (caller != null) {
+            declared.remove(declared.size() - 1);
+        }
+        frames--;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression = rewrite(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        Stmt.Function enclosing = caller;
+        List<Set<Integer>> enclosingDeclared = declared;
+
+        caller = stmt;
+        declared = new ArrayList<>();
+        Set<Integer> params = new HashSet<>();
+        if (stmt.paramSlots != null) {
+            for (int slot : stmt.paramSlots) {
+                params.add(slot);
+            }
+        }
+        declared.add(params);
+        frames++;
+        statements(stmt.body);
+        frames--;
+
+        caller = enclosing;
+        declared = enclosingDeclared;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition = rewrite(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        stmt.value = rewrite(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer = rewrite(stmt.initializer);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        stmt.value = rewrite(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition = rewrite(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        expr.left = rewrite(expr.left);
+        expr.right = rewrite(expr.right);
+        return expr;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        expr.right = rewrite(expr.right);
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr arg : expr.arguments) {
+            arguments.add(rewrite(arg));
+        }
+        expr.arguments = arguments;
+
+        Stmt.Function helper = helpers.get(expr.name);
+        if (caller == null || helper == null || expr.slot < 0 || expr.depth != frames - 1
+                || arguments.size() != helper.params.size()) {
+            return expr;
+        }
+        for (Expr arg : arguments) {
+            if (!certain(arg)) {
+                return expr;
+            }
+        }
+
+        sites.add(caller.name + ": " + helper.name);
+        return substitute(((Stmt.Return) helper.body.get(0)).value, helper, arguments);
+    }
+
+    // A literal, or a local of the current function that is already declared
+    private boolean certain(Expr arg) {
+        if (arg instanceof Expr.Literal) {
+            return true;
+        }
+        if (!(arg instanceof Expr.Variable)) {
+            return false;
+        }
+        Expr.Variable variable = (Expr.Variable) arg;
+        return variable.slot >= 0 && variable.depth < declared.size()
+            && declared.get(declared.size() - 1 - variable.depth).contains(variable.slot);
+    }
+
+    // Copy of the helper's expression with the arguments in place of the parameters
+    private static Expr substitute(Expr expr, Stmt.Function helper, List<Expr> arguments) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return new Expr.Binary(substitute(binary.left, helper, arguments), binary.operator,
+                    substitute(binary.right, helper, arguments));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return new Expr.Unary(unary.operator, substitute(unary.right, helper, arguments));
+        }
+        if (expr instanceof Expr.Variable) {
+            int slot = ((Expr.Variable) expr).slot;
+            for (int i = 0; i < helper.paramSlots.length; i++) {
+                if (helper.paramSlots[i] == slot) {
+                    return arguments.get(i);
+                }
+            }
+        }
+        return expr;
+    }
+}
@@ -0,0 +1,154 @@
+package madlang;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Where the input built-in reads its values: one int per line, parsed straight
+// from the bytes of a large buffer. A line that is not an int (empty, spaces,
+// out of range) and the end of the input are "Error: type mismatch", as they
+// were with Scanner.nextLine and Integer.valueOf; the bad line is consumed.
+// Lines end at \n, \r\n or \r.
+abstract class InputSource {
+
+    static final int BUFFER = 1 << 16;
+
+    // Bytes read but not parsed yet, between position and limit
+    ByteBuffer buffer;
+
+    // Bytes parsed so far
+    long consumed;
+
+    // Refills the buffer, returns false at the end of the input
+    abstract boolean fill();
+
+    // System.in, looked up on the first read so System.setIn still applies
+    static InputSource stdin() {
+        return new InputSource() {
+            private ReadableByteChannel channel;
+
+            @Override
+            boolean fill() {
+                if (channel == null) {
+                    channel = Channels.newChannel(System.in);
+                    buffer = ByteBuffer.allocate(BUFFER).flip();
+                }
+                return read(channel, buffer);
+            }
+        };
+    }
+
+    // A file, read in buffer-sized chunks
+    static InputSource file(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        ByteBuffer chunk = ByteBuffer.allocate(BUFFER).flip();
+        return new InputSource() {
+            {
+                buffer = chunk;
+            }
+
+            @Override
+            boolean fill() {
+                return read(channel, buffer);
+            }
+        };
+    }
+
+    // A file mapped into memory whole; nothing to refill
+    static InputSource mapped(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return bytes(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Text held in memory, for tests and embedding
+    static InputSource of(String text) {
+        return bytes(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static InputSource bytes(ByteBuffer bytes) {
+        return new InputSource() {
+            {
+                buffer = bytes;
+            }
+
+            @Override
+            boolean fill() {
+                return false;
+            }
+        };
+    }
+
+    // Compacts what is left and reads more behind it; read errors end the input
+    private static boolean read(ReadableByteChannel channel, ByteBuffer buffer) {
+        buffer.compact();
+        try {
+            int read = 0;
+            while (read == 0) {
+                read = channel.read(buffer);
+            }
+            return read > 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private boolean available() {
+        return (buffer != null && buffer.hasRemaining()) || (fill() && buffer.hasRemaining());
+    }
+
+    // Next byte, or -1 at the end of the input
+    private int next() {
+        if (!available()) {
+            return -1;
+        }
+        consumed++;
+        return buffer.get() & 0xff;
+    }
+
+    int readInt() {
+        int c = next();
+        if (c == -1) {
+            throw mismatch();
+        }
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') {
+            c = next();
+        }
+
+        // Accumulate negatively so Integer.MIN_VALUE fits
+        int value = 0;
+        int digits = 0;
+        boolean valid = true;
+        while (c != -1 && c != '\n' && c != '\r') {
+            int digit = c - '0';
+            if (digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10) {
+                valid = false;
+            } else if (valid) {
+                value = value * 10 - digit;
+                digits++;
+            }
+            c = next();
+        }
+        if (c == '\r' && available() && buffer.get(buffer.position()) == '\n') {
+            buffer.get();
+            consumed++;
+        }
+
+        if (!valid || digits == 0 || (!negative && value == Integer.MIN_VALUE)) {
+            throw mismatch();
+        }
+        return negative ? value : -value;
+    }
+
+    private static MadlangError mismatch() {
+        return new MadlangError("Error: type mismatch");
+    }
+}
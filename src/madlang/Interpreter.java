@@ -1,113 +1,355 @@
 package madlang;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Objects;
-import java.util.Scanner;
+import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     Environment globalEnv;
     Environment currentEnv;
-    Scanner scanner = new Scanner(System.in);
-
-    // Interface for user-defined and built in functions
+    // Where input() reads
+    InputSource source = InputSource.stdin();
+
+    // Where output() writes; flushed at the end of every run and before input()
+    OutputSink sink = OutputSink.stdout(OutputSink.Flush.FULL);
+
+    // Functions called this many times are handed to the Jit, 0 turns it off
+    int jitThreshold = Jit.THRESHOLD;
+    final Jit jit = new Jit();
+
+    // Results of the functions Purity proves pure, 0 turns memoization off
+    int memoCapacity = Memo.CAPACITY;
+    final Map<Stmt.Function, Memo> memos = new IdentityHashMap<>();
+
+    // Largest helper the Inliner substitutes, 0 turns it off; the call sites it
+    // inlined in the last program run
+    int inlineBudget = Inliner.BUDGET;
+    List<String> inlinedSites = List.of();
+
+    // Expr nodes the ConstantFolder removed from the last program run
+    int foldedNodes;
+
+    // Call sites that have looked their callee up, with their inline cache
+    // hits and misses
+    final List<Expr.Call> callSites = new ArrayList<>();
+
+    // Statements the DeadCodeEliminator removed from the last program run
+    int removedStmts;
+
+    // Loops running at most this many times are unrolled, 0 turns that off;
+    // what the LoopOptimizer did in the last program run
+    boolean optimizeLoops = true;
+    int unrollLimit = LoopOptimizer.UNROLL_LIMIT;
+    LoopOptimizer.Stats loopStats;
+
+    // Whether repeated computations within a statement list are made once; how
+    // many the CommonSubexpressionEliminator replaced in the last program run
+    boolean reuseExprs = true;
+    int reusedExprs;
+
+    // Whether identical expressions share one node once the optimizers are
+    // done; the nodes the ExprPool dropped from the last program run
+    boolean shareExprs = true;
+    int sharedNodes;
+
+    // Interface for user-defined and built in functions. Calls with up to two
+    // arguments go through call0/call1/call2 and build no argument array unless
+    // the callable only implements call(Object[])
     interface MadlangCallable {
-      Object call(List<Object> args);
+      Object[] NO_ARGS = {};
+
+      Object call(Object[] args);
+
+      default Object call0() {
+        return call(NO_ARGS);
+      }
+
+      default Object call1(Object a) {
+        return call(new Object[] {a});
+      }
+
+      default Object call2(Object a, Object b) {
+        return call(new Object[] {a, b});
+      }
     }
 
+    // Statements evaluate to a completion: NORMAL to carry on with the next
+    // statement, anything else is the value of a return on its way out
+    static final Object NORMAL = new Object();
+
     // Helper function to use visitor pattern on the body
-    void executeBlock(Stmt.Block block, Environment env) {
+    Object executeBlock(List<Stmt> statements, Environment env) {
       Environment previous = currentEnv;
 
       try {
           currentEnv = env;
-          for (Stmt stmt : block.statements) {
-              stmt.accept(this);
+          for (Stmt stmt : statements) {
+              Object completion = stmt.accept(this);
+              if (completion != NORMAL) {
+                return completion;
+              }
           }
+          return NORMAL;
       } finally {
         currentEnv = previous;
       }
     }
 
-    // Special exception to carry return value from nested visitor call
-    class ReturnException extends RuntimeException {
-      Object value;
-      ReturnException(Object value) {
-        this.value = value;
+    // Every frame the tree walk runs blocks and calls in; the Resolver's frame
+    // size when it has one (frameSize < 0 otherwise)
+    Environment newFrame(Environment parent, int frameSize) {
+      return frameSize >= 0 ? new Environment(parent, frameSize) : new Environment(parent);
+    }
+
+    // Runs a function's body in its frame
+    Object runBody(Stmt.Function function, Environment frame) {
+      Events.Call event = Events.call();
+      try {
+        Object completion = executeBlock(function.body, frame);
+        return completion == NORMAL ? null : completion;
+      } finally {
+        Events.commit(event, function);
       }
     }
 
+    // A counted loop iteration, whose body block and update run outside the
+    // visitor. Hook for Metered; nothing to do here.
+    void countedIteration() {
+    }
+
     // Nested class for user-defined functions
     class MadlangFunction implements MadlangCallable {
       Stmt.Function stmt;
       Environment closure; // environment at time the function was called (parent or global)
+      int calls; // -1 once it has been offered to the Jit
+      Jit.Context compiled;
+      final Memo memo; // null unless the function is pure
 
       public MadlangFunction(Stmt.Function stmt, Environment closure) {
         this.stmt = stmt;
         this.closure = closure;
+        this.memo = memos.get(stmt);
       }
 
       @Override
-      public Object call(List<Object> args) {
-        // Check for correct number of arguments
-        if (args.size() != stmt.params.size()) {
-            throw new RuntimeException("Error: type mismatch");
+      public Object call(Object[] args) {
+        arity(args.length);
+        return dispatch(args);
+      }
+
+      // Without a memo or compiled code the arguments go straight into the frame
+
+      @Override
+      public Object call0() {
+        arity(0);
+        if (memo != null || compiledCode()) {
+          return dispatch(NO_ARGS);
         }
+        return run(frame());
+      }
 
-        // Map value from function call to parameters
-        Environment localEnvironment = new Environment(closure);
-        for (int i = 0; i < args.size(); i++) {
-          localEnvironment.declare(stmt.params.get(i).name(), args.get(i));
+      @Override
+      public Object call1(Object a) {
+        arity(1);
+        if (memo != null || compiledCode()) {
+          return dispatch(new Object[] {a});
         }
+        Environment frame = frame();
+        bind(frame, 0, a);
+        return run(frame);
+      }
 
-        try {
-          executeBlock(new Stmt.Block(stmt.body), localEnvironment); 
-        } catch (ReturnException e) {
-            return e.value;
+      @Override
+      public Object call2(Object a, Object b) {
+        arity(2);
+        if (memo != null || compiledCode()) {
+          return dispatch(new Object[] {a, b});
         }
-        return null;
+        Environment frame = frame();
+        bind(frame, 0, a);
+        bind(frame, 1, b);
+        return run(frame);
+      }
 
+      // Check for correct number of arguments
+      private void arity(int count) {
+        if (count != stmt.params.size()) {
+          throw new MadlangError("Error: type mismatch");
+        }
       }
-    }
 
-    // Starting point of the program
-    void interpretProgram(List<Stmt> stmts) {
-      try {
-        for (Stmt stmt : stmts) {
-            stmt.accept(this);
+      private Object dispatch(Object[] args) {
+        List<Object> key = memo != null ? Memo.key(args) : null;
+        if (key == null) {
+          return invoke(args);
+        }
+        Object result = memo.get(key);
+        if (result != null || memo.containsKey(key)) {
+          memo.hits++;
+          return result;
         }
-        Object mainProgram = globalEnv.get("main");
+        memo.misses++;
+        result = invoke(args);
+        memo.put(key, result);
+        return result;
+      }
 
-        if (!(mainProgram instanceof MadlangCallable)) {
-          throw new RuntimeException("Error: unbound reference");
+      private Object invoke(Object[] args) {
+        if (compiledCode()) {
+          Object result = compiled.call(args);
+          if (result != Jit.DEOPT) {
+            return result;
+          }
         }
 
-        ((MadlangCallable) mainProgram).call(new ArrayList<>()); // Call it
-      } catch (RuntimeException e) {
-        if (e instanceof ReturnException) {
-          System.err.println("Error: unexpected return");
+        Environment frame = frame();
+        for (int i = 0; i < args.length; i++) {
+          bind(frame, i, args[i]);
+        }
+        return run(frame);
+      }
+
+      // Counts the call and hands the function to the Jit once it is hot; true
+      // when there is compiled code to try
+      private boolean compiledCode() {
+        // Memoized functions stay here: compiled self-calls would skip the memo
+        if (memo == null && calls >= 0 && jitThreshold > 0 && !interpreted && ++calls >= jitThreshold) {
+          calls = -1;
+          compiled = jit.compile(stmt, closure, this);
+        }
+        return compiled != null;
+      }
+
+      private Environment frame() {
+        return newFrame(closure, stmt.paramSlots != null ? stmt.frameSize : -1);
+      }
+
+      // Map value from function call to parameters (slots come from the Resolver)
+      private void bind(Environment frame, int i, Object value) {
+        if (stmt.paramSlots != null) {
+          frame.define(stmt.paramSlots[i], stmt.paramNames[i], value);
         } else {
-            System.err.println(e.getMessage());
+          frame.declare(stmt.paramNames[i], value);
         }
+      }
+
+      private Object run(Environment frame) {
+        return runBody(stmt, frame);
+      }
+    }
+
+    // Execution engines that can run a program behind interpretProgram
+    enum Engine {
+      TREE,     // this visitor
+      CLOSURE,  // ClosureCompiler: pre-bound executable nodes
+      BYTECODE  // BytecodeCompiler + VM: dispatch loop over int[] code
+    }
+
+    Engine engine = Engine.TREE;
+
+    // Set for runs whose functions must stay in the tree walk (see Metered)
+    boolean interpreted;
+
+    // Starting point of the program
+    void interpretProgram(List<Stmt> stmts) {
+      try {
+        run(stmts);
+      } catch (RuntimeException e) {
+        // run() has flushed the output already, so it comes before the error
+        System.err.println(e.getMessage());
         System.exit(1);
       }
     }
 
+    // Resolve, check and run a program on the selected engine. Errors propagate;
+    // running out of Java stack is reported as the call depth limit.
+    // run takes ownership of stmts: the passes rewrite its nodes in place and
+    // share them within it, so the caller must not use them elsewhere. Running
+    // the same program again is fine; it runs its optimized form.
+    void run(List<Stmt> stmts) {
+      try {
+        runProgram(stmts);
+      } catch (StackOverflowError e) {
+        throw new MadlangError("Error: call depth exceeded");
+      } finally {
+        sink.flush();
+      }
+    }
+
+    private void runProgram(List<Stmt> stmts) {
+      new Resolver().resolveProgram(stmts);
+      // Reports certain type mismatches up front; a fully typed program gets
+      // typed Variable/Call nodes, so declarations, copies and == / != stay
+      // unboxed. Reads still pass the cheap slot tag and result checks in
+      // intVariable/intCall and friends.
+      new TypeChecker().check(stmts);
+      if (inlineBudget > 0) {
+        inlinedSites = new Inliner(inlineBudget).inline(stmts);
+      }
+      foldedNodes = new ConstantFolder().fold(stmts);
+      DeadCodeEliminator eliminator = new DeadCodeEliminator();
+      stmts = eliminator.eliminate(stmts);
+      removedStmts = eliminator.removed();
+      if (optimizeLoops) {
+        loopStats = new LoopOptimizer(unrollLimit).optimize(stmts);
+      }
+      if (reuseExprs) {
+        reusedExprs = new CommonSubexpressionEliminator().eliminate(stmts);
+      }
+      if (shareExprs) {
+        sharedNodes = new ExprPool().share(stmts);
+      }
+
+      if (engine == Engine.CLOSURE) {
+        new ClosureCompiler().compile(stmts).run(globalEnv);
+        return;
+      }
+      if (engine == Engine.BYTECODE) {
+        new VM(globalEnv).run(new BytecodeCompiler().compile(stmts));
+        return;
+      }
+
+      if (memoCapacity > 0) {
+        for (Stmt.Function function : new Purity().analyze(stmts)) {
+          memos.put(function, new Memo(memoCapacity));
+        }
+      }
+
+      for (Stmt stmt : stmts) {
+          if (stmt.accept(this) != NORMAL) {
+            throw new MadlangError("Error: unexpected return");
+          }
+      }
+      Object mainProgram = globalEnv.get("main");
+
+      if (!(mainProgram instanceof MadlangCallable)) {
+        throw new MadlangError("Error: unbound reference");
+      }
+
+      ((MadlangCallable) mainProgram).call0(); // Call it
+    }
+
     Interpreter() {
       this.globalEnv = new Environment(null);
       this.currentEnv = globalEnv;
       // Handle built-in output
       globalEnv.declare("output", new MadlangCallable() {
         @Override
-        public Object call(List<Object> args) {
-          if (args.size() != 1) {
-            throw new RuntimeException("Error: type mismatch");
+        public Object call(Object[] args) {
+          if (args.length != 1) {
+            throw new MadlangError("Error: type mismatch");
           }
-          Object argument = args.get(0);
+          return call1(args[0]);
+        }
+
+        @Override
+        public Object call1(Object argument) {
           if (!(argument instanceof Integer)) {
-            throw new RuntimeException("Error: type mismatch");
+            throw new MadlangError("Error: type mismatch");
           }
-          System.out.println(argument);
+          sink.write((Integer) argument);
+          Events.output((Integer) argument);
           return null; // Doesn't matter
         }
       });
@@ -115,270 +357,455 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
       // Handle built-in input
       globalEnv.declare("input", new MadlangCallable() {
         @Override
-        public Object call(List<Object> args) {
-          if (!args.isEmpty()) {
-            throw new RuntimeException("Error: type mismatch");
+        public Object call(Object[] args) {
+          if (args.length != 0) {
+            throw new MadlangError("Error: type mismatch");
           }
+          return call0();
+        }
 
-          try {
-            String argument;
-            argument = scanner.nextLine();
-            return Integer.valueOf(argument);
-          } catch (Exception e) {
-            throw new RuntimeException("Error: type mismatch");
-          }
+        @Override
+        public Object call0() {
+          sink.flush();
+          Events.Input event = Events.input();
+          int value = source.readInt();
+          Events.commit(event, value);
+          return value;
         }
       });
 
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        currentEnv.declare(stmt.name, new MadlangFunction(stmt, currentEnv));
-        return null;
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        MadlangFunction function = new MadlangFunction(stmt, currentEnv);
+        if (stmt.slot >= 0) {
+          currentEnv.define(stmt.slot, stmt.name, function);
+        } else {
+          currentEnv.declare(stmt.name, function);
+        }
+        return NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-      Object condition = stmt.condition.accept(this);
-      if (!(condition instanceof Boolean)) {
-        throw new RuntimeException("Error: type mismatch");
+    public Object visitIfStmt(Stmt.If stmt) {
+      if (stmt.condition.evalBool(this, null)) {
+        return stmt.thenBranch.accept(this);
       }
-
-      if ((Boolean) condition) {
-        stmt.thenBranch.accept(this);
-      } else if (stmt.elseBranch != null) {
-        stmt.elseBranch.accept(this);
+      if (stmt.elseBranch != null) {
+        return stmt.elseBranch.accept(this);
       }
-      return null;
+      return NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-      throw new ReturnException(stmt.value.accept(this));
+    public Object visitReturnStmt(Stmt.Return stmt) {
+      return stmt.value.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-      executeBlock(stmt, new Environment(currentEnv));
-      return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+      return executeBlock(stmt.statements, newFrame(currentEnv, stmt.frameSize));
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-      if (stmt.initializer != null) {
-        Object expression = stmt.initializer.accept(this);
-        currentEnv.declare(stmt.name, expression);
+    public Object visitVarStmt(Stmt.Var stmt) {
+      // Keep ints and bools unboxed when the initializer's type is known
+      if (stmt.slot >= 0 && stmt.initializer != null) {
+        if (stmt.initializer.type == VarType.INT) {
+          currentEnv.defineInt(stmt.slot, stmt.name, stmt.initializer.evalInt(this, null));
+          return NORMAL;
+        }
+        if (stmt.initializer.type == VarType.BOOL) {
+          currentEnv.defineBool(stmt.slot, stmt.name, stmt.initializer.evalBool(this, null));
+          return NORMAL;
+        }
+      }
+
+      Object value = stmt.initializer != null ? stmt.initializer.accept(this) : null;
+      if (stmt.slot >= 0) {
+        currentEnv.define(stmt.slot, stmt.name, value);
       } else {
-        currentEnv.declare(stmt.name, null);
+        currentEnv.declare(stmt.name, value);
       }
-      return null;
+      return NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-      while (true) { 
-        Object condition = stmt.condition.accept(this);
-        if (!(condition instanceof Boolean)) {
-          throw new RuntimeException("Error: type mismatch");
+    public Object visitWhileStmt(Stmt.While stmt) {
+      if (stmt.counted != null && counts(stmt.counted)) {
+        return countedLoop(stmt.counted);
+      }
+      while (stmt.condition.evalBool(this, null)) {
+        Object completion = stmt.body.accept(this);
+        if (completion != NORMAL) {
+          return completion;
+        }
+      }
+      return NORMAL;
+    }
+
+    // A counted loop runs on a Java int once the induction variable and the bound
+    // hold ints; the body assigns neither, so they can't change type afterwards
+    private boolean counts(LoopOptimizer.Counted loop) {
+      Expr.Variable variable = loop.variable();
+      if (!currentEnv.ancestor(variable.depth).holdsInt(variable.slot)) {
+        return false;
+      }
+      if (loop.bound() instanceof Expr.Variable) {
+        Expr.Variable bound = (Expr.Variable) loop.bound();
+        return currentEnv.ancestor(bound.depth).holdsInt(bound.slot);
+      }
+      return true;
+    }
+
+    private Object countedLoop(LoopOptimizer.Counted loop) {
+      Expr.Variable variable = loop.variable();
+      Environment counter = currentEnv.ancestor(variable.depth);
+      int bound;
+      if (loop.bound() instanceof Expr.Variable) {
+        Expr.Variable boundVariable = (Expr.Variable) loop.bound();
+        bound = currentEnv.ancestor(boundVariable.depth).intAt(boundVariable.slot);
+      } else {
+        bound = (Integer) ((Expr.Literal) loop.bound()).value;
+      }
+      // Everything but the update, which happens here
+      List<Stmt> body = loop.body().statements;
+      body = body.subList(0, body.size() - 1);
+
+      for (int i = counter.intAt(variable.slot); LoopOptimizer.compare(loop.operator(), i, bound); ) {
+        Object completion = executeBlock(body, newFrame(currentEnv, loop.body().frameSize));
+        if (completion != NORMAL) {
+          return completion;
         }
-        if (!(Boolean) condition) break;
-        stmt.body.accept(this);
+        i += loop.step();
+        counter.setInt(variable.slot, i);
+        countedIteration();
       }
-      return null;
+      return NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
       stmt.expression.accept(this);
-      return null;
+      return NORMAL;
     }
 
     @Override
-    public Void visitAssignStmt(Stmt.Assign stmt) {
+    public Object visitAssignStmt(Stmt.Assign stmt) {
+        if (stmt.slot >= 0 && stmt.value.type == VarType.INT) {
+          int rhs = stmt.value.evalInt(this, null);
+          currentEnv.assignIntAt(stmt.depth, stmt.slot, stmt.name, rhs);
+          return NORMAL;
+        }
+        if (stmt.slot >= 0 && stmt.value.type == VarType.BOOL) {
+          boolean rhs = stmt.value.evalBool(this, null);
+          currentEnv.assignBoolAt(stmt.depth, stmt.slot, stmt.name, rhs);
+          return NORMAL;
+        }
+
         Object rhs = stmt.value.accept(this);
-        currentEnv.assign(stmt.name, rhs);
-        return null;
+        if (stmt.slot >= 0) {
+          currentEnv.assignAt(stmt.depth, stmt.slot, stmt.name, rhs);
+        } else {
+          currentEnv.assign(stmt.name, rhs);
+        }
+        return NORMAL;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        // Evaluate left and right operands, then apply the operator
-        // Handle arithmetic (+, -, *, /), comparison (==, !=, <, <=, >, >=), and logical (&&, ||) operators
-        Object lhs = expr.left.accept(this);
-
-        // AND Case
-        if (expr.operator == Operator.AND) {
-          if (!(lhs instanceof Boolean)) {
-            throw new RuntimeException("Error: type mismatch");
-          }
-
-          if (!(Boolean) lhs) {
-            return false;
-          }
+        // Arithmetic (+, -, *, /, %) yields an int; comparison (==, !=, <, <=, >, >=)
+        // and logical (&&, ||) operators yield a bool. Both are evaluated unboxed
+        // and boxed once here.
+        if (expr.type == VarType.INT) {
+          return intBinary(expr, null);
+        }
+        if (expr.type == VarType.BOOL) {
+          return boolBinary(expr, null);
+        }
 
-          Object rhs = expr.right.accept(this);
+        // Not a binary operator
+        expr.left.accept(this);
+        expr.right.accept(this);
+        throw new MadlangError("Error: type mismatch");
+    }
 
-          if (!(rhs instanceof Boolean)) {
-            throw new RuntimeException("Error: type mismatch");
-          }
-          return (Boolean) rhs;
-        }
+    @Override
+    public Object visitLiteralExpr(Expr.Literal expr) {
+        return expr.value;
+    }
 
-        // OR Case
-        if (expr.operator == Operator.OR) {
-          if (!(lhs instanceof Boolean)) {
-            throw new RuntimeException("Error: type mismatch");
-          }
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+      // Evaluate the right operand and apply the unary operator (!, -)
+      if (expr.operator == Operator.MINUS) {
+        return intUnary(expr, null);
+      }
+      if (expr.operator == Operator.NOT) {
+        return boolUnary(expr, null);
+      }
 
-          if ((Boolean) lhs) {
-            return true;
-          }
+      expr.right.accept(this);
+      throw new MadlangError("Error: type mismatch");
+    }
 
-          Object rhs = expr.right.accept(this);
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+      if (expr.slot >= 0) {
+        return currentEnv.getAt(expr.depth, expr.slot, expr.name);
+      }
+      return currentEnv.get(expr.name);
+    }
 
-          if (!(rhs instanceof Boolean)) {
-            throw new RuntimeException("Error: type mismatch");
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+      MadlangCallable callee = callee(expr);
+      List<Expr> arguments = expr.arguments;
+
+      switch (arguments.size()) {
+        case 0:
+          return callee.call0();
+        case 1:
+          return callee.call1(arguments.get(0).accept(this));
+        case 2: {
+          Object first = arguments.get(0).accept(this);
+          return callee.call2(first, arguments.get(1).accept(this));
+        }
+        default: {
+          Object[] values = new Object[arguments.size()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = arguments.get(i).accept(this);
           }
-          return (Boolean) rhs;
+          return callee.call(values);
         }
+      }
+    }
 
+    // Resolved call sites cache their callee. The cache holds while the frame
+    // the name is bound in has the same version, i.e. nothing was declared in
+    // it or rebound since. A frame is the same one at a site's depth on every
+    // run of it, so a site bound in the global frame skips the walk there.
+    private MadlangCallable callee(Expr.Call expr) {
+      if (expr.slot < 0) {
+        return callable(currentEnv.get(expr.name));
+      }
+      Environment frame = expr.cachedFrame == globalEnv ? globalEnv : currentEnv.ancestor(expr.depth);
+      if (frame == expr.cachedFrame && frame.version() == expr.cachedVersion) {
+        expr.hits++;
+        return expr.cached;
+      }
 
-        Object rhs = expr.right.accept(this);
-        switch (expr.operator) {
-          // Arithmetic Operatiors
-          case PLUS:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            } 
-            return (Integer) lhs + (Integer) rhs;
-              
-          case MINUS:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return (Integer) lhs - (Integer) rhs;
-
-          case MULTIPLY:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return (Integer) lhs * (Integer) rhs;
-
-          case DIVIDE:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            // Divide by zero
-            if ((Integer) rhs == 0) {
-              throw new RuntimeException("Error: arithmetic error");
-            }
-            return (Integer) lhs / (Integer) rhs;
-
-          case MODULO:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-                throw new RuntimeException("Error: type mismatch");
-            }
-            // Mod by zero
-            if ((Integer) rhs == 0) {
-              throw new RuntimeException("Error: arithmetic error");
-            }
-            return (Integer) lhs % (Integer) rhs;
-
-          case EQUAL:
-            if (!(lhs instanceof Integer && rhs instanceof Integer) && 
-            !(lhs instanceof Boolean && rhs instanceof Boolean)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return Objects.equals(lhs, rhs);
-
-          case NOT_EQUAL:
-            if (!(lhs instanceof Integer && rhs instanceof Integer) && 
-            !(lhs instanceof Boolean && rhs instanceof Boolean)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return !Objects.equals(lhs, rhs);
-          
-          case LESS:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return (Integer) lhs < (Integer) rhs;
-
-          case LESS_EQUAL:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return (Integer) lhs <= (Integer) rhs;
-
-          case GREATER:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return (Integer) lhs > (Integer) rhs;
-
-          case GREATER_EQUAL:
-            if (!(lhs instanceof Integer && rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
-            }
-            return (Integer) lhs >= (Integer) rhs;
-
-          default:
-            throw new RuntimeException("Error: type mismatch");
-        }
-        
+      if (expr.misses++ == 0) {
+        callSites.add(expr);
+      }
+      MadlangCallable callee = callable(currentEnv.getAt(expr.depth, expr.slot, expr.name));
+      // Only bindings of the frame itself, not the by-name fallback to a parent
+      if (frame.isDeclared(expr.slot)) {
+        expr.cachedFrame = frame;
+        expr.cachedVersion = frame.version();
+        expr.cached = callee;
+      }
+      return callee;
     }
 
-    @Override
-    public Object visitLiteralExpr(Expr.Literal expr) {
-        return expr.value;
+    private static MadlangCallable callable(Object value) {
+      if (!(value instanceof MadlangCallable)) {
+        throw new MadlangError("Error: unbound reference");
+      }
+      return (MadlangCallable) value;
     }
 
-    @Override
-    public Object visitUnaryExpr(Expr.Unary expr) {
-      // Evaluate the right operand and apply the unary operator (!, -)
-      Object rhs = expr.right.accept(this);
+    // Unboxed evaluation. Ints and bools stay Java primitives through whole
+    // expressions, conditions and assignments, and are only boxed when they cross a
+    // MadlangCallable (arguments, return values, built-ins).
 
+    int evalInt(Expr expr) {
+      return expr.evalInt(this, null);
+    }
+
+    boolean evalBool(Expr expr) {
+      return expr.evalBool(this, null);
+    }
+
+    // An operand had the wrong type. The boxed semantics evaluate both operands
+    // before checking either, so finish the pending right operand first.
+    private MadlangError mismatch(Expr pending) {
+      if (pending != null) {
+        pending.accept(this);
+      }
+      return new MadlangError("Error: type mismatch");
+    }
+
+    int intBinary(Expr.Binary expr, Expr pending) {
+      int lhs;
+      int rhs;
       switch (expr.operator) {
+        case PLUS:
+          lhs = expr.left.evalInt(this, expr.right);
+          rhs = expr.right.evalInt(this, null);
+          return lhs + rhs;
+
         case MINUS:
-          if (!(rhs instanceof Integer)) {
-              throw new RuntimeException("Error: type mismatch");
+          lhs = expr.left.evalInt(this, expr.right);
+          rhs = expr.right.evalInt(this, null);
+          return lhs - rhs;
+
+        case MULTIPLY:
+          lhs = expr.left.evalInt(this, expr.right);
+          rhs = expr.right.evalInt(this, null);
+          return lhs * rhs;
+
+        case DIVIDE:
+          lhs = expr.left.evalInt(this, expr.right);
+          rhs = expr.right.evalInt(this, null);
+          // Divide by zero
+          if (rhs == 0) {
+            throw new MadlangError("Error: arithmetic error");
           }
-          return -(Integer) rhs;
-
-        case NOT:
-          if (!(rhs instanceof Boolean)) {
-            throw new RuntimeException("Error: type mismatch");
+          return lhs / rhs;
+
+        case MODULO:
+          lhs = expr.left.evalInt(this, expr.right);
+          rhs = expr.right.evalInt(this, null);
+          // Mod by zero
+          if (rhs == 0) {
+            throw new MadlangError("Error: arithmetic error");
           }
-          return !(Boolean) rhs;
+          return lhs % rhs;
 
         default:
-          throw new RuntimeException("Error: type mismatch");
+          // Not an int: evaluate it anyway, its own errors come first
+          expr.accept(this);
+          throw mismatch(pending);
       }
+    }
+
+    boolean boolBinary(Expr.Binary expr, Expr pending) {
+      switch (expr.operator) {
+        // lhs of && and || is checked before rhs is evaluated
+        case AND:
+          return expr.left.evalBool(this, null) && expr.right.evalBool(this, null);
+
+        case OR:
+          return expr.left.evalBool(this, null) || expr.right.evalBool(this, null);
+
+        case EQUAL:
+          return equal(expr);
+
+        case NOT_EQUAL:
+          return !equal(expr);
+
+        case LESS:
+          return expr.left.evalInt(this, expr.right) < expr.right.evalInt(this, null);
 
+        case LESS_EQUAL:
+          return expr.left.evalInt(this, expr.right) <= expr.right.evalInt(this, null);
+
+        case GREATER:
+          return expr.left.evalInt(this, expr.right) > expr.right.evalInt(this, null);
+
+        case GREATER_EQUAL:
+          return expr.left.evalInt(this, expr.right) >= expr.right.evalInt(this, null);
+
+        default:
+          expr.accept(this);
+          throw mismatch(pending);
+      }
     }
 
-    @Override
-    public Object visitVariableExpr(Expr.Variable expr) {
-      return currentEnv.get(expr.name);
+    // == and != take two ints or two bools
+    private boolean equal(Expr.Binary expr) {
+      VarType type = expr.left.type != null ? expr.left.type : expr.right.type;
+      if (type == VarType.INT) {
+        return expr.left.evalInt(this, expr.right) == expr.right.evalInt(this, null);
+      }
+      if (type == VarType.BOOL) {
+        return expr.left.evalBool(this, expr.right) == expr.right.evalBool(this, null);
+      }
+
+      Object lhs = expr.left.accept(this);
+      Object rhs = expr.right.accept(this);
+      if (!(lhs instanceof Integer && rhs instanceof Integer) &&
+      !(lhs instanceof Boolean && rhs instanceof Boolean)) {
+        throw new MadlangError("Error: type mismatch");
+      }
+      return lhs.equals(rhs);
     }
 
-    @Override
-    public Object visitCallExpr(Expr.Call expr) {
-      Object funcName = currentEnv.get(expr.name);
-      
-      if (!(funcName instanceof MadlangCallable)) {
-        throw new RuntimeException("Error: unbound reference");
-      } 
+    int intLiteral(Expr.Literal expr, Expr pending) {
+      if (expr.value instanceof Integer) {
+        return (Integer) expr.value;
+      }
+      throw mismatch(pending);
+    }
 
-      List<Object> arguments = new ArrayList<>();
-      
-      for (Expr arg : expr.arguments) {
-        arguments.add(arg.accept(this));
+    boolean boolLiteral(Expr.Literal expr, Expr pending) {
+      if (expr.value instanceof Boolean) {
+        return (Boolean) expr.value;
       }
+      throw mismatch(pending);
+    }
 
-      return ((MadlangCallable) funcName).call(arguments);
-  
+    int intUnary(Expr.Unary expr, Expr pending) {
+      if (expr.operator == Operator.MINUS) {
+        return -expr.right.evalInt(this, null);
+      }
+      expr.accept(this);
+      throw mismatch(pending);
     }
 
+    boolean boolUnary(Expr.Unary expr, Expr pending) {
+      if (expr.operator == Operator.NOT) {
+        return !expr.right.evalBool(this, null);
+      }
+      expr.accept(this);
+      throw mismatch(pending);
+    }
+
+    // The slot tag check stays even for typed reads: the resolved frame may not
+    // have declared the slot yet, in which case the read falls back by name
+    int intVariable(Expr.Variable expr, Expr pending) {
+      if (expr.slot >= 0) {
+        Environment env = currentEnv.ancestor(expr.depth);
+        if (env.holdsInt(expr.slot)) {
+          return env.intAt(expr.slot);
+        }
+      }
+      Object value = visitVariableExpr(expr);
+      if (value instanceof Integer) {
+        return (Integer) value;
+      }
+      throw mismatch(pending);
+    }
+
+    boolean boolVariable(Expr.Variable expr, Expr pending) {
+      if (expr.slot >= 0) {
+        Environment env = currentEnv.ancestor(expr.depth);
+        if (env.holdsBool(expr.slot)) {
+          return env.boolAt(expr.slot);
+        }
+      }
+      Object value = visitVariableExpr(expr);
+      if (value instanceof Boolean) {
+        return (Boolean) value;
+      }
+      throw mismatch(pending);
+    }
+
+    int intCall(Expr.Call expr, Expr pending) {
+      Object value = visitCallExpr(expr);
+      if (value instanceof Integer) {
+        return (Integer) value;
+      }
+      throw mismatch(pending);
+    }
+
+    boolean boolCall(Expr.Call expr, Expr pending) {
+      Object value = visitCallExpr(expr);
+      if (value instanceof Boolean) {
+        return (Boolean) value;
+      }
+      throw mismatch(pending);
+    }
 }
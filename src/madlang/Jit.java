@@ -0,0 +1,635 @@
+package madlang;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static madlang.ClassFile.*;
+
+// Second tier for the tree-walking Interpreter. Once a MadlangFunction has been
+// called jitThreshold times its body is translated to a static JVM method in a
+// hidden class, so the JVM's own JIT can take it from there.
+//
+// Only functions that can be typed completely are compiled: every parameter,
+// local and expression is an int or a bool (both held as JVM ints), locals are
+// declared before they are read, and there are no nested functions. Variables of
+// enclosing frames and calls go through the Environment as usual; a call to the
+// function itself jumps straight to the compiled method while its name is still
+// bound to the same function. Values from outside (arguments, enclosing
+// variables, call results) are checked exactly where the Interpreter checks them,
+// so errors come out the same. Anything else, or anything that fails to load,
+// stays on the Interpreter.
+class Jit {
+
+    static final int THRESHOLD = 1000;
+
+    // Returned by an Entry when the arguments don't have the declared types; the
+    // call is then run by the Interpreter, which raises the error in its own time
+    static final Object DEOPT = new Object();
+
+    // Implemented by every generated class
+    interface Entry {
+        Object call(Context context, Object[] args);
+    }
+
+    // A compiled function bound to its closure
+    static final class Context {
+        final Entry entry;
+        final Environment closure;
+        final Object self;
+
+        Context(Entry entry, Environment closure, Object self) {
+            this.entry = entry;
+            this.closure = closure;
+            this.self = self;
+        }
+
+        Object call(Object[] args) {
+            return entry.call(this, args);
+        }
+
+        // Helpers for generated code
+
+        Object load(int depth, int slot, String name) {
+            return closure.getAt(depth, slot, name);
+        }
+
+        void assignInt(int depth, int slot, String name, int value) {
+            closure.assignIntAt(depth, slot, name, value);
+        }
+
+        void assignBool(int depth, int slot, String name, boolean value) {
+            closure.assignBoolAt(depth, slot, name, value);
+        }
+    }
+
+    static Object callable(Object callee) {
+        if (!(callee instanceof Interpreter.MadlangCallable)) {
+            throw new MadlangError("Error: unbound reference");
+        }
+        return callee;
+    }
+
+    static Object call(Object callee, Object[] args) {
+        return ((Interpreter.MadlangCallable) callee).call(args);
+    }
+
+    static MadlangError mismatch() {
+        return new MadlangError("Error: type mismatch");
+    }
+
+    static MadlangError arithmeticError() {
+        return new MadlangError("Error: arithmetic error");
+    }
+
+    // Compiled entry per function declaration, null when it can't be compiled
+    private final Map<Stmt.Function, Entry> entries = new IdentityHashMap<>();
+    // Names of the functions compiled so far, in order
+    final List<String> compiled = new ArrayList<>();
+
+    // Compiled form of the function, or null to keep interpreting it
+    Context compile(Stmt.Function function, Environment closure, Object self) {
+        if (!entries.containsKey(function)) {
+            Entry entry = null;
+            try {
+                entry = load(new Translation(function).translate());
+                compiled.add(function.name);
+            } catch (Unsupported | LinkageError | ReflectiveOperationException
+                    | IllegalStateException e) {
+                // stays on the Interpreter
+            }
+            entries.put(function, entry);
+        }
+        Entry entry = entries.get(function);
+        return entry == null ? null : new Context(entry, closure, self);
+    }
+
+    private static Entry load(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+        try {
+            return (Entry) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The function uses something the Jit doesn't translate
+    private static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final String JIT = "madlang/Jit";
+    private static final String CONTEXT = "madlang/Jit$Context";
+    private static final String ENTRY = "madlang/Jit$Entry";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INTEGER = "java/lang/Integer";
+    private static final String BOOLEAN = "java/lang/Boolean";
+
+    // A local variable of the function, in a JVM local slot
+    private static final class Local {
+        final int index;
+        final VarType type;
+        boolean declared;
+
+        Local(int index, VarType type) {
+            this.index = index;
+            this.type = type;
+        }
+    }
+
+    // Translation of one function declaration to a class
+    private static final class Translation {
+        private final Stmt.Function function;
+        private final String descriptor;
+        private final ClassFile classFile = new ClassFile("madlang/JitCode", OBJECT, ENTRY);
+        // One array per frame the Interpreter would create inside the function
+        private final List<Local[]> scopes = new ArrayList<>();
+        private ClassFile.Code code;
+        private int nextLocal;
+
+        Translation(Stmt.Function function) throws Unsupported {
+            this.function = function;
+            if (function.paramSlots == null || function.returnType == null
+                    || !TypeChecker.returns(function.body)) {
+                throw new Unsupported();
+            }
+            StringBuilder params = new StringBuilder("(L" + CONTEXT + ";");
+            for (Stmt.Parameter param : function.params) {
+                if (param.type() == null) {
+                    throw new Unsupported();
+                }
+                params.append('I');
+            }
+            descriptor = params.append(")I").toString();
+        }
+
+        byte[] translate() throws Unsupported {
+            constructor();
+            entry();
+            body();
+            return classFile.toBytes();
+        }
+
+        private void constructor() {
+            code = classFile.method(ACC_PUBLIC, "<init>", "()V");
+            code.local(ALOAD, 0);
+            code.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+            code.op(RETURN, 0);
+        }
+
+        // Object call(Context, Object[]): check and unbox the arguments, box the result
+        private void entry() {
+            code = classFile.method(ACC_PUBLIC, "call",
+                    "(L" + CONTEXT + ";[Ljava/lang/Object;)Ljava/lang/Object;");
+            ClassFile.Label deopt = code.label();
+            int params = function.params.size();
+            for (int i = 0; i < params; i++) {
+                code.local(ALOAD, 2);
+                code.iconst(i);
+                code.op(AALOAD, -1);
+                code.op(DUP, 1);
+                code.local(ASTORE, 3 + i);
+                code.type(INSTANCEOF, boxType(function.params.get(i).type()));
+                code.jump(IFEQ, deopt);
+            }
+            code.local(ALOAD, 1);
+            for (int i = 0; i < params; i++) {
+                code.local(ALOAD, 3 + i);
+                unbox(function.params.get(i).type());
+            }
+            code.invoke(INVOKESTATIC, "madlang/JitCode", "invoke", descriptor);
+            box(function.returnType);
+            code.op(ARETURN, -1);
+
+            code.mark(deopt);
+            code.field(GETSTATIC, JIT, "DEOPT", "Ljava/lang/Object;");
+            code.op(ARETURN, -1);
+        }
+
+        private void body() throws Unsupported {
+            code = classFile.method(ACC_STATIC, "invoke", descriptor);
+            Local[] frame = new Local[function.frameSize];
+            for (int i = 0; i < function.params.size(); i++) {
+                Local param = new Local(1 + i, function.params.get(i).type());
+                param.declared = true;
+                frame[function.paramSlots[i]] = param;
+            }
+            nextLocal = 1 + function.params.size();
+            scopes.add(frame);
+            statements(function.body);
+
+            // Not reached, every path returns
+            code.invoke(INVOKESTATIC, JIT, "mismatch", "()Lmadlang/MadlangError;");
+            code.op(ATHROW, -1);
+        }
+
+        private static String boxType(VarType type) {
+            return type == VarType.INT ? INTEGER : BOOLEAN;
+        }
+
+        private void unbox(VarType type) {
+            code.type(CHECKCAST, boxType(type));
+            if (type == VarType.INT) {
+                code.invoke(INVOKEVIRTUAL, INTEGER, "intValue", "()I");
+            } else {
+                code.invoke(INVOKEVIRTUAL, BOOLEAN, "booleanValue", "()Z");
+            }
+        }
+
+        private void box(VarType type) {
+            if (type == VarType.INT) {
+                code.invoke(INVOKESTATIC, INTEGER, "valueOf", "(I)Ljava/lang/Integer;");
+            } else {
+                code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+            }
+        }
+
+        // A value from outside is on the stack: unbox it as the type the
+        // TypeChecker gave it, or fail like the Interpreter's evalInt/evalBool
+        private void checked(VarType type, Expr pending) throws Unsupported {
+            ClassFile.Label ok = code.label();
+            code.op(DUP, 1);
+            code.type(INSTANCEOF, boxType(type));
+            code.jump(IFNE, ok);
+            code.op(POP, -1);
+            if (pending != null) {
+                value(pending, null);
+                code.op(POP, -1);
+            }
+            code.invoke(INVOKESTATIC, JIT, "mismatch", "()Lmadlang/MadlangError;");
+            code.op(ATHROW, -1);
+            code.mark(ok);
+            unbox(type);
+        }
+
+        // ---- Statements ----
+
+        // Vars are only translated directly in a statement list, where they are
+        // certain to run before the statements after them
+        private void statements(List<Stmt> stmts) throws Unsupported {
+            for (Stmt stmt : stmts) {
+                if (stmt instanceof Stmt.Var) {
+                    var((Stmt.Var) stmt);
+                } else {
+                    statement(stmt);
+                }
+            }
+        }
+
+        private void var(Stmt.Var stmt) throws Unsupported {
+            if (stmt.slot < 0 || stmt.initializer == null) {
+                throw new Unsupported();
+            }
+            VarType type = value(stmt.initializer, null);
+            Local[] frame = scopes.get(scopes.size() - 1);
+            Local local = frame[stmt.slot];
+            if (local == null) {
+                local = new Local(nextLocal++, type);
+                frame[stmt.slot] = local;
+            } else if (local.type != type) {
+                throw new Unsupported();
+            }
+            code.local(ISTORE, local.index);
+            local.declared = true;
+        }
+
+        private void statement(Stmt stmt) throws Unsupported {
+            if (stmt instanceof Stmt.Block) {
+                Stmt.Block block = (Stmt.Block) stmt;
+                if (block.frameSize < 0) {
+                    throw new Unsupported();
+                }
+                scopes.add(new Local[block.frameSize]);
+                statements(block.statements);
+                scopes.remove(scopes.size() - 1);
+            } else if (stmt instanceof Stmt.Expression) {
+                Expr expr = ((Stmt.Expression) stmt).expression;
+                if (expr instanceof Expr.Call) {
+                    call((Expr.Call) expr, null, null);
+                } else {
+                    value(expr, null);
+                }
+                code.op(POP, -1);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                condition(ifStmt.condition);
+                ClassFile.Label otherwise = code.label();
+                code.jump(IFEQ, otherwise);
+                statement(ifStmt.thenBranch);
+                if (ifStmt.elseBranch != null) {
+                    ClassFile.Label end = code.label();
+                    code.jump(GOTO, end);
+                    code.mark(otherwise);
+                    statement(ifStmt.elseBranch);
+                    code.mark(end);
+                } else {
+                    code.mark(otherwise);
+                }
+            } else if (stmt instanceof Stmt.Return) {
+                if (value(((Stmt.Return) stmt).value, null) != function.returnType) {
+                    throw new Unsupported();
+                }
+                code.op(IRETURN, -1);
+            } else if (stmt instanceof Stmt.Assign) {
+                assign((Stmt.Assign) stmt);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) stmt;
+                ClassFile.Label start = code.label();
+                ClassFile.Label end = code.label();
+                code.mark(start);
+                condition(loop.condition);
+                code.jump(IFEQ, end);
+                statement(loop.body);
+                code.jump(GOTO, start);
+                code.mark(end);
+            } else {
+                // Nested functions, and vars that may or may not be declared
+                throw new Unsupported();
+            }
+        }
+
+        private void condition(Expr expr) throws Unsupported {
+            if (value(expr, null) != VarType.BOOL) {
+                throw new Unsupported();
+            }
+        }
+
+        private void assign(Stmt.Assign stmt) throws Unsupported {
+            if (stmt.slot < 0) {
+                throw new Unsupported();
+            }
+            Local local = local(stmt.depth, stmt.slot);
+            if (local != null) {
+                if (value(stmt.value, null) != local.type) {
+                    throw new Unsupported();
+                }
+                code.local(ISTORE, local.index);
+                return;
+            }
+
+            code.local(ALOAD, 0);
+            code.iconst(stmt.depth - scopes.size());
+            code.iconst(stmt.slot);
+            code.ldc(stmt.name);
+            if (value(stmt.value, null) == VarType.INT) {
+                code.invoke(INVOKEVIRTUAL, CONTEXT, "assignInt", "(IILjava/lang/String;I)V");
+            } else {
+                code.invoke(INVOKEVIRTUAL, CONTEXT, "assignBool", "(IILjava/lang/String;Z)V");
+            }
+        }
+
+        // The declared local a resolved reference names, or null if it is in an
+        // enclosing frame
+        private Local local(int depth, int slot) throws Unsupported {
+            if (depth >= scopes.size()) {
+                return null;
+            }
+            Local local = scopes.get(scopes.size() - 1 - depth)[slot];
+            if (local == null || !local.declared) {
+                throw new Unsupported();
+            }
+            return local;
+        }
+
+        // ---- Expressions ----
+
+        // Pushes the value as a JVM int and returns its type. `pending` is the
+        // right operand still to be evaluated if this value turns out ill-typed.
+        private VarType value(Expr expr, Expr pending) throws Unsupported {
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (value instanceof Integer) {
+                    code.iconst((Integer) value);
+                    return VarType.INT;
+                }
+                if (value instanceof Boolean) {
+                    code.iconst((Boolean) value ? 1 : 0);
+                    return VarType.BOOL;
+                }
+                throw new Unsupported();
+            }
+            if (expr instanceof Expr.Variable) {
+                return variable((Expr.Variable) expr, pending);
+            }
+            if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call) expr;
+                if (call.type == null) {
+                    throw new Unsupported();
+                }
+                call(call, call.type, pending);
+                return call.type;
+            }
+            if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                if (unary.operator == Operator.MINUS) {
+                    operand(unary.right, null, VarType.INT);
+                    code.op(INEG, 0);
+                    return VarType.INT;
+                }
+                if (unary.operator == Operator.NOT) {
+                    operand(unary.right, null, VarType.BOOL);
+                    code.iconst(1);
+                    code.op(IXOR, -1);
+                    return VarType.BOOL;
+                }
+                throw new Unsupported();
+            }
+            return binary((Expr.Binary) expr);
+        }
+
+        private void operand(Expr expr, Expr pending, VarType type) throws Unsupported {
+            if (value(expr, pending) != type) {
+                throw new Unsupported();
+            }
+        }
+
+        private VarType variable(Expr.Variable expr, Expr pending) throws Unsupported {
+            if (expr.slot < 0) {
+                throw new Unsupported();
+            }
+            Local local = local(expr.depth, expr.slot);
+            if (local != null) {
+                code.local(ILOAD, local.index);
+                return local.type;
+            }
+            if (expr.type == null) {
+                throw new Unsupported();
+            }
+            load(expr.depth, expr.slot, expr.name);
+            checked(expr.type, pending);
+            return expr.type;
+        }
+
+        // Pushes a variable of an enclosing frame as an Object
+        private void load(int depth, int slot, String name) {
+            code.local(ALOAD, 0);
+            code.iconst(depth - scopes.size());
+            code.iconst(slot);
+            code.ldc(name);
+            code.invoke(INVOKEVIRTUAL, CONTEXT, "load", "(IILjava/lang/String;)Ljava/lang/Object;");
+        }
+
+        // Pushes the result unboxed as `type`, or as an Object when type is null
+        private void call(Expr.Call expr, VarType type, Expr pending) throws Unsupported {
+            if (expr.slot < 0 || local(expr.depth, expr.slot) != null) {
+                throw new Unsupported();
+            }
+            // The callee is looked up and checked before the arguments are evaluated
+            load(expr.depth, expr.slot, expr.name);
+            code.invoke(INVOKESTATIC, JIT, "callable", "(Ljava/lang/Object;)Ljava/lang/Object;");
+
+            ClassFile.Label generic = code.label();
+            ClassFile.Label end = code.label();
+            boolean self = expr.name.equals(function.name)
+                    && expr.depth == scopes.size() && expr.slot == function.slot
+                    && expr.arguments.size() == function.params.size()
+                    && (type == null || type == function.returnType);
+            if (self) {
+                // Still bound to this function: call the compiled method directly
+                code.op(DUP, 1);
+                code.local(ALOAD, 0);
+                code.field(GETFIELD, CONTEXT, "self", "Ljava/lang/Object;");
+                code.jump(IF_ACMPNE, generic);
+                code.op(POP, -1);
+                code.local(ALOAD, 0);
+                for (int i = 0; i < expr.arguments.size(); i++) {
+                    operand(expr.arguments.get(i), null, function.params.get(i).type());
+                }
+                code.invoke(INVOKESTATIC, "madlang/JitCode", "invoke", descriptor);
+                if (type == null) {
+                    box(function.returnType);
+                }
+                code.jump(GOTO, end);
+            }
+
+            code.mark(generic);
+            code.iconst(expr.arguments.size());
+            code.type(ANEWARRAY, OBJECT);
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                code.op(DUP, 1);
+                code.iconst(i);
+                argument(expr.arguments.get(i));
+                code.op(AASTORE, -3);
+            }
+            code.invoke(INVOKESTATIC, JIT, "call", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
+            if (type != null) {
+                checked(type, pending);
+            }
+            code.mark(end);
+        }
+
+        // Arguments are passed as they are, without a type check
+        private void argument(Expr expr) throws Unsupported {
+            if (expr instanceof Expr.Variable && ((Expr.Variable) expr).slot >= 0) {
+                Expr.Variable variable = (Expr.Variable) expr;
+                if (local(variable.depth, variable.slot) == null) {
+                    load(variable.depth, variable.slot, variable.name);
+                    return;
+                }
+            } else if (expr instanceof Expr.Call) {
+                call((Expr.Call) expr, null, null);
+                return;
+            }
+            box(value(expr, null));
+        }
+
+        private VarType binary(Expr.Binary expr) throws Unsupported {
+            switch (expr.operator) {
+              case PLUS:
+                return arithmetic(expr, IADD);
+              case MINUS:
+                return arithmetic(expr, ISUB);
+              case MULTIPLY:
+                return arithmetic(expr, IMUL);
+              case DIVIDE:
+                return arithmetic(expr, IDIV);
+              case MODULO:
+                return arithmetic(expr, IREM);
+              case LESS:
+                return compare(expr, IF_ICMPLT);
+              case LESS_EQUAL:
+                return compare(expr, IF_ICMPLE);
+              case GREATER:
+                return compare(expr, IF_ICMPGT);
+              case GREATER_EQUAL:
+                return compare(expr, IF_ICMPGE);
+              case EQUAL:
+                return equal(expr, IF_ICMPEQ);
+              case NOT_EQUAL:
+                return equal(expr, IF_ICMPNE);
+              case AND:
+              case OR:
+                return logical(expr);
+              default:
+                throw new Unsupported();
+            }
+        }
+
+        private VarType arithmetic(Expr.Binary expr, int opcode) throws Unsupported {
+            operand(expr.left, expr.right, VarType.INT);
+            operand(expr.right, null, VarType.INT);
+            if (opcode == IDIV || opcode == IREM) {
+                // Divide or mod by zero
+                ClassFile.Label ok = code.label();
+                code.op(DUP, 1);
+                code.jump(IFNE, ok);
+                code.invoke(INVOKESTATIC, JIT, "arithmeticError", "()Lmadlang/MadlangError;");
+                code.op(ATHROW, -1);
+                code.mark(ok);
+            }
+            code.op(opcode, -1);
+            return VarType.INT;
+        }
+
+        private VarType compare(Expr.Binary expr, int opcode) throws Unsupported {
+            operand(expr.left, expr.right, VarType.INT);
+            operand(expr.right, null, VarType.INT);
+            bool(opcode);
+            return VarType.BOOL;
+        }
+
+        private VarType equal(Expr.Binary expr, int opcode) throws Unsupported {
+            VarType type = value(expr.left, expr.right);
+            operand(expr.right, null, type);
+            bool(opcode);
+            return VarType.BOOL;
+        }
+
+        // Turns a two-operand int comparison into 0 or 1
+        private void bool(int opcode) {
+            ClassFile.Label yes = code.label();
+            ClassFile.Label end = code.label();
+            code.jump(opcode, yes);
+            code.iconst(0);
+            code.jump(GOTO, end);
+            code.mark(yes);
+            code.iconst(1);
+            code.mark(end);
+        }
+
+        // lhs of && and || is checked before rhs is evaluated
+        private VarType logical(Expr.Binary expr) throws Unsupported {
+            boolean and = expr.operator == Operator.AND;
+            ClassFile.Label shortCircuit = code.label();
+            ClassFile.Label end = code.label();
+            operand(expr.left, null, VarType.BOOL);
+            code.jump(and ? IFEQ : IFNE, shortCircuit);
+            operand(expr.right, null, VarType.BOOL);
+            code.jump(GOTO, end);
+            code.mark(shortCircuit);
+            code.iconst(and ? 0 : 1);
+            code.mark(end);
+            return VarType.BOOL;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package madlang;
+
+import java.nio.charset.StandardCharsets;
+
+// Splits madlang source, held as ASCII bytes, into tokens for the Parser. There
+// are no token objects: next() moves to the following token and leaves its kind,
+// position and value in fields. Identifiers are interned, so a name is the same
+// String instance everywhere in the program, and keywords are found by the same
+// table lookup.
+class Lexer {
+
+    enum Token {
+        IDENTIFIER, NUMBER,
+        FUN, IF, ELSE, WHILE, RETURN, PRINT, INT, BOOL, TRUE, FALSE,
+        LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA, COLON, SEMICOLON,
+        ASSIGN, PLUS, MINUS, STAR, SLASH, PERCENT, BANG,
+        EQUAL, NOT_EQUAL, LESS, LESS_EQUAL, GREATER, GREATER_EQUAL, AND, OR,
+        EOF
+    }
+
+    private final byte[] source;
+    private int current;
+    private int line = 1;
+    private int lineStart;
+
+    // The token next() moved to
+    Token token;
+    int start;
+    int tokenLine;
+    int tokenColumn;
+    String name;    // IDENTIFIER
+    long number;    // NUMBER, up to one past Integer.MAX_VALUE so -2147483648 parses
+
+    // Open-addressing intern table: names and, for keywords, their token
+    private String[] names = new String[256];
+    private Token[] kinds = new Token[256];
+    private int count;
+
+    Lexer(byte[] source) {
+        this.source = source;
+        keyword("fun", Token.FUN);
+        keyword("if", Token.IF);
+        keyword("else", Token.ELSE);
+        keyword("while", Token.WHILE);
+        keyword("return", Token.RETURN);
+        keyword("print", Token.PRINT);
+        keyword("int", Token.INT);
+        keyword("bool", Token.BOOL);
+        keyword("true", Token.TRUE);
+        keyword("false", Token.FALSE);
+        // The built-ins, so their names are the instances the Interpreter uses
+        keyword("input", Token.IDENTIFIER);
+        keyword("output", Token.IDENTIFIER);
+        keyword("main", Token.IDENTIFIER);
+    }
+
+    Token next() {
+        skipSpace();
+        start = current;
+        tokenLine = line;
+        tokenColumn = current - lineStart + 1;
+        if (current == source.length) {
+            return token = Token.EOF;
+        }
+        byte c = source[current++];
+        switch (c) {
+            case '(': return token = Token.LEFT_PAREN;
+            case ')': return token = Token.RIGHT_PAREN;
+            case '{': return token = Token.LEFT_BRACE;
+            case '}': return token = Token.RIGHT_BRACE;
+            case ',': return token = Token.COMMA;
+            case ':': return token = Token.COLON;
+            case ';': return token = Token.SEMICOLON;
+            case '+': return token = Token.PLUS;
+            case '-': return token = Token.MINUS;
+            case '*': return token = Token.STAR;
+            case '/': return token = Token.SLASH;
+            case '%': return token = Token.PERCENT;
+            case '=': return token = match('=') ? Token.EQUAL : Token.ASSIGN;
+            case '!': return token = match('=') ? Token.NOT_EQUAL : Token.BANG;
+            case '<': return token = match('=') ? Token.LESS_EQUAL : Token.LESS;
+            case '>': return token = match('=') ? Token.GREATER_EQUAL : Token.GREATER;
+            case '&':
+                if (match('&')) {
+                    return token = Token.AND;
+                }
+                break;
+            case '|':
+                if (match('|')) {
+                    return token = Token.OR;
+                }
+                break;
+            default:
+                if (c >= '0' && c <= '9') {
+                    return token = number(c);
+                }
+                if (identifierStart(c)) {
+                    return token = identifier();
+                }
+        }
+        throw error("unexpected character '" + (char) (c & 0xff) + "'");
+    }
+
+    // The current token as error messages quote it
+    String text() {
+        return token == Token.EOF ? "end of file" : "'" + new String(source, start, current - start, StandardCharsets.ISO_8859_1) + "'";
+    }
+
+    MadlangError error(String message) {
+        return new MadlangError("Error: syntax error at " + tokenLine + ":" + tokenColumn + ": " + message);
+    }
+
+    private boolean match(char expected) {
+        if (current < source.length && source[current] == expected) {
+            current++;
+            return true;
+        }
+        return false;
+    }
+
+    // Whitespace, // line comments and /* block comments */
+    private void skipSpace() {
+        while (current < source.length) {
+            byte c = source[current];
+            if (c == '\n') {
+                current++;
+                newLine();
+            } else if (c == ' ' || c == '\t' || c == '\r') {
+                current++;
+            } else if (c == '/' && current + 1 < source.length && source[current + 1] == '/') {
+                while (current < source.length && source[current] != '\n') {
+                    current++;
+                }
+            } else if (c == '/' && current + 1 < source.length && source[current + 1] == '*') {
+                tokenLine = line;
+                tokenColumn = current - lineStart + 1;
+                current += 2;
+                while (!(current + 1 < source.length && source[current] == '*' && source[current + 1] == '/')) {
+                    if (current + 1 >= source.length) {
+                        throw error("unterminated comment");
+                    }
+                    if (source[current++] == '\n') {
+                        newLine();
+                    }
+                }
+                current += 2;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void newLine() {
+        line++;
+        lineStart = current;
+    }
+
+    private Token number(byte first) {
+        long value = first - '0';
+        while (current < source.length && source[current] >= '0' && source[current] <= '9') {
+            value = value * 10 + (source[current++] - '0');
+            if (value > 1L + Integer.MAX_VALUE) {
+                throw error("integer literal out of range");
+            }
+        }
+        if (current < source.length && identifierStart(source[current])) {
+            throw error("unexpected character '" + (char) (source[current] & 0xff) + "'");
+        }
+        number = value;
+        return Token.NUMBER;
+    }
+
+    private Token identifier() {
+        int hash = source[start];
+        while (current < source.length && identifierPart(source[current])) {
+            hash = 31 * hash + source[current++];
+        }
+        int index = find(hash, start, current - start);
+        if (names[index] == null) {
+            name = new String(source, start, current - start, StandardCharsets.ISO_8859_1);
+            add(index, name, Token.IDENTIFIER);
+            return Token.IDENTIFIER;
+        }
+        name = names[index];
+        return kinds[index];
+    }
+
+    private static boolean identifierStart(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean identifierPart(byte c) {
+        return identifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+    // ---- Intern table ----
+
+    // Index of the name spelled by the bytes, or of the empty entry it belongs in
+    private int find(int hash, int offset, int length) {
+        int mask = names.length - 1;
+        int index = mix(hash) & mask;
+        while (names[index] != null && !spells(names[index], offset, length)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private boolean spells(String name, int offset, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(int index, String name, Token kind) {
+        names[index] = name;
+        kinds[index] = kind;
+        if (++count * 2 > names.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        Token[] oldKinds = kinds;
+        names = new String[oldNames.length * 2];
+        kinds = new Token[oldNames.length * 2];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int index = empty(oldNames[i]);
+                names[index] = oldNames[i];
+                kinds[index] = oldKinds[i];
+            }
+        }
+    }
+
+    private void keyword(String word, Token kind) {
+        add(empty(word), word, kind);
+    }
+
+    // Index of an empty entry for a name not in the table yet
+    private int empty(String name) {
+        int mask = names.length - 1;
+        int index = mix(name.hashCode()) & mask;
+        while (names[index] != null) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    // The hash is String.hashCode, which identifier() computes from the bytes;
+    // spread its high bits, which a power-of-two table would otherwise ignore
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,490 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Optimizer pass over the while loops of functions, run after the ConstantFolder:
+//   - a loop counting an int local from a literal start to a literal bound at
+//     most `unrollLimit` times is replaced by that many copies of its body,
+//   - loop-invariant subexpressions are computed once, before the loop, into a
+//     fresh local ($loop0, $loop1, ...). Only what cannot raise an error moves:
+//     typed ints and bools, literals, locals certain to be declared and never
+//     assigned in the loop, no calls, no division except by a non-zero literal.
+//     Running such an expression early, once or not at all is the same,
+//   - the other counted loops, while (i < n) { ...; i = i + c; } with i an int
+//     local assigned only by that last statement and n a literal or a local the
+//     loop never assigns, get a Counted the Interpreter runs on a Java int.
+// Only functions without nested functions are touched, so nothing but their own
+// body can assign their locals. The program is resolved again afterwards since
+// the new locals take slots.
+class LoopOptimizer implements Stmt.Visitor<Void> {
+
+    static final int UNROLL_LIMIT = 8;
+
+    // What one run did: expressions hoisted, loops unrolled and counted loops found
+    record Stats(int hoisted, int unrolled, int counted) {}
+
+    // A counted loop: the induction variable, how it compares against the bound
+    // (a literal or a variable) and its step. The last statement of the body is
+    // the update, which the Interpreter does itself.
+    record Counted(Expr.Variable variable, Operator operator, Expr bound, int step, Stmt.Block body) {}
+
+    private final int unrollLimit;
+    private int hoisted;
+    private int unrolled;
+    private int counted;
+    private int temps;
+
+    // For each frame of the function being optimized, the slots certain to be
+    // declared at this point; null outside such a function
+    private List<Set<Integer>> declared;
+
+    LoopOptimizer(int unrollLimit) {
+        this.unrollLimit = unrollLimit;
+    }
+
+    Stats optimize(List<Stmt> program) {
+        for (Stmt stmt : program) {
+            stmt.accept(this);
+        }
+        new Resolver().resolveProgram(program);
+        mark(program, 0);
+        return new Stats(hoisted, unrolled, counted);
+    }
+
+    // ---- Shapes ----
+
+    static boolean compare(Operator operator, int a, int b) {
+        switch (operator) {
+          case LESS: return a < b;
+          case LESS_EQUAL: return a <= b;
+          case GREATER: return a > b;
+          case GREATER_EQUAL: return a >= b;
+          case NOT_EQUAL: return a != b;
+          default: throw new IllegalArgumentException(operator.toString());
+        }
+    }
+
+    private static boolean comparison(Operator operator) {
+        switch (operator) {
+          case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL: case NOT_EQUAL:
+            return true;
+          default:
+            return false;
+        }
+    }
+
+    private static Integer intLiteral(Expr expr) {
+        if (expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Integer) {
+            return (Integer) ((Expr.Literal) expr).value;
+        }
+        return null;
+    }
+
+    // Frame (counted from the function's call frame) and slot of a local
+    static long address(int frame, int slot) {
+        return (long) frame << 32 | slot;
+    }
+
+    // The update of a loop shaped while (i op bound) { ...; i = i +/- c; } with
+    // i a local of the function (`frames` of its frames are open) that nothing
+    // else in the loop assigns, or null
+    private static Stmt.Assign update(Stmt.While loop, int frames) {
+        if (!(loop.condition instanceof Expr.Binary) || !(loop.body instanceof Stmt.Block)) {
+            return null;
+        }
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        List<Stmt> body = ((Stmt.Block) loop.body).statements;
+        if (!comparison(condition.operator) || !(condition.left instanceof Expr.Variable)
+                || body.isEmpty() || !(body.get(body.size() - 1) instanceof Stmt.Assign)) {
+            return null;
+        }
+        Expr.Variable variable = (Expr.Variable) condition.left;
+        Stmt.Assign update = (Stmt.Assign) body.get(body.size() - 1);
+        if (variable.slot < 0 || variable.depth >= frames || update.slot != variable.slot
+                || update.depth != variable.depth + 1 || step(update) == 0) {
+            return null;
+        }
+        List<Long> assigned = new ArrayList<>();
+        assignments(loop.body, frames, assigned);
+        long induction = address(frames - 1 - variable.depth, variable.slot);
+        return Collections.frequency(assigned, induction) == 1 ? update : null;
+    }
+
+    // c for i = i + c, -c for i = i - c, 0 for anything else
+    private static int step(Stmt.Assign update) {
+        if (!(update.value instanceof Expr.Binary)) {
+            return 0;
+        }
+        Expr.Binary value = (Expr.Binary) update.value;
+        Integer c = intLiteral(value.right);
+        if (c == null || !(value.left instanceof Expr.Variable)) {
+            return 0;
+        }
+        Expr.Variable variable = (Expr.Variable) value.left;
+        if (variable.depth != update.depth || variable.slot != update.slot) {
+            return 0;
+        }
+        if (value.operator == Operator.PLUS) {
+            return c;
+        }
+        return value.operator == Operator.MINUS ? -c : 0;
+    }
+
+    // Adds the address of every local the statement assigns or declares
+    static void assignments(Stmt stmt, int frames, List<Long> into) {
+        if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            if (assign.slot >= 0) {
+                into.add(address(frames - 1 - assign.depth, assign.slot));
+            }
+        } else if (stmt instanceof Stmt.Var) {
+            if (((Stmt.Var) stmt).slot >= 0) {
+                into.add(address(frames - 1, ((Stmt.Var) stmt).slot));
+            }
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).statements) {
+                assignments(s, frames + 1, into);
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            assignments(ifStmt.thenBranch, frames, into);
+            if (ifStmt.elseBranch != null) {
+                assignments(ifStmt.elseBranch, frames, into);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            assignments(((Stmt.While) stmt).body, frames, into);
+        }
+    }
+
+    static boolean containsFunction(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (containsFunction(stmt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsFunction(Stmt stmt) {
+        if (stmt instanceof Stmt.Function) {
+            return true;
+        }
+        if (stmt instanceof Stmt.Block) {
+            return containsFunction(((Stmt.Block) stmt).statements);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return containsFunction(ifStmt.thenBranch)
+                || (ifStmt.elseBranch != null && containsFunction(ifStmt.elseBranch));
+        }
+        if (stmt instanceof Stmt.While) {
+            return containsFunction(((Stmt.While) stmt).body);
+        }
+        return false;
+    }
+
+    // ---- Unrolling and hoisting ----
+
+    // A while loop directly in a statement list can be replaced by copies of its
+    // body, or get the locals it hoists declared in front of it
+    private List<Stmt> statements(List<Stmt> stmts) {
+        List<Stmt> result = new ArrayList<>(stmts.size());
+        for (Stmt stmt : stmts) {
+            stmt.accept(this);
+            if (declared != null && stmt instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While) stmt;
+                int trips = trips(loop, result.isEmpty() ? null : result.get(result.size() - 1));
+                if (trips >= 0) {
+                    unrolled++;
+                    for (int i = 0; i < trips; i++) {
+                        result.add(loop.body);
+                    }
+                    continue;
+                }
+                hoist(loop, result);
+            }
+            result.add(stmt);
+            if (declared != null && stmt instanceof Stmt.Var && ((Stmt.Var) stmt).slot >= 0) {
+                declared.get(declared.size() - 1).add(((Stmt.Var) stmt).slot);
+            }
+        }
+        return result;
+    }
+
+    // How many times the loop runs when it starts from the literal the statement
+    // before it gives the induction variable, or -1 when that is unknown or
+    // over the unroll limit
+    private int trips(Stmt.While loop, Stmt previous) {
+        Stmt.Assign update = unrollLimit > 0 ? update(loop, declared.size()) : null;
+        if (update == null) {
+            return -1;
+        }
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        Expr.Variable variable = (Expr.Variable) condition.left;
+        Integer bound = intLiteral(condition.right);
+
+        Integer start = null;
+        if (previous instanceof Stmt.Var && variable.depth == 0 && ((Stmt.Var) previous).slot == variable.slot) {
+            start = intLiteral(((Stmt.Var) previous).initializer);
+        } else if (previous instanceof Stmt.Assign && ((Stmt.Assign) previous).depth == variable.depth
+                && ((Stmt.Assign) previous).slot == variable.slot) {
+            start = intLiteral(((Stmt.Assign) previous).value);
+        }
+        if (bound == null || start == null) {
+            return -1;
+        }
+
+        int step = step(update);
+        int trips = 0;
+        for (int i = start; compare(condition.operator, i, bound); i += step) {
+            if (++trips > unrollLimit) {
+                return -1;
+            }
+        }
+        return trips;
+    }
+
+    // Moves the loop's invariant subexpressions into locals declared in `into`
+    private void hoist(Stmt.While loop, List<Stmt> into) {
+        List<Long> assigned = new ArrayList<>();
+        assignments(loop, declared.size(), assigned);
+        Set<Long> variant = new HashSet<>(assigned);
+        loop.condition = hoist(loop.condition, 0, variant, into);
+        hoist(loop.body, 0, variant, into);
+    }
+
+    // `inner` frames have been opened inside the loop
+    private void hoist(Stmt stmt, int inner, Set<Long> variant, List<Stmt> into) {
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt s : ((Stmt.Block) stmt).statements) {
+                hoist(s, inner + 1, variant, into);
+            }
+        } else if (stmt instanceof Stmt.Expression) {
+            Stmt.Expression expression = (Stmt.Expression) stmt;
+            expression.expression = hoist(expression.expression, inner, variant, into);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            ifStmt.condition = hoist(ifStmt.condition, inner, variant, into);
+            hoist(ifStmt.thenBranch, inner, variant, into);
+            if (ifStmt.elseBranch != null) {
+                hoist(ifStmt.elseBranch, inner, variant, into);
+            }
+        } else if (stmt instanceof Stmt.Return) {
+            Stmt.Return returnStmt = (Stmt.Return) stmt;
+            returnStmt.value = hoist(returnStmt.value, inner, variant, into);
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            if (var.initializer != null) {
+                var.initializer = hoist(var.initializer, inner, variant, into);
+            }
+        } else if (stmt instanceof Stmt.Assign) {
+            Stmt.Assign assign = (Stmt.Assign) stmt;
+            assign.value = hoist(assign.value, inner, variant, into);
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            loop.condition = hoist(loop.condition, inner, variant, into);
+            hoist(loop.body, inner, variant, into);
+        }
+    }
+
+    private Expr hoist(Expr expr, int inner, Set<Long> variant, List<Stmt> into) {
+        if ((expr instanceof Expr.Binary || expr instanceof Expr.Unary)
+                && invariant(expr, inner, variant) && readsVariable(expr)) {
+            Stmt.Var temp = new Stmt.Var("$loop" + temps++, expr.type, expr);
+            into.add(temp);
+            hoisted++;
+            Expr.Variable variable = new Expr.Variable(temp.name);
+            variable.type = expr.type;
+            return variable;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            binary.left = hoist(binary.left, inner, variant, into);
+            binary.right = hoist(binary.right, inner, variant, into);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            unary.right = hoist(unary.right, inner, variant, into);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            List<Expr> arguments = new ArrayList<>(call.arguments.size());
+            for (Expr arg : call.arguments) {
+                arguments.add(hoist(arg, inner, variant, into));
+            }
+            call.arguments = arguments;
+        }
+        return expr;
+    }
+
+    // Same value on every iteration and cannot raise an error
+    private boolean invariant(Expr expr, int inner, Set<Long> variant) {
+        if (expr instanceof Expr.Literal) {
+            return expr.type != null;
+        }
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            int frame = declared.size() - 1 - (variable.depth - inner);
+            return variable.type != null && variable.slot >= 0 && variable.depth >= inner && frame >= 0
+                && declared.get(frame).contains(variable.slot) && !variant.contains(address(frame, variable.slot));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.right.type == unary.type && invariant(unary.right, inner, variant);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return safe(binary) && invariant(binary.left, inner, variant) && invariant(binary.right, inner, variant);
+        }
+        return false;
+    }
+
+    // Operand types for which the operator cannot fail
+    static boolean safe(Expr.Binary binary) {
+        VarType left = binary.left.type;
+        VarType right = binary.right.type;
+        switch (binary.operator) {
+          case PLUS: case MINUS: case MULTIPLY:
+          case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL:
+            return left == VarType.INT && right == VarType.INT;
+          case DIVIDE: case MODULO:
+            Integer divisor = intLiteral(binary.right);
+            return left == VarType.INT && divisor != null && divisor != 0;
+          case EQUAL: case NOT_EQUAL:
+            return left != null && left == right;
+          case AND: case OR:
+            return left == VarType.BOOL && right == VarType.BOOL;
+          default:
+            return false;
+        }
+    }
+
+    private static boolean readsVariable(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return readsVariable(((Expr.Binary) expr).left) || readsVariable(((Expr.Binary) expr).right);
+        }
+        if (expr instanceof Expr.Unary) {
+            return readsVariable(((Expr.Unary) expr).right);
+        }
+        return expr instanceof Expr.Variable;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (declared != null) {
+            declared.add(new HashSet<>());
+        }
+        stmt.statements = statements(stmt.statements);
+        if (declared != null) {
+            declared.remove(declared.size() - 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        List<Set<Integer>> enclosing = declared;
+        declared = null;
+        if (!containsFunction(stmt.body) && stmt.paramSlots != null) {
+            Set<Integer> params = new HashSet<>();
+            for (int slot : stmt.paramSlots) {
+                params.add(slot);
+            }
+            declared = new ArrayList<>();
+            declared.add(params);
+        }
+        stmt.body = statements(stmt.body);
+        declared = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.body.accept(this);
+        return null;
+    }
+
+    // ---- Counted loops, once resolved again ----
+
+    // `frames` of the current function's frames are open, 0 outside a function
+    // the pass may touch
+    private void mark(List<Stmt> stmts, int frames) {
+        for (Stmt stmt : stmts) {
+            mark(stmt, frames);
+        }
+    }
+
+    private void mark(Stmt stmt, int frames) {
+        if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            mark(function.body, containsFunction(function.body) ? 0 : 1);
+        } else if (stmt instanceof Stmt.Block) {
+            mark(((Stmt.Block) stmt).statements, frames > 0 ? frames + 1 : 0);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            mark(ifStmt.thenBranch, frames);
+            if (ifStmt.elseBranch != null) {
+                mark(ifStmt.elseBranch, frames);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While loop = (Stmt.While) stmt;
+            Stmt.Assign update = frames > 0 ? update(loop, frames) : null;
+            if (update != null && loop.counted == null && invariantBound(loop, frames)) {
+                Expr.Binary condition = (Expr.Binary) loop.condition;
+                loop.counted = new Counted((Expr.Variable) condition.left, condition.operator,
+                        condition.right, step(update), (Stmt.Block) loop.body);
+                counted++;
+            }
+            mark(loop.body, frames);
+        }
+    }
+
+    // A literal, or a local of the function the loop never assigns
+    private static boolean invariantBound(Stmt.While loop, int frames) {
+        Expr bound = ((Expr.Binary) loop.condition).right;
+        if (intLiteral(bound) != null) {
+            return true;
+        }
+        if (!(bound instanceof Expr.Variable)) {
+            return false;
+        }
+        Expr.Variable variable = (Expr.Variable) bound;
+        if (variable.slot < 0 || variable.depth >= frames) {
+            return false;
+        }
+        List<Long> assigned = new ArrayList<>();
+        assignments(loop.body, frames, assigned);
+        return !assigned.contains(address(frames - 1 - variable.depth, variable.slot));
+    }
+}
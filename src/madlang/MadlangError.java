@@ -0,0 +1,12 @@
+package madlang;
+
+// A madlang run-time error ("Error: ..."). Thrown as control flow out of deep
+// evaluation and only its message is ever reported, so no stack trace is filled in.
+class MadlangError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    MadlangError(String message) {
+        super(message, null, false, false);
+        Events.error(message);
+    }
+}
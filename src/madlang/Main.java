@@ -1,6 +1,14 @@
 package madlang;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
 
 public class Main {
 	static int testsPassed = 0;
@@ -34,7 +42,133 @@ public class Main {
 			}
 	}
 
+	// Helper to resolve and run a list of top-level statements, then read a global
+	static Object runResolved(Interpreter interp, List<Stmt> program, String global) {
+			new Resolver().resolveProgram(program);
+			for (Stmt stmt : program) {
+					stmt.accept(interp);
+			}
+			return interp.globalEnv.get(global);
+	}
+
+	// Helper to run a whole program (which must define main) on one engine, then read a global
+	static Object runEngine(Interpreter.Engine engine, List<Stmt> program, String global) {
+			Interpreter interp = new Interpreter();
+			interp.engine = engine;
+			interp.run(program);
+			return interp.globalEnv.get(global);
+	}
+
+	// Helper to run a whole program with every function compiled on its first call
+	static Interpreter runJit(List<Stmt> program) {
+			Interpreter interp = new Interpreter();
+			interp.jitThreshold = 1;
+			interp.memoCapacity = 0;
+			interp.run(program);
+			return interp;
+	}
+
+	// Helper to run a program's source, returning what it output
+	static List<Integer> runSource(String source) {
+			Interpreter interp = new Interpreter();
+			OutputSink.Memory memory = new OutputSink.Memory();
+			interp.sink = memory;
+			interp.run(Parser.parse(source));
+			return memory.values();
+	}
+
+	// Loads and runs a program file. Errors go to stderr after the program's
+	// output, as in Interpreter.interpretProgram; returns the exit status.
+	static int runFile(Path file, ProgramCache cache, Path profile, boolean stats, Governor limits) {
+			int status = 0;
+			Profiler profiler = profile != null ? new Profiler() : null;
+			// Only a run that needs counting or limits pays for them
+			Metered metered = profiler != null ? profiler
+							: stats || limits.limited() ? new Metered() : null;
+			Interpreter interp = metered != null ? metered : new Interpreter();
+			if (metered != null) {
+					metered.governor = limits;
+			}
+			try {
+					List<Stmt> program;
+					if (file.toString().endsWith(AstFormat.EXTENSION)) {
+							program = AstFormat.read(file);
+					} else if (cache != null) {
+							program = cache.load(file);
+					} else {
+							program = Parser.parse(file);
+					}
+					interp.run(program);
+			} catch (RuntimeException e) {
+					System.err.println(e.getMessage());
+					status = 1;
+			} catch (IOException e) {
+					System.err.println("Error: cannot read " + file);
+					status = 1;
+			}
+			// Reports go to stderr, clear of the program's output
+			if (stats) {
+					metered.metrics.report(interp, System.err);
+			}
+			if (profiler != null) {
+					profiler.report(System.err);
+					try {
+							profiler.writeCollapsed(profile);
+					} catch (IOException e) {
+							System.err.println("Error: cannot write " + profile);
+							status = 1;
+					}
+			}
+			return status;
+	}
+
+	// Runs the program file given as the argument, or the tests when there is none:
+	//   Main [--cache DIR] [--profile STACKS] [--stats] [LIMITS] FILE
+	// FILE is madlang source, or a program in the AstFormat when it ends in .madc.
+	// With --cache, parsed sources are kept in DIR and reused while unchanged.
+	// With --profile, the run is profiled: a hot-spot report goes to stderr and
+	// the collapsed call stacks to STACKS, for flame graph tools. With --stats,
+	// the run's counters go to stderr at the end. LIMITS are any of
+	// --max-statements N, --timeout MILLIS, --max-depth N and --max-frames N.
 	public static void main(String[] args) {
+			if (args.length > 0) {
+					ProgramCache cache = null;
+					Path profile = null;
+					boolean stats = false;
+					Governor limits = new Governor();
+					int i = 0;
+					try {
+							for (; i + 1 < args.length; i++) {
+									if (args[i].equals("--stats")) {
+											stats = true;
+									} else if (i + 2 >= args.length) {
+											break;
+									} else if (args[i].equals("--cache")) {
+											cache = new ProgramCache(Path.of(args[++i]));
+									} else if (args[i].equals("--profile")) {
+											profile = Path.of(args[++i]);
+									} else if (args[i].equals("--max-statements")) {
+											limits.maxStatements = Long.parseLong(args[++i]);
+									} else if (args[i].equals("--timeout")) {
+											limits.timeoutMillis = Long.parseLong(args[++i]);
+									} else if (args[i].equals("--max-depth")) {
+											limits.maxDepth = Integer.parseInt(args[++i]);
+									} else if (args[i].equals("--max-frames")) {
+											limits.maxFrames = Integer.parseInt(args[++i]);
+									} else {
+											break;
+									}
+							}
+					} catch (NumberFormatException e) {
+							System.err.println("Error: invalid limit " + args[i]);
+							System.exit(1);
+					}
+					int status = runFile(Path.of(args[i]), cache, profile, stats, limits);
+					if (status != 0) {
+							System.exit(status);
+					}
+					return;
+			}
 
 			// -------------------------------------------------------
 			// LITERAL TESTS
@@ -420,6 +554,1093 @@ public class Main {
 							nestedInterp.visitCallExpr(new Expr.Call("outer", Arrays.asList())),
 							10);
 
+			// -------------------------------------------------------
+			// RESOLVER TESTS
+			// -------------------------------------------------------
+			System.out.println("\n--- Resolver Tests ---");
+
+			// result: int = 0; { output: int = 7; result = output; }
+			assertEqual("Resolved shadowing of output",
+							runResolved(new Interpreter(), Arrays.asList(
+											new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Block(Arrays.asList(
+															new Stmt.Var("output", VarType.INT, new Expr.Literal(7)),
+															new Stmt.Assign("result", new Expr.Variable("output"))
+											))
+							), "result"),
+							7);
+
+			// fn f(): int { return g(); } fn g(): int { return 3; } result: int = f();
+			assertEqual("Resolved forward reference to later function",
+							runResolved(new Interpreter(), Arrays.asList(
+											new Stmt.Function("f", VarType.INT, Arrays.asList(),
+															Arrays.asList(new Stmt.Return(new Expr.Call("g", Arrays.asList())))),
+											new Stmt.Function("g", VarType.INT, Arrays.asList(),
+															Arrays.asList(new Stmt.Return(new Expr.Literal(3)))),
+											new Stmt.Var("result", VarType.INT, new Expr.Call("f", Arrays.asList()))
+							), "result"),
+							3);
+
+			// x: int = 1; result: int = 0; { result = x; x: int = 2; result = result + x; }
+			assertEqual("Resolved read before inner declaration sees outer",
+							runResolved(new Interpreter(), Arrays.asList(
+											new Stmt.Var("x", VarType.INT, new Expr.Literal(1)),
+											new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Block(Arrays.asList(
+															new Stmt.Assign("result", new Expr.Variable("x")),
+															new Stmt.Var("x", VarType.INT, new Expr.Literal(2)),
+															new Stmt.Assign("result",
+																			new Expr.Binary(new Expr.Variable("result"), Operator.PLUS, new Expr.Variable("x")))
+											))
+							), "result"),
+							3);
+
+			assertError("Resolved unbound reference",
+							() -> runResolved(new Interpreter(), Arrays.asList(
+											new Stmt.Var("result", VarType.INT, new Expr.Variable("missing"))
+							), "result"),
+							"Error: unbound reference");
+
+
+			// -------------------------------------------------------
+			// UNBOXED EVALUATION TESTS
+			// -------------------------------------------------------
+			System.out.println("\n--- Unboxed Evaluation Tests ---");
+
+			// i: int = 0; sum: int = 0; while (i < 1000) { i = i + 1; sum = sum + i * 2; }
+			assertEqual("Unboxed while loop accumulates",
+							runResolved(new Interpreter(), Arrays.asList(
+											new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Var("sum", VarType.INT, new Expr.Literal(0)),
+											new Stmt.While(
+															new Expr.Binary(new Expr.Variable("i"), Operator.LESS, new Expr.Literal(1000)),
+															new Stmt.Block(Arrays.asList(
+																			new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1))),
+																			new Stmt.Assign("sum", new Expr.Binary(new Expr.Variable("sum"), Operator.PLUS,
+																							new Expr.Binary(new Expr.Variable("i"), Operator.MULTIPLY, new Expr.Literal(2))))
+															))
+											)
+							), "sum"),
+							1001000);
+
+			// count: int = 0; fn bump(): int { count = count + 1; return 0; }
+			// flag: bool = true; x: int = flag + bump();
+			Interpreter orderInterp = new Interpreter();
+			assertError("Unboxed mismatch on left operand",
+							() -> runResolved(orderInterp, Arrays.asList(
+											new Stmt.Var("count", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Function("bump", VarType.INT, Arrays.asList(), Arrays.asList(
+															new Stmt.Assign("count", new Expr.Binary(new Expr.Variable("count"), Operator.PLUS, new Expr.Literal(1))),
+															new Stmt.Return(new Expr.Literal(0)))),
+											new Stmt.Var("flag", VarType.BOOL, new Expr.Literal(true)),
+											new Stmt.Var("x", VarType.INT,
+															new Expr.Binary(new Expr.Variable("flag"), Operator.PLUS, new Expr.Call("bump", Arrays.asList())))
+							), "x"),
+							"Error: type mismatch");
+			assertEqual("Right operand still evaluated before mismatch",
+							orderInterp.globalEnv.get("count"),
+							1);
+
+			// b: bool = false; result: bool = b == !true;
+			assertEqual("Equality on unboxed bools",
+							runResolved(new Interpreter(), Arrays.asList(
+											new Stmt.Var("b", VarType.BOOL, new Expr.Literal(false)),
+											new Stmt.Var("result", VarType.BOOL,
+															new Expr.Binary(new Expr.Variable("b"), Operator.EQUAL,
+																			new Expr.Unary(Operator.NOT, new Expr.Literal(true))))
+							), "result"),
+							true);
+
+			// -------------------------------------------------------
+			// TYPE CHECKER TESTS
+			// -------------------------------------------------------
+			System.out.println("\n--- Type Checker Tests ---");
+
+			// fn fact(n: int): int { if (n <= 1) { return 1; } else { return n * fact(n - 1); } }
+			Expr.Variable factN = new Expr.Variable("n");
+			List<Stmt> typedProgram = Arrays.asList(
+							new Stmt.Function("fact", VarType.INT,
+											Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+											Arrays.asList(new Stmt.If(
+															new Expr.Binary(factN, Operator.LESS_EQUAL, new Expr.Literal(1)),
+															new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Literal(1)))),
+															new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Binary(
+																			new Expr.Variable("n"), Operator.MULTIPLY,
+																			new Expr.Call("fact", Arrays.asList(
+																							new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(1))))))))
+											))),
+							new Stmt.Var("result", VarType.INT, new Expr.Call("fact", Arrays.asList(new Expr.Literal(5)))));
+			new Resolver().resolveProgram(typedProgram);
+			assertEqual("Fully typed program is checked",
+							new TypeChecker().check(typedProgram),
+							true);
+			assertEqual("Checked variable is annotated",
+							factN.type,
+							VarType.INT);
+
+			// A mismatch that may never run, or a wrong value stored, only leaves the program unchecked
+			assertEqual("Mismatch in dead branch leaves program unchecked",
+							new TypeChecker().check(Arrays.asList(
+											new Stmt.If(new Expr.Literal(false),
+															new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Literal(true)))),
+															null))),
+							false);
+
+			assertEqual("Mismatch on declared type leaves program unchecked",
+							new TypeChecker().check(Arrays.asList(
+											new Stmt.Var("x", VarType.INT, new Expr.Literal(false)))),
+							false);
+
+			assertError("Static mismatch on certain path",
+							() -> new TypeChecker().check(Arrays.asList(
+											new Stmt.Var("x", VarType.INT, new Expr.Literal(1)),
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList(
+															new Expr.Binary(new Expr.Variable("x"), Operator.EQUAL, new Expr.Literal(1))))))),
+							"Error: type mismatch");
+
+			assertEqual("Wrong declared type still runs",
+							runSource("x : int = false; fun main() : int { output(1); return 0; }"),
+							List.of(1));
+			assertEqual("Wrong return type in dead code still runs",
+							runSource("fun bool f() { return 5; } fun main() : int { if (false) { output(f()); } output(1); return 0; }"),
+							List.of(1));
+			assertError("Earlier arithmetic error comes first",
+							() -> runSource("fun main() : int { x : int = 1 / 0; output(true); return 0; }"),
+							"Error: arithmetic error");
+			assertError("Earlier unbound reference comes first",
+							() -> runSource("fun main() : int { y = 3; output(1 + true); return 0; }"),
+							"Error: unbound reference");
+			// The first run inlines one() into main; the second must still fail the same way
+			List<Stmt> rerun = Parser.parse(
+							"fun one() : int { return 1; } fun main() : int { output(one()); y = one(); output(true); return 0; }");
+			for (int run = 1; run <= 2; run++) {
+					Interpreter rerunInterp = new Interpreter();
+					OutputSink.Memory rerunMemory = new OutputSink.Memory();
+					rerunInterp.sink = rerunMemory;
+					assertError("Same error on run " + run, () -> rerunInterp.run(rerun), "Error: unbound reference");
+					assertEqual("Same output on run " + run, rerunMemory.values(), List.of(1));
+			}
+			assertEqual("Mismatch in uncalled function still runs",
+							runSource("fun g() : int { output(true); return 0; } fun main() : int { output(1); return 0; }"),
+							List.of(1));
+
+			assertError("Static mismatch on argument count",
+							() -> new TypeChecker().check(Arrays.asList(
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList())))),
+							"Error: type mismatch");
+
+			// y: int; x: int = y + 1;  -- y may be uninitialized, so keep the run-time checks
+			assertEqual("Uninitialized read leaves program unchecked",
+							new TypeChecker().check(Arrays.asList(
+											new Stmt.Var("y", VarType.INT, null),
+											new Stmt.Var("x", VarType.INT,
+															new Expr.Binary(new Expr.Variable("y"), Operator.PLUS, new Expr.Literal(1))))),
+							false);
+
+			// -------------------------------------------------------
+			// ENGINE TESTS (every engine must agree)
+			// -------------------------------------------------------
+			System.out.println("\n--- Engine Tests ---");
+
+			for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+					// result: int = 0;
+					// fn fact(n: int): int { if (n <= 1) { return 1; } return n * fact(n - 1); }
+					// fn main(): int { i: int = 0; while (i < 3) { result = result + fact(i + 3); i = i + 1; } return 0; }
+					assertEqual(engine + ": recursion and loops",
+									runEngine(engine, Arrays.asList(
+													new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+													new Stmt.Function("fact", VarType.INT,
+																	Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+																	Arrays.asList(
+																					new Stmt.If(new Expr.Binary(new Expr.Variable("n"), Operator.LESS_EQUAL, new Expr.Literal(1)),
+																									new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Literal(1)))), null),
+																					new Stmt.Return(new Expr.Binary(new Expr.Variable("n"), Operator.MULTIPLY,
+																									new Expr.Call("fact", Arrays.asList(
+																													new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(1)))))))),
+													new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+																	new Stmt.While(new Expr.Binary(new Expr.Variable("i"), Operator.LESS, new Expr.Literal(3)),
+																					new Stmt.Block(Arrays.asList(
+																									new Stmt.Assign("result", new Expr.Binary(new Expr.Variable("result"), Operator.PLUS,
+																													new Expr.Call("fact", Arrays.asList(
+																																	new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(3)))))),
+																									new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1)))))),
+																	new Stmt.Return(new Expr.Literal(0))))
+									), "result"),
+									6 + 24 + 120);
+
+					// fn main(): int { x: int = 1 / 0; return 0; }
+					Interpreter.Engine divEngine = engine;
+					assertError(engine + ": arithmetic error",
+									() -> runEngine(divEngine, Arrays.asList(
+													new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Var("x", VarType.INT,
+																					new Expr.Binary(new Expr.Literal(1), Operator.DIVIDE, new Expr.Literal(0))),
+																	new Stmt.Return(new Expr.Literal(0))))
+									), "x"),
+									"Error: arithmetic error");
+
+					// y: int; fn main(): int { output(y + 1); return 0; }
+					assertError(engine + ": run-time type mismatch",
+									() -> runEngine(divEngine, Arrays.asList(
+													new Stmt.Var("y", VarType.INT, null),
+													new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Expression(new Expr.Call("output", Arrays.asList(
+																					new Expr.Binary(new Expr.Variable("y"), Operator.PLUS, new Expr.Literal(1))))),
+																	new Stmt.Return(new Expr.Literal(0))))
+									), "y"),
+									"Error: type mismatch");
+
+					// fn main(): int { { input: int = 1; input(); } return 0; }
+					assertError(engine + ": shadowed input is unbound as a function",
+									() -> runEngine(divEngine, Arrays.asList(
+													new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Block(Arrays.asList(
+																					new Stmt.Var("input", VarType.INT, new Expr.Literal(1)),
+																					new Stmt.Expression(new Expr.Call("input", Arrays.asList())))),
+																	new Stmt.Return(new Expr.Literal(0))))
+									), "main"),
+									"Error: unbound reference");
+
+					// result: int = 0;
+					// fn find(): int { i: int = 0; while (true) { { if (i * i > 50) { return i; } } i = i + 1; } return 0; }
+					// fn main(): int { result = find(); return 0; }
+					assertEqual(engine + ": return from inside a loop",
+									runEngine(engine, Arrays.asList(
+													new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+													new Stmt.Function("find", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+																	new Stmt.While(new Expr.Literal(true), new Stmt.Block(Arrays.asList(
+																					new Stmt.Block(Arrays.asList(
+																									new Stmt.If(new Expr.Binary(
+																													new Expr.Binary(new Expr.Variable("i"), Operator.MULTIPLY, new Expr.Variable("i")),
+																													Operator.GREATER, new Expr.Literal(50)),
+																													new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Variable("i")))), null))),
+																					new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1)))))),
+																	new Stmt.Return(new Expr.Literal(0)))),
+													new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Assign("result", new Expr.Call("find", Arrays.asList())),
+																	new Stmt.Return(new Expr.Literal(0))))
+									), "result"),
+									8);
+
+					// { return 1; } fn main(): int { return 0; }
+					assertError(engine + ": return outside a function",
+									() -> runEngine(divEngine, Arrays.asList(
+													new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Literal(1)))),
+													new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+																	new Stmt.Return(new Expr.Literal(0))))
+									), "main"),
+									"Error: unexpected return");
+			}
+
+			System.out.println("\n--- Deep Recursion Tests ---");
+
+			// result: int = 0;
+			// fn count(n: int, acc: int): int { if (n == 0) { return acc; } return count(n - 1, acc + 1); }
+			// fn main(): int { result = count(1000000, 0); return 0; }
+			assertEqual("tail calls run in constant stack",
+							runEngine(Interpreter.Engine.BYTECODE, Arrays.asList(
+											new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Function("count", VarType.INT,
+															Arrays.asList(new Stmt.Parameter("n", VarType.INT), new Stmt.Parameter("acc", VarType.INT)),
+															Arrays.asList(
+																			new Stmt.If(new Expr.Binary(new Expr.Variable("n"), Operator.EQUAL, new Expr.Literal(0)),
+																							new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Variable("acc")))), null),
+																			new Stmt.Return(new Expr.Call("count", Arrays.asList(
+																							new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(1)),
+																							new Expr.Binary(new Expr.Variable("acc"), Operator.PLUS, new Expr.Literal(1))))))),
+											new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+															new Stmt.Assign("result", new Expr.Call("count", Arrays.asList(
+																			new Expr.Literal(1000000), new Expr.Literal(0)))),
+															new Stmt.Return(new Expr.Literal(0))))
+							), "result"),
+							1000000);
+
+			// result: int = 0;
+			// fn depth(n: int): int { if (n == 0) { return 0; } return 1 + depth(n - 1); }
+			// fn main(): int { result = depth(1000000); return 0; }
+			assertEqual("deep recursion lives on the heap",
+							runEngine(Interpreter.Engine.BYTECODE, Arrays.asList(
+											new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Function("depth", VarType.INT,
+															Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+															Arrays.asList(
+																			new Stmt.If(new Expr.Binary(new Expr.Variable("n"), Operator.EQUAL, new Expr.Literal(0)),
+																							new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Literal(0)))), null),
+																			new Stmt.Return(new Expr.Binary(new Expr.Literal(1), Operator.PLUS,
+																							new Expr.Call("depth", Arrays.asList(
+																											new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(1)))))))),
+											new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+															new Stmt.Assign("result", new Expr.Call("depth", Arrays.asList(new Expr.Literal(1000000)))),
+															new Stmt.Return(new Expr.Literal(0))))
+							), "result"),
+							1000000);
+
+			assertEqual("run-time errors carry no stack trace",
+							new MadlangError("Error: type mismatch").getStackTrace().length, 0);
+
+			System.out.println("\n--- Jit Tests ---");
+
+			// result: int = 0;
+			// fn fib(n: int): int { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }
+			// fn main(): int { result = fib(20); return 0; }
+			Interpreter jitFib = runJit(Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("fib", VarType.INT,
+											Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+											Arrays.asList(
+															new Stmt.If(new Expr.Binary(new Expr.Variable("n"), Operator.LESS, new Expr.Literal(2)),
+																			new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Variable("n")))), null),
+															new Stmt.Return(new Expr.Binary(
+																			new Expr.Call("fib", Arrays.asList(
+																							new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(1)))),
+																			Operator.PLUS,
+																			new Expr.Call("fib", Arrays.asList(
+																							new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(2)))))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Assign("result", new Expr.Call("fib", Arrays.asList(new Expr.Literal(20)))),
+											new Stmt.Return(new Expr.Literal(0))))));
+			assertEqual("compiled recursion", jitFib.globalEnv.get("result"), 6765);
+			assertEqual("compiled functions", jitFib.jit.compiled, List.of("main", "fib"));
+
+			// fn div(a: int, b: int): int { return a / b; }
+			// fn main(): int { x: int = div(6, 0); return 0; }
+			assertError("compiled arithmetic error",
+							() -> runJit(Arrays.asList(
+											new Stmt.Function("div", VarType.INT,
+															Arrays.asList(new Stmt.Parameter("a", VarType.INT), new Stmt.Parameter("b", VarType.INT)),
+															Arrays.asList(new Stmt.Return(
+																			new Expr.Binary(new Expr.Variable("a"), Operator.DIVIDE, new Expr.Variable("b"))))),
+											new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+															new Stmt.Var("x", VarType.INT, new Expr.Call("div", Arrays.asList(
+																			new Expr.Literal(6), new Expr.Literal(0)))),
+															new Stmt.Return(new Expr.Literal(0)))))),
+							"Error: arithmetic error");
+
+			// y: int; fn inc(n: int): int { return n + 1; }
+			// fn main(): int { r: int = inc(y); return 0; }
+			assertError("bad argument falls back to the interpreter",
+							() -> runJit(Arrays.asList(
+											new Stmt.Var("y", VarType.INT, null),
+											new Stmt.Function("inc", VarType.INT,
+															Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+															Arrays.asList(new Stmt.Return(
+																			new Expr.Binary(new Expr.Variable("n"), Operator.PLUS, new Expr.Literal(1))))),
+											new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+															new Stmt.Var("r", VarType.INT, new Expr.Call("inc", Arrays.asList(new Expr.Variable("y")))),
+															new Stmt.Return(new Expr.Literal(0)))))),
+							"Error: type mismatch");
+
+			// result: int = 0;
+			// fn outer(n: int): int { fn inner(): int { return n; } return inner() + 1; }
+			// fn main(): int { result = outer(4); return 0; }
+			Interpreter jitNested = runJit(Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("outer", VarType.INT,
+											Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+											Arrays.asList(
+															new Stmt.Function("inner", VarType.INT, Arrays.asList(), Arrays.asList(
+																			new Stmt.Return(new Expr.Variable("n")))),
+															new Stmt.Return(new Expr.Binary(
+																			new Expr.Call("inner", Arrays.asList()), Operator.PLUS, new Expr.Literal(1))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Assign("result", new Expr.Call("outer", Arrays.asList(new Expr.Literal(4)))),
+											new Stmt.Return(new Expr.Literal(0))))));
+			assertEqual("uncompilable function stays interpreted", jitNested.globalEnv.get("result"), 5);
+			assertEqual("nested functions are not compiled", jitNested.jit.compiled, List.of("main", "inner"));
+
+			System.out.println("\n--- Memoization Tests ---");
+
+			// counter: int = 0;
+			// fn fib(n: int): int { if (n < 2) { return n; } return fib(n - 1) + fib(n - 2); }
+			// fn show(n: int): int { output(n); return n; }
+			// fn bump(n: int): int { counter = counter + n; return counter; }
+			// fn twice(n: int): int { return fib(n) + fib(n); }
+			// fn main(): int { counter = fib(25); return 0; }
+			Stmt.Function memoFib = new Stmt.Function("fib", VarType.INT,
+							Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+							Arrays.asList(
+											new Stmt.If(new Expr.Binary(new Expr.Variable("n"), Operator.LESS, new Expr.Literal(2)),
+															new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Variable("n")))), null),
+											new Stmt.Return(new Expr.Binary(
+															new Expr.Call("fib", Arrays.asList(
+																			new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(1)))),
+															Operator.PLUS,
+															new Expr.Call("fib", Arrays.asList(
+																			new Expr.Binary(new Expr.Variable("n"), Operator.MINUS, new Expr.Literal(2))))))));
+			Stmt.Function memoShow = new Stmt.Function("show", VarType.INT,
+							Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+							Arrays.asList(
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Variable("n")))),
+											new Stmt.Return(new Expr.Variable("n"))));
+			Stmt.Function memoBump = new Stmt.Function("bump", VarType.INT,
+							Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+							Arrays.asList(
+											new Stmt.Assign("counter", new Expr.Binary(new Expr.Variable("counter"), Operator.PLUS, new Expr.Variable("n"))),
+											new Stmt.Return(new Expr.Variable("counter"))));
+			Stmt.Function memoTwice = new Stmt.Function("twice", VarType.INT,
+							Arrays.asList(new Stmt.Parameter("n", VarType.INT)),
+							Arrays.asList(new Stmt.Return(new Expr.Binary(
+											new Expr.Call("fib", Arrays.asList(new Expr.Variable("n"))), Operator.PLUS,
+											new Expr.Call("fib", Arrays.asList(new Expr.Variable("n")))))));
+			List<Stmt> memoProgram = Arrays.asList(
+							new Stmt.Var("counter", VarType.INT, new Expr.Literal(0)),
+							memoFib, memoShow, memoBump, memoTwice,
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Assign("counter", new Expr.Call("fib", Arrays.asList(new Expr.Literal(25)))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			new Resolver().resolveProgram(memoProgram);
+			assertEqual("pure functions",
+							new Purity().analyze(memoProgram).stream().map(f -> f.name).sorted().toList(),
+							List.of("fib", "twice"));
+
+			Interpreter memoInterp = new Interpreter();
+			memoInterp.run(memoProgram);
+			assertEqual("memoized result", memoInterp.globalEnv.get("counter"), 75025);
+			assertEqual("one miss per distinct argument", memoInterp.memos.get(memoFib).misses, 26L);
+			assertEqual("repeated arguments hit", memoInterp.memos.get(memoFib).hits, 23L);
+
+			Memo lru = new Memo(2);
+			lru.put(List.of(1), 1);
+			lru.put(List.of(2), 2);
+			lru.get(List.of(1));
+			lru.put(List.of(3), 3);
+			assertEqual("least recently used entry is evicted", lru.keySet(), Set.of(List.of(1), List.of(3)));
+
+			System.out.println("\n--- Constant Folding Tests ---");
+
+			// x: int = 1 + 4 * 3; y: int = x * 1 + 0; ok: bool = !!(x > 2) && true;
+			// fn main(): int { return 0; }
+			Interpreter foldInterp = new Interpreter();
+			foldInterp.run(Arrays.asList(
+							new Stmt.Var("x", VarType.INT, new Expr.Binary(new Expr.Literal(1), Operator.PLUS,
+											new Expr.Binary(new Expr.Literal(4), Operator.MULTIPLY, new Expr.Literal(3)))),
+							new Stmt.Var("y", VarType.INT, new Expr.Binary(
+											new Expr.Binary(new Expr.Variable("x"), Operator.MULTIPLY, new Expr.Literal(1)),
+											Operator.PLUS, new Expr.Literal(0))),
+							new Stmt.Var("ok", VarType.BOOL, new Expr.Binary(
+											new Expr.Unary(Operator.NOT, new Expr.Unary(Operator.NOT,
+															new Expr.Binary(new Expr.Variable("x"), Operator.GREATER, new Expr.Literal(2)))),
+											Operator.AND, new Expr.Literal(true))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Return(new Expr.Literal(0))))));
+			assertEqual("folded values", Arrays.asList(foldInterp.globalEnv.get("x"), foldInterp.globalEnv.get("y"),
+							foldInterp.globalEnv.get("ok")), Arrays.asList(13, 13, true));
+			assertEqual("eliminated nodes", foldInterp.foldedNodes, 4 + 4 + 4);
+
+			// x: int = 1 / 0; b: int = true + 0; c: bool = -false == 1;
+			assertEqual("errors are not folded away", new ConstantFolder().fold(Arrays.asList(
+							new Stmt.Var("x", VarType.INT, new Expr.Binary(new Expr.Literal(1), Operator.DIVIDE, new Expr.Literal(0))),
+							new Stmt.Var("b", VarType.INT, new Expr.Binary(new Expr.Literal(true), Operator.PLUS, new Expr.Literal(0))),
+							new Stmt.Var("c", VarType.BOOL, new Expr.Binary(
+											new Expr.Unary(Operator.MINUS, new Expr.Literal(false)), Operator.EQUAL, new Expr.Literal(1))))),
+							0);
+
+			// fn main(): int { if (false && 1 / 0 == 1) { output(1); } return 0; }
+			assertEqual("short circuit folds the right operand away", new ConstantFolder().fold(Arrays.asList(
+							new Stmt.If(new Expr.Binary(new Expr.Literal(false), Operator.AND,
+											new Expr.Binary(new Expr.Binary(new Expr.Literal(1), Operator.DIVIDE, new Expr.Literal(0)),
+															Operator.EQUAL, new Expr.Literal(1))),
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Literal(1)))), null))),
+							6);
+
+			System.out.println("\n--- Inlining Tests ---");
+
+			// result: int = 0;
+			// fn square(x: int): int { return x * x; }
+			// fn neg(x: int): int { return -x; }
+			// fn main(): int { a: int = -7; result = square(a) + neg(3);
+			//                  { square: int = 2; result = result + neg(square); } return 0; }
+			List<Stmt> inlineProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("square", VarType.INT, Arrays.asList(new Stmt.Parameter("x", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Binary(new Expr.Variable("x"), Operator.MULTIPLY, new Expr.Variable("x"))))),
+							new Stmt.Function("neg", VarType.INT, Arrays.asList(new Stmt.Parameter("x", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Unary(Operator.MINUS, new Expr.Variable("x"))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("a", VarType.INT, new Expr.Unary(Operator.MINUS, new Expr.Literal(7))),
+											new Stmt.Assign("result", new Expr.Binary(
+															new Expr.Call("square", Arrays.asList(new Expr.Variable("a"))), Operator.PLUS,
+															new Expr.Call("neg", Arrays.asList(new Expr.Literal(3))))),
+											new Stmt.Block(Arrays.asList(
+															new Stmt.Var("square", VarType.INT, new Expr.Literal(2)),
+															new Stmt.Assign("result", new Expr.Binary(new Expr.Variable("result"), Operator.PLUS,
+																			new Expr.Call("neg", Arrays.asList(new Expr.Variable("square"))))))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter inlineInterp = new Interpreter();
+			inlineInterp.run(inlineProgram);
+			assertEqual("inlined result", inlineInterp.globalEnv.get("result"), 49 - 3 - 2);
+			assertEqual("inlined sites", inlineInterp.inlinedSites, List.of("main: square", "main: neg", "main: neg"));
+
+			// fn twice(x: int): int { return x + x; }
+			// fn main(): int { { fn twice(x: int): int { return x; } output(twice(input())); } return 0; }
+			List<Stmt> shadowProgram = Arrays.asList(
+							new Stmt.Function("twice", VarType.INT, Arrays.asList(new Stmt.Parameter("x", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Binary(new Expr.Variable("x"), Operator.PLUS, new Expr.Variable("x"))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Block(Arrays.asList(
+															new Stmt.Function("twice", VarType.INT, Arrays.asList(new Stmt.Parameter("x", VarType.INT)),
+																			Arrays.asList(new Stmt.Return(new Expr.Variable("x")))),
+															new Stmt.Var("n", VarType.INT, new Expr.Literal(4)),
+															new Stmt.Expression(new Expr.Call("twice", Arrays.asList(new Expr.Variable("n")))))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			new Resolver().resolveProgram(shadowProgram);
+			assertEqual("shadowed helper is not inlined", new Inliner(Inliner.BUDGET).inline(shadowProgram), List.of());
+
+			// fn big(x: int): int { return x + x + x; } with a budget of 3 nodes
+			List<Stmt> budgetProgram = Arrays.asList(
+							new Stmt.Function("big", VarType.INT, Arrays.asList(new Stmt.Parameter("x", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Binary(
+															new Expr.Binary(new Expr.Variable("x"), Operator.PLUS, new Expr.Variable("x")),
+															Operator.PLUS, new Expr.Variable("x"))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Return(new Expr.Call("big", Arrays.asList(new Expr.Literal(1)))))));
+			new Resolver().resolveProgram(budgetProgram);
+			assertEqual("helpers over budget are not inlined", new Inliner(3).inline(budgetProgram), List.of());
+
+			System.out.println("\n--- Loop Optimizer Tests ---");
+
+			// total: int = 0;
+			// fn main(): int { n: int = 10; k: int = 3; s: int = 0; i: int = 0;
+			//                  while (i < n) { s = s + k * 2; i = i + 1; }
+			//                  j: int = 0; while (j < 3) { s = s + j; j = j + 1; }
+			//                  total = s + i + j; return 0; }
+			List<Stmt> loopProgram = Arrays.asList(
+							new Stmt.Var("total", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("n", VarType.INT, new Expr.Literal(10)),
+											new Stmt.Var("k", VarType.INT, new Expr.Literal(3)),
+											new Stmt.Var("s", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+											new Stmt.While(new Expr.Binary(new Expr.Variable("i"), Operator.LESS, new Expr.Variable("n")),
+															new Stmt.Block(Arrays.asList(
+																			new Stmt.Assign("s", new Expr.Binary(new Expr.Variable("s"), Operator.PLUS,
+																							new Expr.Binary(new Expr.Variable("k"), Operator.MULTIPLY, new Expr.Literal(2)))),
+																			new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1)))))),
+											new Stmt.Var("j", VarType.INT, new Expr.Literal(0)),
+											new Stmt.While(new Expr.Binary(new Expr.Variable("j"), Operator.LESS, new Expr.Literal(3)),
+															new Stmt.Block(Arrays.asList(
+																			new Stmt.Assign("s", new Expr.Binary(new Expr.Variable("s"), Operator.PLUS, new Expr.Variable("j"))),
+																			new Stmt.Assign("j", new Expr.Binary(new Expr.Variable("j"), Operator.PLUS, new Expr.Literal(1)))))),
+											new Stmt.Assign("total", new Expr.Binary(new Expr.Binary(new Expr.Variable("s"), Operator.PLUS,
+															new Expr.Variable("i")), Operator.PLUS, new Expr.Variable("j"))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter loopInterp = new Interpreter();
+			loopInterp.run(loopProgram);
+			assertEqual("optimized loops", loopInterp.globalEnv.get("total"), 60 + 3 + 10 + 3);
+			assertEqual("hoisted, unrolled, counted", loopInterp.loopStats, new LoopOptimizer.Stats(1, 1, 1));
+
+			// result: int = 0;
+			// fn find(n: int): int { i: int = 0; while (i < n) { if (i * i > 50) { return i; } i = i + 1; } return -1; }
+			// fn main(): int { result = find(100); return 0; }
+			List<Stmt> findProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("find", VarType.INT, Arrays.asList(new Stmt.Parameter("n", VarType.INT)), Arrays.asList(
+											new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+											new Stmt.While(new Expr.Binary(new Expr.Variable("i"), Operator.LESS, new Expr.Variable("n")),
+															new Stmt.Block(Arrays.asList(
+																			new Stmt.If(new Expr.Binary(new Expr.Binary(new Expr.Variable("i"), Operator.MULTIPLY,
+																							new Expr.Variable("i")), Operator.GREATER, new Expr.Literal(50)),
+																							new Stmt.Block(Arrays.asList(new Stmt.Return(new Expr.Variable("i")))), null),
+																			new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1)))))),
+											new Stmt.Return(new Expr.Unary(Operator.MINUS, new Expr.Literal(1))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Assign("result", new Expr.Call("find", Arrays.asList(new Expr.Literal(100)))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter findInterp = new Interpreter();
+			findInterp.run(findProgram);
+			assertEqual("return from a counted loop", findInterp.globalEnv.get("result"), 8);
+			assertEqual("counted loop found", findInterp.loopStats.counted(), 1);
+
+			// fn main(): int { d: int = 0; s: int = 0; i: int = 0;
+			//                  while (i < 3) { output(i); s = s + 10 / d; i = i + 1; } return 0; }
+			// 10 / d may fail, so it stays in the loop and fails after output(0)
+			List<Stmt> divideProgram = Arrays.asList(
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("d", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Var("s", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+											new Stmt.While(new Expr.Binary(new Expr.Variable("i"), Operator.LESS, new Expr.Literal(3)),
+															new Stmt.Block(Arrays.asList(
+																			new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Variable("i")))),
+																			new Stmt.Assign("s", new Expr.Binary(new Expr.Variable("s"), Operator.PLUS,
+																							new Expr.Binary(new Expr.Literal(10), Operator.DIVIDE, new Expr.Variable("d")))),
+																			new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1)))))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter divideInterp = new Interpreter();
+			assertError("division stays in the loop", () -> divideInterp.run(divideProgram), "Error: arithmetic error");
+			assertEqual("nothing hoisted", divideInterp.loopStats.hoisted(), 0);
+
+			System.out.println("\n--- Dead Code Tests ---");
+
+			// result: int = 0;
+			// fn helper(): int { return 1; }
+			// fn main(): int { dead: int = 7; x: int = 3;
+			//                  if (true) { result = x; } else { result = 0; }
+			//                  if (false) { output(1); }
+			//                  return 0; output(2); }
+			List<Stmt> deadProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("helper", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Return(new Expr.Literal(1)))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("dead", VarType.INT, new Expr.Literal(7)),
+											new Stmt.Var("x", VarType.INT, new Expr.Literal(3)),
+											new Stmt.If(new Expr.Literal(true),
+															new Stmt.Block(Arrays.asList(new Stmt.Assign("result", new Expr.Variable("x")))),
+															new Stmt.Block(Arrays.asList(new Stmt.Assign("result", new Expr.Literal(0))))),
+											new Stmt.If(new Expr.Literal(false),
+															new Stmt.Block(Arrays.asList(new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Literal(1)))))), null),
+											new Stmt.Return(new Expr.Literal(0)),
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Literal(2)))))));
+			Interpreter deadInterp = new Interpreter();
+			deadInterp.run(deadProgram);
+			assertEqual("live code still runs", deadInterp.globalEnv.get("result"), 3);
+			assertEqual("removed statements", deadInterp.removedStmts, 10);
+
+			// fn main(): int { zero: int = 0; unused: int = 1 / zero; return 0; }
+			List<Stmt> failingProgram = Arrays.asList(
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("zero", VarType.INT, new Expr.Literal(0)),
+											new Stmt.Var("unused", VarType.INT, new Expr.Binary(new Expr.Literal(1), Operator.DIVIDE, new Expr.Variable("zero"))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			assertError("unused locals that can fail are kept", () -> new Interpreter().run(failingProgram), "Error: arithmetic error");
+
+			System.out.println("\n--- Inline Cache Tests ---");
+
+			// result: int = 0;
+			// fn one(): int { x: int = 1; return x; }
+			// fn two(): int { x: int = 2; return x; }
+			// fn main(): int { i: int = 0;
+			//                  while (i < 4) { result = result * 10 + one(); if (i == 1) { one = two; } i = i + 1; }
+			//                  return 0; }
+			List<Stmt> rebindProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("one", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("x", VarType.INT, new Expr.Literal(1)),
+											new Stmt.Return(new Expr.Variable("x")))),
+							new Stmt.Function("two", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("x", VarType.INT, new Expr.Literal(2)),
+											new Stmt.Return(new Expr.Variable("x")))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Var("i", VarType.INT, new Expr.Literal(0)),
+											new Stmt.While(new Expr.Binary(new Expr.Variable("i"), Operator.LESS, new Expr.Literal(4)),
+															new Stmt.Block(Arrays.asList(
+																			new Stmt.Assign("result", new Expr.Binary(
+																							new Expr.Binary(new Expr.Variable("result"), Operator.MULTIPLY, new Expr.Literal(10)),
+																							Operator.PLUS, new Expr.Call("one", Arrays.asList()))),
+																			new Stmt.If(new Expr.Binary(new Expr.Variable("i"), Operator.EQUAL, new Expr.Literal(1)),
+																							new Stmt.Block(Arrays.asList(new Stmt.Assign("one", new Expr.Variable("two")))), null),
+																			new Stmt.Assign("i", new Expr.Binary(new Expr.Variable("i"), Operator.PLUS, new Expr.Literal(1)))))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter rebindInterp = new Interpreter();
+			rebindInterp.run(rebindProgram);
+			assertEqual("rebinding invalidates the cache", rebindInterp.globalEnv.get("result"), 1122);
+			Expr.Call oneSite = rebindInterp.callSites.get(0);
+			assertEqual("cache hits and misses", List.of(oneSite.name, oneSite.hits, oneSite.misses), List.of("one", 2L, 2L));
+
+			// fn f(): int { return 1; }
+			// fn main(): int { { result = f(); fn f(): int { return 2; } result = result * 10 + f(); } return 0; }
+			// The first call runs before the block's f is declared and reaches the global one
+			List<Stmt> shadowCallProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("f", VarType.INT, Arrays.asList(), Arrays.asList(new Stmt.Return(new Expr.Literal(1)))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Block(Arrays.asList(
+															new Stmt.Assign("result", new Expr.Call("f", Arrays.asList())),
+															new Stmt.Function("f", VarType.INT, Arrays.asList(), Arrays.asList(new Stmt.Return(new Expr.Literal(2)))),
+															new Stmt.Assign("result", new Expr.Binary(
+																			new Expr.Binary(new Expr.Variable("result"), Operator.MULTIPLY, new Expr.Literal(10)),
+																			Operator.PLUS, new Expr.Call("f", Arrays.asList()))))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter shadowCallInterp = new Interpreter();
+			shadowCallInterp.run(shadowCallProgram);
+			assertEqual("shadowed callee", shadowCallInterp.globalEnv.get("result"), 12);
+
+			System.out.println("\n--- Calling Convention Tests ---");
+
+			// fn zero(): int { return 1; } fn one(a: int): int { return a; }
+			// fn two(a: int, b: int): int { return a - b; } fn three(a: int, b: int, c: int): int { return a * b - c; }
+			// fn main(): int { result = zero() + one(20) + two(300, 0) + three(40, 100, 0); return 0; }
+			List<Stmt> arityProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("zero", VarType.INT, Arrays.asList(), Arrays.asList(new Stmt.Return(new Expr.Literal(1)))),
+							new Stmt.Function("one", VarType.INT, Arrays.asList(new Stmt.Parameter("a", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Variable("a")))),
+							new Stmt.Function("two", VarType.INT, Arrays.asList(new Stmt.Parameter("a", VarType.INT), new Stmt.Parameter("b", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Binary(new Expr.Variable("a"), Operator.MINUS, new Expr.Variable("b"))))),
+							new Stmt.Function("three", VarType.INT, Arrays.asList(new Stmt.Parameter("a", VarType.INT),
+											new Stmt.Parameter("b", VarType.INT), new Stmt.Parameter("c", VarType.INT)),
+											Arrays.asList(new Stmt.Return(new Expr.Binary(new Expr.Binary(new Expr.Variable("a"), Operator.MULTIPLY,
+															new Expr.Variable("b")), Operator.MINUS, new Expr.Variable("c"))))),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Assign("result", new Expr.Binary(new Expr.Binary(new Expr.Binary(
+															new Expr.Call("zero", Arrays.asList()), Operator.PLUS,
+															new Expr.Call("one", Arrays.asList(new Expr.Literal(20)))), Operator.PLUS,
+															new Expr.Call("two", Arrays.asList(new Expr.Literal(300), new Expr.Literal(0)))), Operator.PLUS,
+															new Expr.Call("three", Arrays.asList(new Expr.Literal(40), new Expr.Literal(100), new Expr.Literal(0))))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			Interpreter arityInterp = new Interpreter();
+			arityInterp.inlineBudget = 0;
+			arityInterp.run(arityProgram);
+			assertEqual("zero to three arguments", arityInterp.globalEnv.get("result"), 4321);
+
+			Interpreter.MadlangCallable outputCallable = (Interpreter.MadlangCallable) new Interpreter().globalEnv.get("output");
+			assertError("built-in through the array entry", () -> outputCallable.call(new Object[] {1, 2}), "Error: type mismatch");
+			assertError("user function with too many arguments", () -> ((Interpreter.MadlangCallable) arityInterp.globalEnv.get("one")).call2(1, 2),
+							"Error: type mismatch");
+
+			System.out.println("\n--- Output Sink Tests ---");
+
+			OutputSink.Memory memory = new OutputSink.Memory();
+			for (int value : new int[] {0, 7, -42, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+					memory.write(value);
+			}
+			assertEqual("ints formatted into bytes", memory.text(), "0\n7\n-42\n2147483647\n-2147483648\n");
+
+			// fn main(): int { output(1); output(2); return 1 / 0; }
+			List<Stmt> flushProgram = Arrays.asList(
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Literal(1)))),
+											new Stmt.Expression(new Expr.Call("output", Arrays.asList(new Expr.Literal(2)))),
+											new Stmt.Return(new Expr.Binary(new Expr.Literal(1), Operator.DIVIDE, new Expr.Literal(0))))));
+			Interpreter sinkInterp = new Interpreter();
+			OutputSink.Memory sinkMemory = new OutputSink.Memory();
+			sinkInterp.sink = sinkMemory;
+			assertError("error after output", () -> sinkInterp.run(flushProgram), "Error: arithmetic error");
+			assertEqual("output kept before the error", sinkMemory.values(), List.of(1, 2));
+
+			try {
+					Path file = Files.createTempFile("madlang", ".out");
+					try (OutputSink.Channel channel = OutputSink.file(file, OutputSink.Flush.LINE)) {
+							channel.write(12);
+							channel.write(-3);
+					}
+					assertEqual("file sink", Files.readString(file), "12\n-3\n");
+					Files.delete(file);
+			} catch (IOException e) {
+					assertEqual("file sink", e.getMessage(), "no error");
+			}
+
+			System.out.println("\n--- Input Source Tests ---");
+
+			InputSource lines = InputSource.of("12\n-7\r\n\n+3\r 5\n2147483648\n-2147483648");
+			assertEqual("first int", lines.readInt(), 12);
+			assertEqual("CRLF line", lines.readInt(), -7);
+			assertError("empty line", lines::readInt, "Error: type mismatch");
+			assertEqual("plus sign and CR line", lines.readInt(), 3);
+			assertError("leading space", lines::readInt, "Error: type mismatch");
+			assertError("out of range", lines::readInt, "Error: type mismatch");
+			assertEqual("smallest int without a newline", lines.readInt(), Integer.MIN_VALUE);
+			assertError("end of input", lines::readInt, "Error: type mismatch");
+
+			// fn main(): int { result = input() - input(); return 0; }
+			List<Stmt> inputProgram = Arrays.asList(
+							new Stmt.Var("result", VarType.INT, new Expr.Literal(0)),
+							new Stmt.Function("main", VarType.INT, Arrays.asList(), Arrays.asList(
+											new Stmt.Assign("result", new Expr.Binary(new Expr.Call("input", Arrays.asList()), Operator.MINUS,
+															new Expr.Call("input", Arrays.asList()))),
+											new Stmt.Return(new Expr.Literal(0)))));
+			try {
+					Path file = Files.createTempFile("madlang", ".in");
+					Files.writeString(file, "50\n8\n");
+					Interpreter inputInterp = new Interpreter();
+					inputInterp.source = InputSource.mapped(file);
+					inputInterp.run(inputProgram);
+					assertEqual("input from a mapped file", inputInterp.globalEnv.get("result"), 42);
+					Files.delete(file);
+			} catch (IOException e) {
+					assertEqual("input from a mapped file", e.getMessage(), "no error");
+			}
+
+			System.out.println("\n--- Parser Tests ---");
+
+			String source = String.join("\n",
+							"fun factorial(n : int) : int {",
+							"  if (n <= 1) { return 1; } else { return n * factorial(n - 1); }",
+							"}",
+							"fun bool odd(int n) { return n % 2 == 1; }",
+							"x : int = 10;",
+							"fun main() : int {",
+							"  output(factorial(5));",
+							"  { x : int = 20; output(x); }",
+							"  /* precedence */ output(1 + 4 * 3 - (2 - 1) - -2147483648 % 7);",
+							"  if (true || false && false) print x; else print 0;",
+							"  y : int = 3;",
+							"  while (!(y == 0) && odd(y) != false) { output(y); y = y - 2; }",
+							"  return 0;",
+							"}");
+			List<Stmt> parsed = Parser.parse(source);
+			Interpreter parsedInterp = new Interpreter();
+			OutputSink.Memory parsedMemory = new OutputSink.Memory();
+			parsedInterp.sink = parsedMemory;
+			parsedInterp.run(parsed);
+			assertEqual("parsed program output", parsedMemory.values(), List.of(120, 20, 14, 10, 3, 1));
+
+			Stmt.Var declaration = (Stmt.Var) parsed.get(2);
+			assertEqual("statement position", List.of(declaration.line, declaration.column), List.of(5, 1));
+			Stmt.If factorialIf = (Stmt.If) ((Stmt.Function) parsed.get(0)).body.get(0);
+			Expr.Binary product = (Expr.Binary) ((Stmt.Return) ((Stmt.Block) factorialIf.elseBranch).statements.get(0)).value;
+			assertEqual("expression position", List.of(product.line, product.column), List.of(2, 43));
+			assertEqual("names interned", ((Expr.Variable) product.left).name == ((Stmt.Function) parsed.get(0)).params.get(0).name(), true);
+
+			assertError("missing semicolon", () -> Parser.parse("x : int = 1"),
+							"Error: syntax error at 1:12: expected ';' but found end of file");
+			assertError("missing type", () -> Parser.parse("fun f(n) : int { return n; }"),
+							"Error: syntax error at 1:8: expected ':' but found ')'");
+			assertError("literal out of range", () -> Parser.parse("x : int = 2147483648;"),
+							"Error: syntax error at 1:11: integer literal out of range");
+			assertError("unterminated comment", () -> Parser.parse("x : int = 1;\n  /* done"),
+							"Error: syntax error at 2:3: unterminated comment");
+			assertError("stray character", () -> Parser.parse("x : int = 1 & 2;"),
+							"Error: syntax error at 1:13: unexpected character '&'");
+
+			System.out.println("\n--- Program File Tests ---");
+
+			byte[] image = AstFormat.encode(Parser.parse(source));
+			List<Stmt> loaded = AstFormat.decode(ByteBuffer.wrap(image));
+			assertEqual("encoding round-trips", Arrays.equals(AstFormat.encode(loaded), image), true);
+			Stmt.Var loadedDeclaration = (Stmt.Var) loaded.get(2);
+			assertEqual("positions kept", List.of(loadedDeclaration.line, loadedDeclaration.column), List.of(5, 1));
+			Interpreter loadedInterp = new Interpreter();
+			OutputSink.Memory loadedMemory = new OutputSink.Memory();
+			loadedInterp.sink = loadedMemory;
+			loadedInterp.run(loaded);
+			assertEqual("loaded program output", loadedMemory.values(), List.of(120, 20, 14, 10, 3, 1));
+
+			assertError("truncated file", () -> AstFormat.decode(ByteBuffer.wrap(Arrays.copyOf(image, image.length - 3))),
+							"Error: malformed program file");
+			byte[] newer = image.clone();
+			newer[5]++;
+			assertError("other format version", () -> AstFormat.decode(ByteBuffer.wrap(newer)),
+							"Error: malformed program file");
+
+			try {
+					Path directory = Files.createTempDirectory("madlang");
+					Path file = directory.resolve("program.mad");
+					Path entries = directory.resolve("cache");
+					ProgramCache cache = new ProgramCache(entries);
+					Files.writeString(file, source);
+					cache.load(file);
+					List<Stmt> cached = cache.load(file);
+					assertEqual("unchanged source served from the cache", List.of(cache.hits, cache.misses), List.of(1, 1));
+					assertEqual("cached program", Arrays.equals(AstFormat.encode(cached), image), true);
+
+					Files.writeString(file, source + "\n");
+					cache.load(file);
+					assertEqual("changed source parsed again", List.of(cache.hits, cache.misses), List.of(1, 2));
+
+					Path entry = entries.resolve(ProgramCache.key(Files.readAllBytes(file)) + AstFormat.EXTENSION);
+					Files.write(entry, new byte[] {1, 2, 3});
+					cache.load(file);
+					assertEqual("damaged entry parsed again", List.of(cache.hits, cache.misses), List.of(1, 3));
+					cache.load(file);
+					assertEqual("damaged entry replaced", List.of(cache.hits, cache.misses), List.of(2, 3));
+
+					try (Stream<Path> paths = Files.walk(directory)) {
+							paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+					}
+			} catch (IOException e) {
+					assertEqual("program cache", e.getMessage(), "no error");
+			}
+
+			System.out.println("\n--- Expr Pool Tests ---");
+
+			List<Stmt> literals = Parser.parse("x : int = 5; y : int = 5; z : int = 5000; w : int = 5000;");
+			assertEqual("small int literals shared", ((Stmt.Var) literals.get(0)).initializer == ((Stmt.Var) literals.get(1)).initializer, true);
+			assertEqual("large int literals not shared by the parser", ((Stmt.Var) literals.get(2)).initializer == ((Stmt.Var) literals.get(3)).initializer, false);
+			assertEqual("literals not shared between programs",
+							((Stmt.Var) Parser.parse("x : int = 5;").get(0)).initializer == ((Stmt.Var) literals.get(0)).initializer, false);
+			assertEqual("decoded literals not shared with the source",
+							((Stmt.Var) AstFormat.decode(ByteBuffer.wrap(AstFormat.encode(literals))).get(0)).initializer == ((Stmt.Var) literals.get(0)).initializer, false);
+
+			String pooled = String.join("\n",
+							"r : int = 0;",
+							"fun f(x : int) : int { return (x * x + 1) * (x * x + 1); }",
+							"fun g(x : bool) : bool { return !x && !x; }",
+							"fun main() : int {",
+							"  if (g(false)) { r = f(3) + f(3); }",
+							"  return 0;",
+							"}");
+			List<Stmt> pooledProgram = Parser.parse(pooled);
+			Interpreter poolInterp = new Interpreter();
+			poolInterp.inlineBudget = 0;
+			poolInterp.reuseExprs = false;
+			poolInterp.run(pooledProgram);
+			assertEqual("shared program result", poolInterp.globalEnv.get("r"), 200);
+			Expr.Binary square = (Expr.Binary) ((Stmt.Return) ((Stmt.Function) pooledProgram.get(1)).body.get(0)).value;
+			Expr.Binary both = (Expr.Binary) ((Stmt.Return) ((Stmt.Function) pooledProgram.get(2)).body.get(0)).value;
+			assertEqual("identical subtrees are one node", square.left == square.right, true);
+			assertEqual("same variable, different types kept apart",
+							((Expr.Binary) ((Expr.Binary) square.left).left).left == ((Expr.Unary) both.left).right, false);
+			assertEqual("nodes dropped", poolInterp.sharedNodes, 7);
+			for (Interpreter.Engine engine : List.of(Interpreter.Engine.CLOSURE, Interpreter.Engine.BYTECODE)) {
+					assertEqual("shared program on " + engine, runEngine(engine, Parser.parse(pooled), "r"), 200);
+			}
+
+			System.out.println("\n--- Common Subexpression Tests ---");
+
+			String repeated = String.join("\n",
+							"fun square(a : int, b : int, c : int) : int { return (a * b + c) * (a * b + c); }",
+							"fun chain(x : int, y : bool) : int {",
+							"  if (x % 3 == 0 && y) { return 1; } else if (x % 3 == 0 || !y) { return 2; }",
+							"  return 3;",
+							"}",
+							"fun killed(a : int, b : int) : int { r : int = a * b; a = a + 1; return r + a * b; }",
+							"fun divide(a : int, b : int) : int { output(a); return a / b + a / b; }",
+							"fun main() : int {",
+							"  output(square(2, 3, 4));",
+							"  output(chain(6, false));",
+							"  output(chain(7, true));",
+							"  output(killed(2, 3));",
+							"  return divide(5, 0);",
+							"}");
+			List<Stmt> repeatedProgram = Parser.parse(repeated);
+			Interpreter cseInterp = new Interpreter();
+			cseInterp.inlineBudget = 0;
+			OutputSink.Memory cseMemory = new OutputSink.Memory();
+			cseInterp.sink = cseMemory;
+			assertError("division by zero kept in order", () -> cseInterp.run(repeatedProgram), "Error: arithmetic error");
+			assertEqual("results with reused expressions", cseMemory.values(), List.of(100, 2, 3, 15, 5));
+			assertEqual("expressions reused", cseInterp.reusedExprs, 2);
+			assertEqual("computed once into a local", ((Stmt.Var) ((Stmt.Function) repeatedProgram.get(0)).body.get(0)).name, "$cse0");
+			assertEqual("assignment ends the reuse", ((Stmt.Function) repeatedProgram.get(2)).body.size(), 3);
+			assertEqual("possibly-zero divisor not reused", ((Stmt.Function) repeatedProgram.get(3)).body.size(), 2);
+
+			// bump() assigns g between the two g * a, so only a * a is reused across the call
+			Interpreter callCse = new Interpreter();
+			callCse.inlineBudget = 0;
+			OutputSink.Memory callCseMemory = new OutputSink.Memory();
+			callCse.sink = callCseMemory;
+			callCse.run(Parser.parse(String.join("\n",
+							"g : int = 1;",
+							"fun bump() : int { g = g + 10; return 0; }",
+							"fun reads(a : int) : int { x : int = g * a + a * a; y : int = bump(); return x + g * a + a * a; }",
+							"fun main() : int { output(reads(2)); return 0; }")));
+			assertEqual("global assigned by a callee not reused", callCseMemory.values(), List.of(32));
+			assertEqual("local reused across the call", callCse.reusedExprs, 1);
+
+			// -------------------------------------------------------
+			// PROFILER TESTS
+			// -------------------------------------------------------
+			System.out.println("\n--- Profiler Tests ---");
+			String profiled = String.join("\n",
+							"fun fib(n : int) : int {",
+							"  if (n < 2) { return n; }",
+							"  return fib(n - 1) + fib(n - 2);",
+							"}",
+							"fun main() : int {",
+							"  i : int = 0;",
+							"  while (i < 3) { output(fib(10)); i = i + 1; }",
+							"  return 0;",
+							"}");
+			List<Stmt> profiledProgram = Parser.parse(profiled);
+			Profiler profiler = new Profiler();
+			profiler.memoCapacity = 0;
+			OutputSink.Memory profiledMemory = new OutputSink.Memory();
+			profiler.sink = profiledMemory;
+			profiler.run(profiledProgram);
+			assertEqual("profiled run output", profiledMemory.values(), List.of(55, 55, 55));
+			assertEqual("calls counted", profiler.function("fib").calls, 3L * 177);
+			assertEqual("main called once", profiler.function("main").calls, 1L);
+			assertEqual("hottest function first", profiler.functions().get(0).function.name, "fib");
+			Stmt.Function fibStmt = (Stmt.Function) profiledProgram.get(0);
+			assertEqual("statement hits", profiler.hits(fibStmt.body.get(0)), 3L * 177);
+			Expr.Binary fibSum = (Expr.Binary) ((Stmt.Return) fibStmt.body.get(1)).value;
+			assertEqual("expression hits", profiler.hits(fibSum), 3L * 88);
+			assertEqual("hand-over counted once", profiler.hits(fibSum.left), 3L * 88);
+			assertEqual("inclusive covers self", profiler.function("main").inclusive >= profiler.function("main").self, true);
+			String stacks = profiler.collapsed();
+			assertEqual("collapsed stacks", stacks.contains("main;fib;fib;fib "), true);
+			assertEqual("collapsed stacks start at main", stacks.lines().allMatch(line -> line.startsWith("main")), true);
+			assertEqual("hot spot report", profiler.hotSpots().keySet().iterator().next().contains("2:3"), true);
+
+			// -------------------------------------------------------
+			// STATS TESTS
+			// -------------------------------------------------------
+			System.out.println("\n--- Stats Tests ---");
+			String counted = String.join("\n",
+							"fun down(n : int) : int {",
+							"  if (n == 0) { return 0; }",
+							"  return down(n - 1);",
+							"}",
+							"fun main() : int {",
+							"  x : int = input();",
+							"  output(down(x));",
+							"  output(x * 100);",
+							"  return 0;",
+							"}");
+			Metered statsInterp = new Metered();
+			statsInterp.inlineBudget = 0;
+			statsInterp.memoCapacity = 0;
+			statsInterp.source = InputSource.of("3\n");
+			statsInterp.sink = new OutputSink.Memory();
+			statsInterp.run(Parser.parse(counted));
+			assertEqual("calls", statsInterp.metrics.calls, 5L);
+			assertEqual("peak call depth", statsInterp.metrics.peakDepth, 5);
+			assertEqual("back to depth 0", statsInterp.metrics.depth, 0);
+			assertEqual("statements", statsInterp.metrics.statements, 15L);
+			assertEqual("frames", statsInterp.metrics.frames, 6L);
+			assertEqual("input bytes", statsInterp.source.consumed, 2L);
+			assertEqual("output bytes", statsInterp.sink.written(), 6L);
+			Metered failingStats = new Metered();
+			failingStats.sink = new OutputSink.Memory();
+			assertError("error run", () -> failingStats.run(Parser.parse("fun f() : int { return 1 / 0; } fun main() : int { return f(); }")),
+							"Error: arithmetic error");
+			assertEqual("depth unwound after error", failingStats.metrics.depth, 0);
+
+			// -------------------------------------------------------
+			// GOVERNOR TESTS
+			// -------------------------------------------------------
+			System.out.println("\n--- Governor Tests ---");
+			String spinning = "fun main() : int { x : int = 0; while (true) { x = x + 1; } return x; }";
+			Metered budgetInterp = new Metered();
+			budgetInterp.governor.maxStatements = 100000;
+			assertError("statement budget", () -> budgetInterp.run(Parser.parse(spinning)), "Error: statement limit exceeded");
+			assertEqual("budget overshoot is bounded",
+							budgetInterp.metrics.statements < 100000 + 4 * Governor.CHECK_INTERVAL, true);
+			Metered countedBudget = new Metered();
+			countedBudget.governor.maxStatements = 100000;
+			assertError("statement budget in a counted loop", () -> countedBudget.run(Parser.parse(
+							"fun main() : int { i : int = 0; while (i < 2000000000) { i = i + 1; } return 0; }")),
+							"Error: statement limit exceeded");
+			Metered deadlineInterp = new Metered();
+			deadlineInterp.governor.timeoutMillis = 50;
+			assertError("deadline", () -> deadlineInterp.run(Parser.parse(spinning)), "Error: time limit exceeded");
+			Metered limitedBytecode = new Metered();
+			limitedBytecode.governor.timeoutMillis = 50;
+			limitedBytecode.engine = Interpreter.Engine.BYTECODE;
+			assertError("limits on another engine", () -> limitedBytecode.run(Parser.parse(spinning)),
+							"Error: resource limits need the TREE engine, not BYTECODE");
+			assertEqual("engine left as configured", limitedBytecode.engine, Interpreter.Engine.BYTECODE);
+			Metered limitedJit = new Metered();
+			limitedJit.governor.maxStatements = 100000;
+			limitedJit.jitThreshold = 1;
+			assertError("limits keep functions interpreted", () -> limitedJit.run(Parser.parse(
+							"fun spin(n : int) : int { while (true) { n = n + 1; } return n; } fun main() : int { return spin(0); }")),
+							"Error: statement limit exceeded");
+			assertEqual("jit threshold left as configured", limitedJit.jitThreshold, 1);
+			String recursing = "fun deep(n : int) : int { return deep(n + 1) + 1; } fun main() : int { return deep(0); }";
+			Metered depthInterp = new Metered();
+			depthInterp.governor.maxDepth = 200;
+			assertError("call depth", () -> depthInterp.run(Parser.parse(recursing)), "Error: call depth exceeded");
+			assertEqual("depth limit reached exactly", depthInterp.metrics.peakDepth, 201);
+			Metered frameInterp = new Metered();
+			frameInterp.governor.maxFrames = 50;
+			assertError("live frames", () -> frameInterp.run(Parser.parse(recursing)), "Error: frame limit exceeded");
+			assertEqual("frames released", frameInterp.metrics.liveFrames, 0);
+			Interpreter overflowInterp = new Interpreter();
+			assertError("Java stack overflow", () -> overflowInterp.run(Parser.parse(recursing)), "Error: call depth exceeded");
+			Metered withinLimits = new Metered();
+			withinLimits.governor.maxStatements = 1000000;
+			withinLimits.governor.timeoutMillis = 60000;
+			withinLimits.governor.maxDepth = 100;
+			withinLimits.governor.maxFrames = 1000;
+			OutputSink.Memory limitedMemory = new OutputSink.Memory();
+			withinLimits.sink = limitedMemory;
+			withinLimits.run(Parser.parse(profiled));
+			assertEqual("program within its limits", limitedMemory.values(), List.of(55, 55, 55));
 
 			// -------------------------------------------------------
 			// TEST 1: Basic output from main
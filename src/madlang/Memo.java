@@ -0,0 +1,37 @@
+package madlang;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Results of one pure function, keyed on its argument tuple. Bounded: once full
+// the least recently used entry is evicted.
+class Memo extends LinkedHashMap<List<Object>, Object> {
+    private static final long serialVersionUID = 1L;
+
+    static final int CAPACITY = 4096;
+
+    private final int capacity;
+    long hits;
+    long misses;
+
+    Memo(int capacity) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+    // Key for the arguments, or null if they are not all ints and bools
+    static List<Object> key(Object[] args) {
+        for (Object arg : args) {
+            if (!(arg instanceof Integer) && !(arg instanceof Boolean)) {
+                return null;
+            }
+        }
+        return List.of(args);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+        return size() > capacity;
+    }
+}
@@ -0,0 +1,132 @@
+package madlang;
+
+import java.util.List;
+
+// An Interpreter that keeps Metrics on its run, for `Main --stats`, and holds
+// it to the limits of its Governor. Each statement visitor adds one to the
+// statement count. newFrame counts the frames created, executeBlock tracks the
+// live ones against the frame limit, and runBody tracks the call depth against
+// the depth limit.
+//
+// Every statement run and every call ticks: it counts down `fuel`, and every
+// Governor.CHECK_INTERVAL ticks the governor reads the metrics and the clock.
+// Compiled code does not tick, so a limited run must use the tree engine, and
+// its functions are kept from the Jit.
+class Metered extends Interpreter {
+
+    final Metrics metrics = new Metrics();
+
+    // Limits on what a run may use, and the countdown to its next check
+    Governor governor = new Governor();
+    private int fuel = Governor.CHECK_INTERVAL;
+
+    @Override
+    void run(List<Stmt> stmts) {
+        interpreted = governor.limited();
+        if (interpreted && engine != Engine.TREE) {
+            throw new MadlangError("Error: resource limits need the TREE engine, not " + engine);
+        }
+        governor.start();
+        super.run(stmts);
+    }
+
+    private void tick() {
+        if (--fuel < 0) {
+            fuel = Governor.CHECK_INTERVAL;
+            governor.check(metrics);
+        }
+    }
+
+    private void statement() {
+        metrics.statements++;
+        tick();
+    }
+
+    // ---- Frames and calls ----
+
+    @Override
+    Environment newFrame(Environment parent, int frameSize) {
+        metrics.frames++;
+        return super.newFrame(parent, frameSize);
+    }
+
+    @Override
+    Object executeBlock(List<Stmt> statements, Environment env) {
+        metrics.liveFrames++;
+        try {
+            governor.checkFrames(metrics.liveFrames);
+            return super.executeBlock(statements, env);
+        } finally {
+            metrics.liveFrames--;
+        }
+    }
+
+    @Override
+    Object runBody(Stmt.Function function, Environment frame) {
+        metrics.enter();
+        try {
+            governor.checkDepth(metrics.depth);
+            tick();
+            return super.runBody(function, frame);
+        } finally {
+            metrics.exit();
+        }
+    }
+
+    // The body block and the update
+    @Override
+    void countedIteration() {
+        metrics.statements += 2;
+        tick();
+    }
+
+    // ---- Statements ----
+
+    @Override
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        statement();
+        return super.visitBlockStmt(stmt);
+    }
+
+    @Override
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        statement();
+        return super.visitExpressionStmt(stmt);
+    }
+
+    @Override
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        statement();
+        return super.visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Object visitIfStmt(Stmt.If stmt) {
+        statement();
+        return super.visitIfStmt(stmt);
+    }
+
+    @Override
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        statement();
+        return super.visitReturnStmt(stmt);
+    }
+
+    @Override
+    public Object visitVarStmt(Stmt.Var stmt) {
+        statement();
+        return super.visitVarStmt(stmt);
+    }
+
+    @Override
+    public Object visitAssignStmt(Stmt.Assign stmt) {
+        statement();
+        return super.visitAssignStmt(stmt);
+    }
+
+    @Override
+    public Object visitWhileStmt(Stmt.While stmt) {
+        statement();
+        return super.visitWhileStmt(stmt);
+    }
+}
@@ -0,0 +1,73 @@
+package madlang;
+
+import java.io.PrintStream;
+
+// Counters a Metered interpreter keeps while it runs, printed by `Main --stats`.
+// They are bumped per statement, call and frame, never per expression. The
+// calls, statements and frames are the tree walk's: a call answered by the
+// memo or run in Jit-compiled code runs no statements here. Frames are the
+// Environments it created for calls and blocks; the live ones are running.
+class Metrics {
+
+    long calls;
+    long statements;
+    long frames;
+    int depth;
+    int peakDepth;
+    int liveFrames;
+
+    // Function bodies run
+    void enter() {
+        calls++;
+        if (++depth > peakDepth) {
+            peakDepth = depth;
+        }
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    // The counters and what the passes, memo, Jit and call sites did
+    void report(Interpreter interp, PrintStream out) {
+        long memoHits = 0;
+        long memoMisses = 0;
+        for (Memo memo : interp.memos.values()) {
+            memoHits += memo.hits;
+            memoMisses += memo.misses;
+        }
+        long siteHits = 0;
+        long siteMisses = 0;
+        for (Expr.Call site : interp.callSites) {
+            siteHits += site.hits;
+            siteMisses += site.misses;
+        }
+
+        out.println("--- Stats ---");
+        line(out, "calls", calls);
+        line(out, "statements", statements);
+        line(out, "frames", frames);
+        line(out, "peak call depth", peakDepth);
+        line(out, "input bytes", interp.source.consumed);
+        line(out, "output bytes", interp.sink.written());
+        line(out, "folded nodes", interp.foldedNodes);
+        line(out, "inlined sites", interp.inlinedSites.size());
+        line(out, "removed statements", interp.removedStmts);
+        if (interp.loopStats != null) {
+            line(out, "hoisted expressions", interp.loopStats.hoisted());
+            line(out, "unrolled loops", interp.loopStats.unrolled());
+            line(out, "counted loops", interp.loopStats.counted());
+        }
+        line(out, "reused expressions", interp.reusedExprs);
+        line(out, "shared nodes", interp.sharedNodes);
+        line(out, "memo hits", memoHits);
+        line(out, "memo misses", memoMisses);
+        line(out, "jit compiled", interp.jit.compiled.size());
+        line(out, "call site hits", siteHits);
+        line(out, "call site misses", siteMisses);
+    }
+
+    private static void line(PrintStream out, String name, long value) {
+        out.printf("%-20s %d%n", name, value);
+    }
+}
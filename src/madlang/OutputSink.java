@@ -0,0 +1,174 @@
+package madlang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Where the output built-in writes its values, one per line. The sinks here
+// format ints straight into a byte buffer and write it out as the Flush policy
+// says; the Interpreter flushes at the end of every run, errors included, and
+// before input() reads.
+interface OutputSink {
+
+    // When a sink writes its buffer out
+    enum Flush {
+        LINE,   // after every value, like println
+        FULL    // when the buffer is full and on flush()
+    }
+
+    int BUFFER = 1 << 16;
+
+    void write(int value);
+
+    void flush();
+
+    // Bytes handed on so far
+    default long written() {
+        return 0;
+    }
+
+    // System.out, looked up on every flush so System.setOut still applies
+    static OutputSink stdout(Flush policy) {
+        return new Buffered(BUFFER, policy) {
+            @Override
+            void drain(byte[] bytes, int length) {
+                System.out.write(bytes, 0, length);
+                System.out.flush();
+            }
+        };
+    }
+
+    // A file, truncated first, written through its FileChannel
+    static Channel file(Path path, Flush policy) throws IOException {
+        return new Channel(FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), policy);
+    }
+
+    // Formats values into a byte buffer and hands full buffers to drain()
+    abstract class Buffered implements OutputSink {
+        private final byte[] buffer;
+        private final Flush policy;
+        private int length;
+        private long written;
+
+        Buffered(int capacity, Flush policy) {
+            // Room for at least one value: "-2147483648\n"
+            this.buffer = new byte[Math.max(capacity, 12)];
+            this.policy = policy;
+        }
+
+        abstract void drain(byte[] bytes, int length);
+
+        @Override
+        public void write(int value) {
+            if (length + 12 > buffer.length) {
+                flush();
+            }
+            if (value < 0) {
+                buffer[length++] = '-';
+            } else {
+                value = -value;
+            }
+            // Digits of the negated value, so Integer.MIN_VALUE needs no special case
+            int end = length + digits(value);
+            for (int i = end - 1; i >= length; i--) {
+                buffer[i] = (byte) ('0' - value % 10);
+                value /= 10;
+            }
+            buffer[end] = '\n';
+            length = end + 1;
+            if (policy == Flush.LINE) {
+                flush();
+            }
+        }
+
+        // Number of digits of a value <= 0
+        private static int digits(int negative) {
+            int count = 1;
+            while (negative <= -10) {
+                negative /= 10;
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void flush() {
+            if (length > 0) {
+                drain(buffer, length);
+                written += length;
+                length = 0;
+            }
+        }
+
+        @Override
+        public long written() {
+            return written;
+        }
+    }
+
+    // Writes to a FileChannel, which it closes on close()
+    final class Channel extends Buffered implements AutoCloseable {
+        private final FileChannel channel;
+
+        Channel(FileChannel channel, Flush policy) {
+            super(BUFFER, policy);
+            this.channel = channel;
+        }
+
+        @Override
+        void drain(byte[] bytes, int length) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    // Keeps everything in memory, for tests and for embedding the interpreter
+    final class Memory extends Buffered {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Memory() {
+            super(BUFFER, Flush.FULL);
+        }
+
+        @Override
+        void drain(byte[] buffer, int length) {
+            bytes.write(buffer, 0, length);
+        }
+
+        // Everything written so far, one value per line
+        String text() {
+            flush();
+            return bytes.toString(StandardCharsets.US_ASCII);
+        }
+
+        List<Integer> values() {
+            List<Integer> values = new ArrayList<>();
+            for (String line : text().split("\n")) {
+                if (!line.isEmpty()) {
+                    values.add(Integer.parseInt(line));
+                }
+            }
+            return values;
+        }
+    }
+}
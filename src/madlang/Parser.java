@@ -0,0 +1,356 @@
+package madlang;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import madlang.Lexer.Token;
+
+// Recursive-descent parser for madlang source, with precedence climbing for
+// binary operators. One pass over the Lexer's tokens, one token of lookahead,
+// building the Stmt/Expr nodes the rest of the interpreter uses, each with the
+// line and column it starts at. Syntax errors are MadlangErrors:
+// "Error: syntax error at LINE:COLUMN: ...".
+//
+//   program     -> statement* EOF
+//   statement   -> function | var | assign | block | if | while | return | print | exprStmt
+//   function    -> "fun" IDENT "(" (IDENT ":" type ("," IDENT ":" type)*)? ")" ":" type block
+//                | "fun" type IDENT "(" (type IDENT ("," type IDENT)*)? ")" block
+//   var         -> IDENT ":" type ("=" expression)? ";"
+//   assign      -> IDENT "=" expression ";"
+//   print       -> "print" expression ";"          (same as output(expression);)
+//   expression  -> operands joined by || && == != < <= > >= + - * / %, C precedence
+//   unary       -> ("-" | "!") unary | primary
+//   primary     -> NUMBER | "true" | "false" | IDENT | IDENT "(" arguments ")" | "(" expression ")"
+class Parser {
+
+    private final Lexer lexer;
+    private final ExprPool literals = new ExprPool();
+
+    Parser(byte[] source) {
+        this.lexer = new Lexer(source);
+    }
+
+    static List<Stmt> parse(byte[] source) {
+        return new Parser(source).program();
+    }
+
+    static List<Stmt> parse(String source) {
+        return parse(source.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    static List<Stmt> parse(Path file) throws IOException {
+        return parse(Files.readAllBytes(file));
+    }
+
+    List<Stmt> program() {
+        List<Stmt> statements = new ArrayList<>();
+        lexer.next();
+        while (lexer.token != Token.EOF) {
+            statements.add(statement());
+        }
+        return statements;
+    }
+
+    // ---- Statements ----
+
+    private Stmt statement() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        switch (lexer.token) {
+            case FUN:
+                return at(function(), line, column);
+            case LEFT_BRACE:
+                return at(new Stmt.Block(block()), line, column);
+            case IF: {
+                lexer.next();
+                Expr condition = condition();
+                Stmt thenBranch = statement();
+                Stmt elseBranch = null;
+                if (lexer.token == Token.ELSE) {
+                    lexer.next();
+                    elseBranch = statement();
+                }
+                return at(new Stmt.If(condition, thenBranch, elseBranch), line, column);
+            }
+            case WHILE: {
+                lexer.next();
+                Expr condition = condition();
+                return at(new Stmt.While(condition, statement()), line, column);
+            }
+            case RETURN: {
+                lexer.next();
+                Expr value = expression();
+                expect(Token.SEMICOLON, "';'");
+                return at(new Stmt.Return(value), line, column);
+            }
+            case PRINT: {
+                lexer.next();
+                List<Expr> arguments = new ArrayList<>(1);
+                arguments.add(expression());
+                expect(Token.SEMICOLON, "';'");
+                return at(new Stmt.Expression(at(new Expr.Call("output", arguments), line, column)), line, column);
+            }
+            case IDENTIFIER:
+                return identifierStatement(line, column);
+            default: {
+                Expr expression = expression();
+                expect(Token.SEMICOLON, "';'");
+                return at(new Stmt.Expression(expression), line, column);
+            }
+        }
+    }
+
+    // A declaration, an assignment or an expression statement, told apart by
+    // the token after the name
+    private Stmt identifierStatement(int line, int column) {
+        String name = lexer.name;
+        lexer.next();
+        Stmt stmt;
+        if (lexer.token == Token.COLON) {
+            lexer.next();
+            VarType type = type();
+            Expr initializer = null;
+            if (lexer.token == Token.ASSIGN) {
+                lexer.next();
+                initializer = expression();
+            }
+            stmt = new Stmt.Var(name, type, initializer);
+        } else if (lexer.token == Token.ASSIGN) {
+            lexer.next();
+            stmt = new Stmt.Assign(name, expression());
+        } else {
+            stmt = new Stmt.Expression(binary(name(name, line, column), 1));
+        }
+        expect(Token.SEMICOLON, "';'");
+        return at(stmt, line, column);
+    }
+
+    private Stmt.Function function() {
+        lexer.next();
+        boolean typeFirst = lexer.token == Token.INT || lexer.token == Token.BOOL;
+        VarType returnType = typeFirst ? type() : null;
+        String name = identifier();
+        expect(Token.LEFT_PAREN, "'('");
+        List<Stmt.Parameter> params = new ArrayList<>();
+        if (lexer.token != Token.RIGHT_PAREN) {
+            do {
+                if (typeFirst) {
+                    VarType type = type();
+                    params.add(new Stmt.Parameter(identifier(), type));
+                } else {
+                    String param = identifier();
+                    expect(Token.COLON, "':'");
+                    params.add(new Stmt.Parameter(param, type()));
+                }
+            } while (accept(Token.COMMA));
+        }
+        expect(Token.RIGHT_PAREN, "')'");
+        if (!typeFirst) {
+            expect(Token.COLON, "':'");
+            returnType = type();
+        }
+        return new Stmt.Function(name, returnType, params, block());
+    }
+
+    // The statements between braces
+    private List<Stmt> block() {
+        expect(Token.LEFT_BRACE, "'{'");
+        List<Stmt> statements = new ArrayList<>();
+        while (lexer.token != Token.RIGHT_BRACE) {
+            if (lexer.token == Token.EOF) {
+                throw expected("'}'");
+            }
+            statements.add(statement());
+        }
+        lexer.next();
+        return statements;
+    }
+
+    private Expr condition() {
+        expect(Token.LEFT_PAREN, "'('");
+        Expr condition = expression();
+        expect(Token.RIGHT_PAREN, "')'");
+        return condition;
+    }
+
+    private VarType type() {
+        if (lexer.token == Token.INT || lexer.token == Token.BOOL) {
+            VarType type = lexer.token == Token.INT ? VarType.INT : VarType.BOOL;
+            lexer.next();
+            return type;
+        }
+        throw expected("a type");
+    }
+
+    // ---- Expressions ----
+
+    private Expr expression() {
+        return binary(unary(), 1);
+    }
+
+    // Precedence climbing: folds the operators binding at least as tightly as
+    // `min` into `left`, left to right
+    private Expr binary(Expr left, int min) {
+        int precedence;
+        while ((precedence = precedence(lexer.token)) >= min) {
+            Operator operator = operator(lexer.token);
+            lexer.next();
+            Expr right = unary();
+            while (precedence(lexer.token) > precedence) {
+                right = binary(right, precedence + 1);
+            }
+            left = at(new Expr.Binary(left, operator, right), left.line, left.column);
+        }
+        return left;
+    }
+
+    private Expr unary() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        if (lexer.token == Token.MINUS) {
+            lexer.next();
+            // The one literal that only fits negated
+            if (lexer.token == Token.NUMBER && lexer.number == 1L + Integer.MAX_VALUE) {
+                lexer.next();
+                return literal(Integer.MIN_VALUE, line, column);
+            }
+            return at(new Expr.Unary(Operator.MINUS, unary()), line, column);
+        }
+        if (lexer.token == Token.BANG) {
+            lexer.next();
+            return at(new Expr.Unary(Operator.NOT, unary()), line, column);
+        }
+        return primary();
+    }
+
+    private Expr primary() {
+        int line = lexer.tokenLine;
+        int column = lexer.tokenColumn;
+        switch (lexer.token) {
+            case NUMBER: {
+                if (lexer.number > Integer.MAX_VALUE) {
+                    throw lexer.error("integer literal out of range");
+                }
+                Expr literal = literal((int) lexer.number, line, column);
+                lexer.next();
+                return literal;
+            }
+            case TRUE:
+            case FALSE: {
+                Expr literal = literal(lexer.token == Token.TRUE, line, column);
+                lexer.next();
+                return literal;
+            }
+            case IDENTIFIER: {
+                String name = lexer.name;
+                lexer.next();
+                return name(name, line, column);
+            }
+            case LEFT_PAREN: {
+                lexer.next();
+                Expr expression = expression();
+                expect(Token.RIGHT_PAREN, "')'");
+                return expression;
+            }
+            default:
+                throw expected("an expression");
+        }
+    }
+
+    // A variable or, when an argument list follows, a call; the name has been read
+    private Expr name(String name, int line, int column) {
+        if (!accept(Token.LEFT_PAREN)) {
+            return at(new Expr.Variable(name), line, column);
+        }
+        List<Expr> arguments = new ArrayList<>();
+        if (lexer.token != Token.RIGHT_PAREN) {
+            do {
+                arguments.add(expression());
+            } while (accept(Token.COMMA));
+        }
+        expect(Token.RIGHT_PAREN, "')'");
+        return at(new Expr.Call(name, arguments), line, column);
+    }
+
+    // Binding strength of a binary operator token, 0 for any other token
+    private static int precedence(Token token) {
+        switch (token) {
+            case OR: return 1;
+            case AND: return 2;
+            case EQUAL: case NOT_EQUAL: return 3;
+            case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL: return 4;
+            case PLUS: case MINUS: return 5;
+            case STAR: case SLASH: case PERCENT: return 6;
+            default: return 0;
+        }
+    }
+
+    private static Operator operator(Token token) {
+        switch (token) {
+            case OR: return Operator.OR;
+            case AND: return Operator.AND;
+            case EQUAL: return Operator.EQUAL;
+            case NOT_EQUAL: return Operator.NOT_EQUAL;
+            case LESS: return Operator.LESS;
+            case LESS_EQUAL: return Operator.LESS_EQUAL;
+            case GREATER: return Operator.GREATER;
+            case GREATER_EQUAL: return Operator.GREATER_EQUAL;
+            case PLUS: return Operator.PLUS;
+            case MINUS: return Operator.MINUS;
+            case STAR: return Operator.MULTIPLY;
+            case SLASH: return Operator.DIVIDE;
+            default: return Operator.MODULO;
+        }
+    }
+
+    // ---- Tokens ----
+
+    private String identifier() {
+        if (lexer.token != Token.IDENTIFIER) {
+            throw expected("a name");
+        }
+        String name = lexer.name;
+        lexer.next();
+        return name;
+    }
+
+    private boolean accept(Token token) {
+        if (lexer.token == token) {
+            lexer.next();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(Token token, String what) {
+        if (!accept(token)) {
+            throw expected(what);
+        }
+    }
+
+    private MadlangError expected(String what) {
+        return lexer.error("expected " + what + " but found " + lexer.text());
+    }
+
+    // Common literals are the program's shared nodes, which keep no position
+    private Expr literal(Object value, int line, int column) {
+        Expr.Literal shared = literals.common(value);
+        return shared != null ? shared : at(new Expr.Literal(value), line, column);
+    }
+
+    private static <T extends Expr> T at(T expr, int line, int column) {
+        expr.line = line;
+        expr.column = column;
+        return expr;
+    }
+
+    private static <T extends Stmt> T at(T stmt, int line, int column) {
+        stmt.line = line;
+        stmt.column = column;
+        return stmt;
+    }
+}
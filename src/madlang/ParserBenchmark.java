@@ -0,0 +1,65 @@
+package madlang;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Parser throughput in MB/s. Parses the file given as the argument or, without
+// one, a generated program of about 16 MB shaped like our generated scripts:
+// many small functions of declarations, loops, ifs and arithmetic.
+//
+//   make bench-parser [FILE=program.mad]
+public class ParserBenchmark {
+    static final int WARMUP = 5;
+    static final int RUNS = 10;
+
+    public static void main(String[] args) throws IOException {
+        byte[] source = args.length > 0 ? Files.readAllBytes(Path.of(args[0])) : generate(16 << 20);
+        double megabytes = source.length / (1024.0 * 1024.0);
+
+        int statements = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            statements = Parser.parse(source).size();
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            List<Stmt> program = Parser.parse(source);
+            long elapsed = System.nanoTime() - start;
+            statements = program.size();
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        System.out.printf("parsed %.1f MB (%d top-level statements)%n", megabytes, statements);
+        System.out.printf("best %.1f MB/s, mean %.1f MB/s over %d runs%n",
+                megabytes / (best / 1e9), megabytes / (total / 1e9 / RUNS), RUNS);
+    }
+
+    // A valid program of at least `size` bytes
+    static byte[] generate(int size) {
+        StringBuilder source = new StringBuilder(size + 1024);
+        for (int i = 0; source.length() < size; i++) {
+            source.append("// generated function ").append(i).append('\n')
+                    .append("fun f").append(i).append("(n : int, flag : bool) : int {\n")
+                    .append("  total : int = 0;\n")
+                    .append("  i : int = ").append(i % 7).append(";\n")
+                    .append("  while (i < n && flag) {\n")
+                    .append("    if (i % 3 == 0 || !(i > 100)) {\n")
+                    .append("      total = total + i * ").append(i % 13 + 1).append(" - (n / 2);\n")
+                    .append("    } else {\n")
+                    .append("      total = total - f").append(i).append("(i - 1, !flag);\n")
+                    .append("    }\n")
+                    .append("    i = i + 1;\n")
+                    .append("  }\n")
+                    .append("  return total;\n")
+                    .append("}\n");
+        }
+        source.append("fun main() : int {\n  output(f0(10, true));\n  return 0;\n}\n");
+        return source.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,416 @@
+package madlang;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An Interpreter that profiles the program it runs. It records for every
+// function the calls, the inclusive and self wall time and the bytes the
+// thread allocated while it ran, and for every Stmt and Expr (literals aside)
+// how often it was evaluated. report() ranks them; collapsed() gives the
+// call stacks with their self time in the format flame graph tools read.
+//
+// Node hits come from overrides of every visitor and unboxed entry point, and
+// function times from executeBlock on the bodies visitFunctionStmt registered.
+// It builds on Metered, so `--profile` can be combined with `--stats` and
+// limits. A profiled run stays in the tree
+// walk with the Jit and the Inliner off, so every call and node is seen where
+// the source has it; the memo stays on, and a call it answers does not run the
+// body, so it is not counted. Expressions are not shared between sites, so the
+// hits of one site are its own.
+class Profiler extends Metered {
+
+    // Rows in each table of the report
+    static final int TOP = 20;
+
+    // Totals for one function
+    static final class FunctionStats {
+        final Stmt.Function function;
+        long calls;
+        long inclusive;   // ns, outermost activations only, so recursion counts once
+        long self;        // ns
+        long allocated;   // bytes allocated while its own body ran
+        private int active;
+
+        FunctionStats(Stmt.Function function) {
+            this.function = function;
+        }
+    }
+
+    // A node of the calling-context tree: one call stack
+    private static final class Context {
+        final String name;
+        final Map<String, Context> children = new LinkedHashMap<>();
+        long self;
+
+        Context(String name) {
+            this.name = name;
+        }
+    }
+
+    // A running function. Activations are reused as the stack shrinks and grows.
+    private static final class Activation {
+        FunctionStats stats;
+        Context context;
+        long start;
+        long children;
+        long allocationStart;
+        long childAllocation;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private final Map<List<Stmt>, FunctionStats> bodies = new IdentityHashMap<>();
+    private final Map<Object, long[]> hits = new IdentityHashMap<>();
+    private final List<Activation> stack = new ArrayList<>();
+    private final Context root = new Context(null);
+    private int depth;
+
+    // The node being evaluated; set again by the entry point it hands over to
+    private Expr current;
+
+    Profiler() {
+        engine = Engine.TREE;
+        jitThreshold = 0;
+        inlineBudget = 0;
+        shareExprs = false;
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    private static long allocated() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    // ---- Functions ----
+
+    @Override
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        hit(stmt);
+        bodies.computeIfAbsent(stmt.body, body -> new FunctionStats(stmt));
+        return super.visitFunctionStmt(stmt);
+    }
+
+    // Function bodies are the blocks registered by visitFunctionStmt
+    @Override
+    Object executeBlock(List<Stmt> statements, Environment env) {
+        FunctionStats stats = bodies.get(statements);
+        if (stats == null) {
+            return super.executeBlock(statements, env);
+        }
+        enter(stats);
+        try {
+            return super.executeBlock(statements, env);
+        } finally {
+            exit();
+        }
+    }
+
+    private void enter(FunctionStats stats) {
+        Context caller = depth > 0 ? stack.get(depth - 1).context : root;
+        if (depth == stack.size()) {
+            stack.add(new Activation());
+        }
+        Activation activation = stack.get(depth++);
+        activation.stats = stats;
+        activation.context = caller.children.computeIfAbsent(stats.function.name, Context::new);
+        activation.children = 0;
+        activation.childAllocation = 0;
+        stats.calls++;
+        stats.active++;
+        activation.allocationStart = allocated();
+        activation.start = System.nanoTime();
+    }
+
+    private void exit() {
+        Activation activation = stack.get(--depth);
+        long elapsed = System.nanoTime() - activation.start;
+        long allocation = allocated() - activation.allocationStart;
+        FunctionStats stats = activation.stats;
+        long self = elapsed - activation.children;
+        stats.self += self;
+        stats.allocated += allocation - activation.childAllocation;
+        if (--stats.active == 0) {
+            stats.inclusive += elapsed;
+        }
+        activation.context.self += self;
+        if (depth > 0) {
+            Activation caller = stack.get(depth - 1);
+            caller.children += elapsed;
+            caller.childAllocation += allocation;
+        }
+    }
+
+    // ---- Node hits ----
+
+    private void hit(Object node) {
+        long[] count = hits.get(node);
+        if (count == null) {
+            hits.put(node, count = new long[1]);
+        }
+        count[0]++;
+    }
+
+    private void hit(Stmt stmt) {
+        current = null;
+        hit((Object) stmt);
+    }
+
+    // An entry point handing the same node on to another one (intCall to
+    // visitCallExpr, visitBinaryExpr to intBinary, ...) is one evaluation
+    private void hit(Expr expr) {
+        if (expr != current) {
+            hit((Object) expr);
+        }
+        current = expr;
+    }
+
+    @Override
+    public Object visitIfStmt(Stmt.If stmt) {
+        hit(stmt);
+        return super.visitIfStmt(stmt);
+    }
+
+    @Override
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        hit(stmt);
+        return super.visitReturnStmt(stmt);
+    }
+
+    @Override
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        hit(stmt);
+        return super.visitBlockStmt(stmt);
+    }
+
+    @Override
+    public Object visitVarStmt(Stmt.Var stmt) {
+        hit(stmt);
+        return super.visitVarStmt(stmt);
+    }
+
+    @Override
+    public Object visitWhileStmt(Stmt.While stmt) {
+        hit(stmt);
+        return super.visitWhileStmt(stmt);
+    }
+
+    @Override
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        hit(stmt);
+        return super.visitExpressionStmt(stmt);
+    }
+
+    @Override
+    public Object visitAssignStmt(Stmt.Assign stmt) {
+        hit(stmt);
+        return super.visitAssignStmt(stmt);
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        hit(expr);
+        return super.visitBinaryExpr(expr);
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        hit(expr);
+        return super.visitUnaryExpr(expr);
+    }
+
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        hit(expr);
+        return super.visitVariableExpr(expr);
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        hit(expr);
+        return super.visitCallExpr(expr);
+    }
+
+    @Override
+    int intBinary(Expr.Binary expr, Expr pending) {
+        hit(expr);
+        return super.intBinary(expr, pending);
+    }
+
+    @Override
+    boolean boolBinary(Expr.Binary expr, Expr pending) {
+        hit(expr);
+        return super.boolBinary(expr, pending);
+    }
+
+    @Override
+    int intUnary(Expr.Unary expr, Expr pending) {
+        hit(expr);
+        return super.intUnary(expr, pending);
+    }
+
+    @Override
+    boolean boolUnary(Expr.Unary expr, Expr pending) {
+        hit(expr);
+        return super.boolUnary(expr, pending);
+    }
+
+    @Override
+    int intVariable(Expr.Variable expr, Expr pending) {
+        hit(expr);
+        return super.intVariable(expr, pending);
+    }
+
+    @Override
+    boolean boolVariable(Expr.Variable expr, Expr pending) {
+        hit(expr);
+        return super.boolVariable(expr, pending);
+    }
+
+    @Override
+    int intCall(Expr.Call expr, Expr pending) {
+        hit(expr);
+        return super.intCall(expr, pending);
+    }
+
+    @Override
+    boolean boolCall(Expr.Call expr, Expr pending) {
+        hit(expr);
+        return super.boolCall(expr, pending);
+    }
+
+    // ---- Results ----
+
+    // Function totals, most self time first
+    List<FunctionStats> functions() {
+        List<FunctionStats> functions = new ArrayList<>(bodies.values());
+        functions.removeIf(stats -> stats.calls == 0);
+        functions.sort(Comparator.comparingLong((FunctionStats stats) -> stats.self).reversed());
+        return functions;
+    }
+
+    FunctionStats function(String name) {
+        for (FunctionStats stats : bodies.values()) {
+            if (stats.function.name.equals(name)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    // Evaluations of the node
+    long hits(Object node) {
+        long[] count = hits.get(node);
+        return count != null ? count[0] : 0;
+    }
+
+    // Hits per source position and kind of node, most first. Copies of one
+    // source node (unrolled loop bodies) add up.
+    Map<String, Long> hotSpots() {
+        Map<String, Long> spots = new HashMap<>();
+        for (Map.Entry<Object, long[]> entry : hits.entrySet()) {
+            spots.merge(describe(entry.getKey()), entry.getValue()[0], Long::sum);
+        }
+        Map<String, Long> ranked = new LinkedHashMap<>();
+        spots.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(entry -> ranked.put(entry.getKey(), entry.getValue()));
+        return ranked;
+    }
+
+    private static String describe(Object node) {
+        int line = node instanceof Stmt ? ((Stmt) node).line : ((Expr) node).line;
+        int column = node instanceof Stmt ? ((Stmt) node).column : ((Expr) node).column;
+        String position = line > 0 ? line + ":" + column : "-";
+        String kind = node.getClass().getSimpleName();
+        String detail = "";
+        if (node instanceof Expr.Binary) {
+            detail = " " + ((Expr.Binary) node).operator;
+        } else if (node instanceof Expr.Unary) {
+            detail = " " + ((Expr.Unary) node).operator;
+        } else if (node instanceof Expr.Variable) {
+            detail = " " + ((Expr.Variable) node).name;
+        } else if (node instanceof Expr.Call) {
+            detail = " " + ((Expr.Call) node).name;
+        } else if (node instanceof Stmt.Var) {
+            detail = " " + ((Stmt.Var) node).name;
+        } else if (node instanceof Stmt.Assign) {
+            detail = " " + ((Stmt.Assign) node).name;
+        } else if (node instanceof Stmt.Function) {
+            detail = " " + ((Stmt.Function) node).name;
+        }
+        return String.format("%-9s %s%s", position, kind, detail);
+    }
+
+    // One line per call stack, "main;fib;fib 12345", its self time in ns
+    String collapsed() {
+        StringBuilder out = new StringBuilder();
+        List<Context> pending = new ArrayList<>(root.children.values());
+        List<String> stacks = new ArrayList<>();
+        for (Context context : pending) {
+            stacks.add(context.name);
+        }
+        while (!pending.isEmpty()) {
+            Context context = pending.remove(pending.size() - 1);
+            String stack = stacks.remove(stacks.size() - 1);
+            if (context.self > 0) {
+                out.append(stack).append(' ').append(context.self).append('\n');
+            }
+            for (Context child : context.children.values()) {
+                pending.add(child);
+                stacks.add(stack + ";" + child.name);
+            }
+        }
+        return out.toString();
+    }
+
+    void writeCollapsed(Path file) throws IOException {
+        Files.writeString(file, collapsed(), StandardCharsets.UTF_8);
+    }
+
+    void report(PrintStream out) {
+        out.println("--- Profile: functions by self time ---");
+        out.printf("%10s %10s %10s %12s  %s%n", "self ms", "total ms", "calls", "self alloc", "function");
+        List<FunctionStats> functions = functions();
+        for (FunctionStats stats : functions.subList(0, Math.min(TOP, functions.size()))) {
+            out.printf("%10.3f %10.3f %10d %12s  %s (line %d)%n", stats.self / 1e6, stats.inclusive / 1e6,
+                    stats.calls, THREADS != null ? bytes(stats.allocated) : "-", stats.function.name,
+                    stats.function.line);
+        }
+        out.println("--- Profile: hot spots ---");
+        out.printf("%12s  %-9s %s%n", "hits", "line:col", "node");
+        int rows = 0;
+        for (Map.Entry<String, Long> spot : hotSpots().entrySet()) {
+            if (rows++ == TOP) {
+                break;
+            }
+            out.printf("%12d  %s%n", spot.getValue(), spot.getKey());
+        }
+    }
+
+    private static String bytes(long count) {
+        if (count < 10 << 10) {
+            return count + " B";
+        }
+        return count < 10 << 20 ? (count >> 10) + " KB" : (count >> 20) + " MB";
+    }
+}
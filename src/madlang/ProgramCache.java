@@ -0,0 +1,64 @@
+package madlang;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+// On-disk cache of parsed programs in the AstFormat, keyed by the SHA-256 of
+// the source and AstFormat.VERSION, so an unchanged source is mapped in instead
+// of parsed. A damaged entry is parsed again and rewritten; entries are written
+// to a temporary file and moved into place, so a concurrent run never maps a
+// half-written one.
+class ProgramCache {
+
+    private final Path directory;
+
+    // Loads served from the cache and loads that had to parse
+    int hits;
+    int misses;
+
+    ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    List<Stmt> load(Path source) throws IOException {
+        byte[] bytes = Files.readAllBytes(source);
+        Path entry = directory.resolve(key(bytes) + AstFormat.EXTENSION);
+        if (Files.isRegularFile(entry)) {
+            try {
+                List<Stmt> program = AstFormat.read(entry);
+                hits++;
+                return program;
+            } catch (MadlangError e) {
+                // Stale or damaged: parse and replace it below
+            }
+        }
+        misses++;
+        List<Stmt> program = Parser.parse(bytes);
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            AstFormat.write(program, temporary);
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return program;
+    }
+
+    // The format version is part of the key, so a new version starts afresh
+    static String key(byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) AstFormat.VERSION);
+            return HexFormat.of().formatHex(digest.digest(source));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
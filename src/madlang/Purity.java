@@ -0,0 +1,267 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds the functions whose result depends only on their arguments, so the
+// Interpreter can memoize them. A function is pure when
+//   - all its parameters are declared int or bool,
+//   - it defines no nested functions,
+//   - it neither reads nor assigns variables of enclosing frames,
+//   - every function it calls is pure and is the only thing that name can be
+//     bound to: one declaration in its frame, never assigned, not a variable.
+// Calls to input and output are impure. Scopes mirror the Resolver.
+class Purity implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // Everything a name can be bound to in one frame
+    private static final class Binding {
+        final List<Stmt.Function> functions = new ArrayList<>();
+        boolean variable;
+        boolean builtin;
+        boolean assigned;
+    }
+
+    // What the analysis learned about one function's body
+    private static final class Facts {
+        boolean impure;
+        final List<Binding> callees = new ArrayList<>();
+    }
+
+    private final List<Map<String, Binding>> scopes = new ArrayList<>();
+    private final Map<Stmt.Function, Facts> facts = new HashMap<>();
+
+    // Innermost function being walked and the index of its frame in scopes
+    private Facts current;
+    private int frame;
+
+    Set<Stmt.Function> analyze(List<Stmt> program) {
+        Map<String, Binding> global = beginScope();
+        for (String name : Resolver.BUILTINS) {
+            binding(global, name).builtin = true;
+        }
+        declareAll(global, program);
+        for (Stmt stmt : program) {
+            stmt.accept(this);
+        }
+        endScope();
+
+        // Start from every candidate and drop the ones calling something impure
+        // until nothing changes
+        Set<Stmt.Function> pure = new HashSet<>();
+        for (Map.Entry<Stmt.Function, Facts> entry : facts.entrySet()) {
+            if (!entry.getValue().impure) {
+                pure.add(entry.getKey());
+            }
+        }
+        boolean changed;
+        do {
+            changed = false;
+            for (Stmt.Function function : new ArrayList<>(pure)) {
+                for (Binding callee : facts.get(function).callees) {
+                    if (!fixed(callee) || !pure.contains(callee.functions.get(0))) {
+                        pure.remove(function);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        } while (changed);
+        return pure;
+    }
+
+    // Name bound to one function declaration for good
+    private static boolean fixed(Binding binding) {
+        return binding.functions.size() == 1
+            && !binding.variable && !binding.builtin && !binding.assigned;
+    }
+
+    private Map<String, Binding> beginScope() {
+        Map<String, Binding> scope = new HashMap<>();
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private static Binding binding(Map<String, Binding> scope, String name) {
+        return scope.computeIfAbsent(name, n -> new Binding());
+    }
+
+    private static void declareAll(Map<String, Binding> scope, List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            declareAll(scope, stmt);
+        }
+    }
+
+    private static void declareAll(Map<String, Binding> scope, Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            binding(scope, ((Stmt.Var) stmt).name).variable = true;
+        } else if (stmt instanceof Stmt.Function) {
+            binding(scope, ((Stmt.Function) stmt).name).functions.add((Stmt.Function) stmt);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            declareAll(scope, ifStmt.thenBranch);
+            if (ifStmt.elseBranch != null) {
+                declareAll(scope, ifStmt.elseBranch);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            declareAll(scope, ((Stmt.While) stmt).body);
+        }
+    }
+
+    // Innermost scope declaring the name, or -1
+    private int scopeOf(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // A reference that is not to a local of the current function
+    private boolean nonLocal(int scope) {
+        return current != null && scope < frame;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        declareAll(beginScope(), stmt.statements);
+        for (Stmt s : stmt.statements) {
+            s.accept(this);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        if (current != null) {
+            current.impure = true;
+        }
+        Facts enclosing = current;
+        int enclosingFrame = frame;
+
+        current = new Facts();
+        facts.put(stmt, current);
+        frame = scopes.size();
+        Map<String, Binding> scope = beginScope();
+        for (Stmt.Parameter param : stmt.params) {
+            binding(scope, param.name()).variable = true;
+            if (param.type() == null) {
+                current.impure = true;
+            }
+        }
+        declareAll(scope, stmt.body);
+        for (Stmt s : stmt.body) {
+            s.accept(this);
+        }
+        endScope();
+
+        current = enclosing;
+        frame = enclosingFrame;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        stmt.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        stmt.value.accept(this);
+        int scope = scopeOf(stmt.name);
+        if (scope < 0 || nonLocal(scope)) {
+            if (current != null) {
+                current.impure = true;
+            }
+        }
+        if (scope >= 0) {
+            scopes.get(scope).get(stmt.name).assigned = true;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        int scope = scopeOf(expr.name);
+        if (current != null && (scope < 0 || nonLocal(scope))) {
+            current.impure = true;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        for (Expr arg : expr.arguments) {
+            arg.accept(this);
+        }
+        if (current == null) {
+            return null;
+        }
+        int scope = scopeOf(expr.name);
+        if (scope < 0) {
+            current.impure = true;
+        } else {
+            current.callees.add(scopes.get(scope).get(expr.name));
+        }
+        return null;
+    }
+}
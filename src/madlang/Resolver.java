@@ -0,0 +1,219 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Static pass that gives every variable reference a lexical address (depth, slot).
+// Scopes mirror the environments the Interpreter creates at run time: the global
+// scope, one frame per function call (parameters plus the top level of the body)
+// and one frame per block. Non-block branches of if/while run in the enclosing frame.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // Built-ins declared by the Interpreter constructor, in slot order
+    static final List<String> BUILTINS = List.of("output", "input");
+
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+
+    // Resolve a whole program, returns the number of global slots
+    int resolveProgram(List<Stmt> stmts) {
+        Map<String, Integer> global = beginScope();
+        for (String name : BUILTINS) {
+            declare(global, name);
+        }
+        declareAll(global, stmts);
+        resolve(stmts);
+        endScope();
+        return global.size();
+    }
+
+    private void resolve(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            stmt.accept(this);
+        }
+    }
+
+    private Map<String, Integer> beginScope() {
+        Map<String, Integer> scope = new HashMap<>();
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    // Name -> slot layout of a function's call frame (parameters, then the body)
+    static Map<String, Integer> layout(List<Stmt.Parameter> params, List<Stmt> body) {
+        Map<String, Integer> scope = new HashMap<>();
+        for (Stmt.Parameter param : params) {
+            declare(scope, param.name());
+        }
+        declareAll(scope, body);
+        return scope;
+    }
+
+    // Name -> slot layout of a block's frame
+    static Map<String, Integer> layout(List<Stmt> body) {
+        return layout(List.of(), body);
+    }
+
+    static int declare(Map<String, Integer> scope, String name) {
+        Integer slot = scope.get(name);
+        if (slot == null) {
+            slot = scope.size();
+            scope.put(name, slot);
+        }
+        return slot;
+    }
+
+    // Pre-scan every declaration that lands in this frame, so forward references
+    // (e.g. a function calling one defined after it) still get a slot
+    static void declareAll(Map<String, Integer> scope, List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            declareAll(scope, stmt);
+        }
+    }
+
+    private static void declareAll(Map<String, Integer> scope, Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            declare(scope, ((Stmt.Var) stmt).name);
+        } else if (stmt instanceof Stmt.Function) {
+            declare(scope, ((Stmt.Function) stmt).name);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            declareAll(scope, ifStmt.thenBranch);
+            if (ifStmt.elseBranch != null) {
+                declareAll(scope, ifStmt.elseBranch);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            declareAll(scope, ((Stmt.While) stmt).body);
+        }
+    }
+
+    // Innermost frame that declares the name, or -1 if it is not declared anywhere
+    private int depthOf(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name)) {
+                return scopes.size() - 1 - i;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(String name, int depth) {
+        return scopes.get(scopes.size() - 1 - depth).get(name);
+    }
+
+    private Map<String, Integer> currentScope() {
+        return scopes.get(scopes.size() - 1);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        Map<String, Integer> scope = beginScope();
+        declareAll(scope, stmt.statements);
+        resolve(stmt.statements);
+        stmt.frameSize = scope.size();
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        stmt.slot = declare(currentScope(), stmt.name);
+
+        Map<String, Integer> scope = beginScope();
+        stmt.paramSlots = new int[stmt.params.size()];
+        for (int i = 0; i < stmt.params.size(); i++) {
+            stmt.paramSlots[i] = declare(scope, stmt.params.get(i).name());
+        }
+        declareAll(scope, stmt.body);
+        resolve(stmt.body);
+        stmt.frameSize = scope.size();
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        stmt.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        }
+        stmt.slot = declare(currentScope(), stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        stmt.value.accept(this);
+        stmt.depth = depthOf(stmt.name);
+        stmt.slot = stmt.depth < 0 ? -1 : slotOf(stmt.name, stmt.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        expr.depth = depthOf(expr.name);
+        expr.slot = expr.depth < 0 ? -1 : slotOf(expr.name, expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        for (Expr arg : expr.arguments) {
+            arg.accept(this);
+        }
+        expr.depth = depthOf(expr.name);
+        expr.slot = expr.depth < 0 ? -1 : slotOf(expr.name, expr.depth);
+        return null;
+    }
+}
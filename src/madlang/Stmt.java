@@ -25,7 +25,10 @@ abstract class Stmt {
       return visitor.visitBlockStmt(this);
     }
 
-    final List<Stmt> statements;
+    List<Stmt> statements;
+
+    // Number of slots the block's frame needs, filled in by the Resolver
+    int frameSize = -1;
   }
 
   static class Expression extends Stmt {
@@ -38,7 +41,7 @@ abstract class Stmt {
       return visitor.visitExpressionStmt(this);
     }
 
-    final Expr expression;
+    Expr expression;
   }
 
   static class Function extends Stmt {
@@ -47,6 +50,10 @@ abstract class Stmt {
       this.returnType = returnType;
       this.params = params;
       this.body = body;
+      this.paramNames = new String[params.size()];
+      for (int i = 0; i < paramNames.length; i++) {
+        paramNames[i] = params.get(i).name();
+      }
     }
 
     @Override
@@ -57,7 +64,14 @@ abstract class Stmt {
     final String name;
     final VarType returnType;
     final List<Parameter> params;
-    final List<Stmt> body;
+    final String[] paramNames;
+    List<Stmt> body;
+
+    // Filled in by the Resolver: the function's slot in the enclosing frame,
+    // the slot of each parameter, and the size of the call frame
+    int slot = -1;
+    int[] paramSlots;
+    int frameSize = -1;
   }
 
   static class If extends Stmt {
@@ -72,9 +86,9 @@ abstract class Stmt {
       return visitor.visitIfStmt(this);
     }
 
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    Expr condition;
+    Stmt thenBranch;
+    Stmt elseBranch;
   }
 
   static class Return extends Stmt {
@@ -87,7 +101,7 @@ abstract class Stmt {
       return visitor.visitReturnStmt(this);
     }
 
-    final Expr value;
+    Expr value;
   }
 
   static class Var extends Stmt {
@@ -104,7 +118,10 @@ abstract class Stmt {
 
     final String name;
     final VarType type;
-    final Expr initializer;
+    Expr initializer;
+
+    // Slot in the enclosing frame, filled in by the Resolver
+    int slot = -1;
   }
 
   static class Assign extends Stmt {
@@ -119,7 +136,11 @@ abstract class Stmt {
     }
 
     final String name;
-    final Expr value;
+    Expr value;
+
+    // Lexical address filled in by the Resolver (-1 when unresolved)
+    int depth = -1;
+    int slot = -1;
   }
 
   static class While extends Stmt {
@@ -133,9 +154,17 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
-    final Expr condition;
-    final Stmt body;
+    Expr condition;
+    Stmt body;
+
+    // Set by the LoopOptimizer when the loop counts an int local to a bound
+    LoopOptimizer.Counted counted;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  // Where the statement starts in the source, set by the Parser (0 when the
+  // statement was built some other way)
+  int line;
+  int column;
 }
\ No newline at end of file
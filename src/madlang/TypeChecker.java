@@ -0,0 +1,576 @@
+package madlang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Static type checking pass, run after the Resolver. Uses the declared types on
+// Stmt.Var, Stmt.Parameter and Stmt.Function.returnType to
+//   - report "Error: type mismatch" before execution when the run would certainly
+//     raise it: the failing node is reached by top-level code or main's body
+//     before any branch, loop, return or call of a user function
+//     (e.g. output(true), 1 + true, if (5) there),
+//   - decide whether the whole program is typed ("checked"). Only then are the
+//     Expr.Variable and Expr.Call nodes annotated with their types, which lets the
+//     Interpreter keep them on the unboxed path.
+// A mismatch that may never be evaluated, and a value of the wrong type stored
+// in a variable or returned (the run time never checks those), is not an error:
+// it makes the program unchecked, as does anything that cannot be decided (names
+// with conflicting declarations, reads of variables declared without an
+// initializer, functions that may fall off the end).
+class TypeChecker implements Expr.Visitor<VarType>, Stmt.Visitor<Void> {
+
+    private record Signature(List<VarType> params, VarType result, Stmt.Function function) {}
+
+    // What a name can be bound to at run time: a variable or something callable
+    private record Binding(VarType type, boolean initialized, Signature signature) {}
+
+    private final List<Map<String, List<Binding>>> scopes = new ArrayList<>();
+    private final List<Stmt.Function> functions = new ArrayList<>();
+
+    // Functions that may return something other than their declared type
+    private final Set<Stmt.Function> unproven = new HashSet<>();
+    // Variables that may hold something other than their declared type
+    private final Set<String> mistyped = new HashSet<>();
+    private boolean changed;
+
+    private boolean reporting;
+    private boolean complete;
+
+    // Whether the node being checked is certain to be evaluated, and the main
+    // whose body is checked again as certain when the top level is. Anything
+    // that may raise an error of its own (a division, an unbound name, a call)
+    // ends the certain part.
+    private boolean certain;
+    private Stmt.Function certainBody;
+
+    // Names certain to be declared where the certain part has got to
+    private Set<String> defined = new HashSet<>();
+    private final Map<Expr, VarType> annotations = new HashMap<>();
+
+    // Returns true when the program is fully typed and has been annotated
+    boolean check(List<Stmt> program) {
+        // Start by assuming every function returns its declared type, then drop
+        // the ones that don't until nothing changes
+        do {
+            changed = false;
+            pass(program);
+        } while (changed);
+
+        reporting = true;
+        complete = true;
+        pass(program);
+
+        if (complete) {
+            for (Map.Entry<Expr, VarType> entry : annotations.entrySet()) {
+                entry.getKey().type = entry.getValue();
+            }
+        }
+        return complete;
+    }
+
+    private void pass(List<Stmt> program) {
+        annotations.clear();
+        Map<String, List<Binding>> global = beginScope();
+        bind(global, "output", new Binding(null, true,
+                new Signature(List.of(VarType.INT), null, null)));
+        bind(global, "input", new Binding(null, true,
+                new Signature(List.of(), VarType.INT, null)));
+        declareAll(global, program);
+        certain = true;
+        defined = new HashSet<>(List.of("output", "input"));
+        for (Stmt stmt : program) {
+            stmt.accept(this);
+        }
+        // main runs after the top level, if that certainly finishes and leaves
+        // a main that takes no arguments
+        Stmt.Function main = null;
+        for (Stmt stmt : program) {
+            if (stmt instanceof Stmt.Function && ((Stmt.Function) stmt).name.equals("main")) {
+                main = (Stmt.Function) stmt;
+            }
+        }
+        if (reporting && certain && main != null && main.params.isEmpty() && callable("main")) {
+            certainBody = main;
+            main.accept(this);
+            certainBody = null;
+        }
+        endScope();
+    }
+
+    // A mismatch: an error when the node is certainly evaluated, otherwise the
+    // program just stays unchecked
+    private void mismatch() {
+        if (reporting && certain) {
+            throw new MadlangError("Error: type mismatch");
+        }
+        complete = false;
+    }
+
+    // Scopes mirror the Resolver: every declaration in a frame is visible to
+    // every reference resolved to that frame
+
+    private Map<String, List<Binding>> beginScope() {
+        Map<String, List<Binding>> scope = new HashMap<>();
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private void bind(Map<String, List<Binding>> scope, String name, Binding binding) {
+        scope.computeIfAbsent(name, k -> new ArrayList<>()).add(binding);
+    }
+
+    private void declareAll(Map<String, List<Binding>> scope, List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            declareAll(scope, stmt);
+        }
+    }
+
+    private void declareAll(Map<String, List<Binding>> scope, Stmt stmt) {
+        if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            VarType type = mistyped.contains(var.name) ? null : var.type;
+            bind(scope, var.name, new Binding(type, var.initializer != null, null));
+        } else if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            List<VarType> params = new ArrayList<>();
+            for (Stmt.Parameter param : function.params) {
+                params.add(param.type());
+            }
+            bind(scope, function.name, new Binding(null, true,
+                    new Signature(params, function.returnType, function)));
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            declareAll(scope, ifStmt.thenBranch);
+            if (ifStmt.elseBranch != null) {
+                declareAll(scope, ifStmt.elseBranch);
+            }
+        } else if (stmt instanceof Stmt.While) {
+            declareAll(scope, ((Stmt.While) stmt).body);
+        }
+    }
+
+    // Every binding a reference may see at run time: the innermost declaring frame
+    // and, since that declaration may not have run yet, all enclosing ones
+    private List<Binding> candidates(String name) {
+        List<Binding> found = new ArrayList<>();
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            List<Binding> bindings = scopes.get(i).get(name);
+            if (bindings != null) {
+                found.addAll(bindings);
+            }
+        }
+        return found;
+    }
+
+    // Type of a variable, or null unless every candidate is an initialized
+    // variable of the same type
+    private VarType variableType(String name) {
+        List<Binding> bindings = candidates(name);
+        VarType type = null;
+        for (Binding binding : bindings) {
+            if (binding.signature() != null || !binding.initialized() || binding.type() == null) {
+                return null;
+            }
+            if (type != null && type != binding.type()) {
+                return null;
+            }
+            type = binding.type();
+        }
+        return type;
+    }
+
+    // Shared signature of every candidate, or null if they are not all callable
+    // with the same parameter types. The result type is only kept when every
+    // candidate is known to return it.
+    private Signature signature(String name) {
+        List<Binding> bindings = candidates(name);
+        if (bindings.isEmpty()) {
+            return null;
+        }
+
+        List<VarType> params = null;
+        VarType result = null;
+        boolean known = true;
+        for (Binding binding : bindings) {
+            Signature next = binding.signature();
+            if (next == null || (params != null && !params.equals(next.params()))) {
+                return null;
+            }
+            if (params == null) {
+                params = next.params();
+                result = next.result();
+            }
+            boolean returnsResult = next.function() == null || !unproven.contains(next.function());
+            if (next.result() != result || !returnsResult) {
+                known = false;
+            }
+        }
+        return new Signature(params, known ? result : null, null);
+    }
+
+    private void unprove(Stmt.Function function) {
+        if (unproven.add(function)) {
+            changed = true;
+        }
+    }
+
+    private void mistype(String name) {
+        if (mistyped.add(name)) {
+            changed = true;
+        }
+        complete = false;
+    }
+
+    // Type of an expression whose value is used
+    private VarType value(Expr expr) {
+        VarType type = expr.accept(this);
+        if (type == null) {
+            complete = false;
+        }
+        return type;
+    }
+
+    private void expect(Expr expr, VarType expected) {
+        VarType type = value(expr);
+        if (type != null && type != expected) {
+            mismatch();
+        }
+    }
+
+    // Checks code that may not run; afterwards nothing is certain any more
+    private void uncertain(Stmt stmt) {
+        certain = false;
+        stmt.accept(this);
+        certain = false;
+    }
+
+    // Both operands are evaluated before the operator checks them
+    private void operands(Expr.Binary expr, VarType expected) {
+        VarType lhs = value(expr.left);
+        VarType rhs = value(expr.right);
+        if ((lhs != null && lhs != expected) || (rhs != null && rhs != expected)) {
+            mismatch();
+        }
+    }
+
+    // Whether a lookup of the name certainly finds a function
+    private boolean callable(String name) {
+        if (!defined.contains(name)) {
+            return false;
+        }
+        for (Binding binding : candidates(name)) {
+            if (binding.signature() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether evaluating the expression certainly raises no error
+    private boolean safe(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        }
+        if (expr instanceof Expr.Variable) {
+            String name = ((Expr.Variable) expr).name;
+            return defined.contains(name) && variableType(name) != null;
+        }
+        return false;
+    }
+
+    static boolean returns(List<Stmt> stmts) {
+        for (Stmt stmt : stmts) {
+            if (returns(stmt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean returns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) {
+            return true;
+        }
+        if (stmt instanceof Stmt.Block) {
+            return returns(((Stmt.Block) stmt).statements);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return ifStmt.elseBranch != null && returns(ifStmt.thenBranch) && returns(ifStmt.elseBranch);
+        }
+        return false;
+    }
+
+    private boolean userCall(String name) {
+        for (Binding binding : candidates(name)) {
+            if (binding.signature() == null || binding.signature().function() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        Map<String, List<Binding>> scope = beginScope();
+        Set<String> outside = new HashSet<>(defined);
+        declareAll(scope, stmt.statements);
+        for (Stmt s : stmt.statements) {
+            s.accept(this);
+        }
+        endScope();
+        defined = outside;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        // The value is discarded, so it may be untyped (e.g. output(x);)
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        Map<String, List<Binding>> scope = beginScope();
+        for (Stmt.Parameter param : stmt.params) {
+            VarType type = mistyped.contains(param.name()) ? null : param.type();
+            bind(scope, param.name(), new Binding(type, true, null));
+        }
+        declareAll(scope, stmt.body);
+
+        // Declaring a function evaluates nothing; its body is only certain when
+        // it is main's, checked again from pass()
+        boolean outer = certain;
+        Set<String> outside = defined;
+        if (outer) {
+            defined.add(stmt.name);
+        }
+        certain = stmt == certainBody;
+        defined = new HashSet<>(outside);
+        functions.add(stmt);
+        for (Stmt s : stmt.body) {
+            s.accept(this);
+        }
+        functions.remove(functions.size() - 1);
+        endScope();
+        certain = outer;
+        defined = outside;
+
+        // Falling off the end returns nothing
+        if (!returns(stmt.body)) {
+            unprove(stmt);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        expect(stmt.condition, VarType.BOOL);
+        uncertain(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            uncertain(stmt.elseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        VarType type = value(stmt.value);
+        certain = false;
+        if (functions.isEmpty()) {
+            return null;
+        }
+
+        // Returning the wrong type is no error itself, only where the result is used
+        Stmt.Function function = functions.get(functions.size() - 1);
+        if (type == null || type != function.returnType) {
+            unprove(function);
+        }
+        return null;
+    }
+
+    // Storing the wrong type is no error either: the variable just isn't typed
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            VarType type = value(stmt.initializer);
+            if (type != null && type != stmt.type) {
+                mistype(stmt.name);
+            }
+        }
+        if (certain) {
+            defined.add(stmt.name);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssignStmt(Stmt.Assign stmt) {
+        VarType type = variableType(stmt.name);
+        if (type != null) {
+            VarType value = value(stmt.value);
+            if (value != null && value != type) {
+                mistype(stmt.name);
+            }
+        } else {
+            // Could overwrite anything, so nothing bound to this name stays typed
+            value(stmt.value);
+            complete = false;
+        }
+        if (!defined.contains(stmt.name)) {
+            certain = false;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        expect(stmt.condition, VarType.BOOL);
+        uncertain(stmt.body);
+        return null;
+    }
+
+    @Override
+    public VarType visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.operator) {
+          case PLUS: case MINUS: case MULTIPLY:
+            operands(expr, VarType.INT);
+            return VarType.INT;
+
+          case DIVIDE: case MODULO:
+            operands(expr, VarType.INT);
+            // Raises an arithmetic error unless the divisor is a non-zero literal
+            if (!(expr.right instanceof Expr.Literal
+                    && ((Expr.Literal) expr.right).value instanceof Integer
+                    && (Integer) ((Expr.Literal) expr.right).value != 0)) {
+              certain = false;
+            }
+            return VarType.INT;
+
+          case LESS: case LESS_EQUAL: case GREATER: case GREATER_EQUAL:
+            operands(expr, VarType.INT);
+            return VarType.BOOL;
+
+          case AND: case OR: {
+            // The left operand is checked before the right one, which may be skipped
+            expect(expr.left, VarType.BOOL);
+            boolean left = certain;
+            certain = false;
+            VarType rhs = value(expr.right);
+            if (rhs != null && rhs != VarType.BOOL) {
+              mismatch();
+            }
+            certain = left && rhs == VarType.BOOL && safe(expr.right);
+            return VarType.BOOL;
+          }
+
+          case EQUAL: case NOT_EQUAL:
+            VarType lhs = value(expr.left);
+            VarType rhs = value(expr.right);
+            if (lhs != null && rhs != null && lhs != rhs) {
+              mismatch();
+            }
+            return VarType.BOOL;
+
+          default:
+            mismatch();
+            return null;
+        }
+    }
+
+    @Override
+    public VarType visitLiteralExpr(Expr.Literal expr) {
+        return expr.type;
+    }
+
+    @Override
+    public VarType visitUnaryExpr(Expr.Unary expr) {
+        switch (expr.operator) {
+          case MINUS:
+            expect(expr.right, VarType.INT);
+            return VarType.INT;
+
+          case NOT:
+            expect(expr.right, VarType.BOOL);
+            return VarType.BOOL;
+
+          default:
+            mismatch();
+            return null;
+        }
+    }
+
+    @Override
+    public VarType visitVariableExpr(Expr.Variable expr) {
+        VarType type = variableType(expr.name);
+        if (type != null) {
+            annotations.put(expr, type);
+        }
+        if (!defined.contains(expr.name)) {
+            certain = false;
+        }
+        return type;
+    }
+
+    @Override
+    public VarType visitCallExpr(Expr.Call expr) {
+        // The callee is looked up before the arguments are evaluated
+        if (!callable(expr.name)) {
+            certain = false;
+        }
+        Signature signature = signature(expr.name);
+        if (signature == null) {
+            for (Expr arg : expr.arguments) {
+                value(arg);
+            }
+            certain = false;
+            return null;
+        }
+
+        // All arguments are evaluated before the count and types are checked.
+        // Only the built-ins check their argument types; a user function's
+        // parameter just isn't typed when passed something else.
+        List<VarType> types = new ArrayList<>();
+        for (Expr arg : expr.arguments) {
+            types.add(value(arg));
+        }
+        boolean mismatched = expr.arguments.size() != signature.params().size();
+        for (int i = 0; i < types.size() && i < signature.params().size(); i++) {
+            VarType type = types.get(i);
+            if (type == null || type == signature.params().get(i)) {
+                continue;
+            }
+            for (Binding binding : candidates(expr.name)) {
+                Stmt.Function function = binding.signature().function();
+                if (function == null) {
+                    mismatched = true;
+                } else {
+                    mistype(function.params.get(i).name());
+                }
+            }
+        }
+        if (mismatched) {
+            mismatch();
+        }
+        // A user function may raise anything, and input() may find no number
+        if (userCall(expr.name) || expr.name.equals("input")) {
+            certain = false;
+        }
+
+        VarType type = signature.result();
+        if (type != null) {
+            annotations.put(expr, type);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,566 @@
+package madlang;
+
+import java.util.Arrays;
+
+import static madlang.Bytecode.*;
+
+// Dispatch-loop virtual machine for code from the BytecodeCompiler.
+// Values live in one stack of primitive slots: prims holds the int/bool payload
+// and refs tags it (INT, BOOL, UNSET for a local not declared yet, or the object
+// itself). Madlang calls push frames on an explicit call stack instead of
+// recursing through Java, so a call costs no Java stack frame and recursion is
+// only limited by the heap. Calls in tail position reuse the caller's frame.
+class VM {
+
+    private static final Object INT = new Object();
+    private static final Object BOOL = new Object();
+    private static final Object UNSET = new Object();
+
+    private final Environment global;
+
+    private Object[] refs = new Object[256];
+    private int[] prims = new int[256];
+    private int sp;
+
+    // Call stack: one entry per active madlang call
+    private Proto[] frameProto = new Proto[64];
+    private int[] framePc = new int[64];
+    private int[] frameBase = new int[64];
+    private int[] frameReturn = new int[64];
+    private Environment[] frameEnv = new Environment[64];
+    private int fp = -1;
+
+    // A madlang function created by FUNCTION, closing over its defining frame
+    final class Function implements Interpreter.MadlangCallable {
+        final Proto proto;
+        final Environment closure;
+
+        Function(Proto proto, Environment closure) {
+            this.proto = proto;
+            this.closure = closure;
+        }
+
+        @Override
+        public Object call(Object[] args) {
+            return invoke(this, args);
+        }
+    }
+
+    VM(Environment global) {
+        this.global = global;
+    }
+
+    // Run the top-level script, then main
+    void run(Proto script) {
+        int entry = fp;
+        pushFrame(script, 0, sp, sp, global);
+        execute(entry);
+
+        Object mainProgram = global.get("main");
+
+        if (!(mainProgram instanceof Interpreter.MadlangCallable)) {
+            throw new MadlangError("Error: unbound reference");
+        }
+
+        ((Interpreter.MadlangCallable) mainProgram).call0();
+    }
+
+    // Call a VM function from outside the dispatch loop
+    Object invoke(Function function, Object[] args) {
+        int entry = fp;
+        int calleePos = sp;
+        push(function);
+        for (Object arg : args) {
+            push(arg);
+        }
+        enter(function, calleePos, args.length);
+        return execute(entry);
+    }
+
+    private static MadlangError typeMismatch() {
+        return new MadlangError("Error: type mismatch");
+    }
+
+    private static MadlangError arithmeticError() {
+        return new MadlangError("Error: arithmetic error");
+    }
+
+    // ---- Value stack ----
+
+    private void ensure(int size) {
+        if (size > refs.length) {
+            int capacity = Math.max(size, refs.length * 2);
+            refs = Arrays.copyOf(refs, capacity);
+            prims = Arrays.copyOf(prims, capacity);
+        }
+    }
+
+    private void push(Object value) {
+        ensure(sp + 1);
+        set(sp++, value);
+    }
+
+    private void set(int i, Object value) {
+        if (value instanceof Integer) {
+            refs[i] = INT;
+            prims[i] = (Integer) value;
+        } else if (value instanceof Boolean) {
+            refs[i] = BOOL;
+            prims[i] = (Boolean) value ? 1 : 0;
+        } else {
+            refs[i] = value;
+        }
+    }
+
+    private Object box(int i) {
+        Object ref = refs[i];
+        if (ref == INT) {
+            return prims[i];
+        }
+        if (ref == BOOL) {
+            return prims[i] != 0;
+        }
+        return ref;
+    }
+
+    // Push an Environment slot without boxing ints and bools
+    private void pushFrom(Environment env, int slot) {
+        if (env.holdsInt(slot)) {
+            refs[sp] = INT;
+            prims[sp++] = env.intAt(slot);
+        } else if (env.holdsBool(slot)) {
+            refs[sp] = BOOL;
+            prims[sp++] = env.boolAt(slot) ? 1 : 0;
+        } else {
+            refs[sp++] = env.getAt(0, slot, null);
+        }
+    }
+
+    // ---- Call stack ----
+
+    private void pushFrame(Proto proto, int pc, int base, int returnTo, Environment env) {
+        fp++;
+        if (fp == frameProto.length) {
+            int capacity = fp * 2;
+            frameProto = Arrays.copyOf(frameProto, capacity);
+            framePc = Arrays.copyOf(framePc, capacity);
+            frameBase = Arrays.copyOf(frameBase, capacity);
+            frameReturn = Arrays.copyOf(frameReturn, capacity);
+            frameEnv = Arrays.copyOf(frameEnv, capacity);
+        }
+        frameProto[fp] = proto;
+        framePc[fp] = pc;
+        frameBase[fp] = base;
+        frameReturn[fp] = returnTo;
+        frameEnv[fp] = env;
+        ensure(base + proto.frameSize + proto.maxStack + 1);
+    }
+
+    // Set up the callee's frame. Its arguments sit above it at calleePos.
+    private void enter(Function function, int calleePos, int argc) {
+        Proto proto = function.proto;
+        if (argc != proto.params.length) {
+            throw typeMismatch();
+        }
+
+        int args = calleePos + 1;
+        if (proto.stackFrame) {
+            int base = sp;
+            pushFrame(proto, 0, base, calleePos, function.closure);
+            Arrays.fill(refs, base, base + proto.frameSize, UNSET);
+            for (int i = 0; i < argc; i++) {
+                refs[base + proto.paramSlots[i]] = refs[args + i];
+                prims[base + proto.paramSlots[i]] = prims[args + i];
+            }
+            sp = base + proto.frameSize;
+        } else {
+            Environment env = new Environment(function.closure, proto.frameSize);
+            for (int i = 0; i < argc; i++) {
+                env.define(proto.paramSlots[i], proto.params[i], box(args + i));
+            }
+            pushFrame(proto, 0, sp, calleePos, env);
+        }
+    }
+
+    // ---- Dispatch loop ----
+
+    // Runs until the frame above `entry` returns, and returns its value
+    private Object execute(int entry) {
+        Proto proto = frameProto[fp];
+        int[] code = proto.code;
+        int pc = framePc[fp];
+        int base = frameBase[fp];
+        Environment env = frameEnv[fp];
+        Object[] refs = this.refs;
+        int[] prims = this.prims;
+        int sp = this.sp;
+
+        while (true) {
+            switch (code[pc++]) {
+              case CONST_INT:
+                refs[sp] = INT;
+                prims[sp++] = code[pc++];
+                break;
+
+              case CONST_BOOL:
+                refs[sp] = BOOL;
+                prims[sp++] = code[pc++];
+                break;
+
+              case CONST:
+                refs[sp++] = proto.constants[code[pc++]];
+                break;
+
+              case POP:
+                sp--;
+                break;
+
+              case LOAD_LOCAL: {
+                int slot = base + code[pc++];
+                int fallback = code[pc++];
+                int name = code[pc++];
+                if (refs[slot] == UNSET) {
+                  slot = declaredFallback(base, proto.fallbacks[fallback]);
+                  if (slot < 0) {
+                    this.sp = sp;
+                    set(sp++, env.get(proto.names[name]));
+                    break;
+                  }
+                }
+                refs[sp] = refs[slot];
+                prims[sp++] = prims[slot];
+                break;
+              }
+
+              case STORE_LOCAL: {
+                int slot = base + code[pc++];
+                int fallback = code[pc++];
+                int name = code[pc++];
+                sp--;
+                if (refs[slot] == UNSET) {
+                  slot = declaredFallback(base, proto.fallbacks[fallback]);
+                  if (slot < 0) {
+                    env.assign(proto.names[name], box(sp));
+                    break;
+                  }
+                }
+                refs[slot] = refs[sp];
+                prims[slot] = prims[sp];
+                break;
+              }
+
+              case DECLARE_LOCAL: {
+                int slot = base + code[pc++];
+                sp--;
+                refs[slot] = refs[sp];
+                prims[slot] = prims[sp];
+                break;
+              }
+
+              case CLEAR_LOCALS: {
+                int from = base + code[pc++];
+                Arrays.fill(refs, from, from + code[pc++], UNSET);
+                break;
+              }
+
+              case LOAD_ENV: {
+                int depth = code[pc++];
+                int slot = code[pc++];
+                String name = proto.names[code[pc++]];
+                Environment frame = env.ancestor(depth);
+                this.sp = sp;
+                if (frame.isDeclared(slot)) {
+                  pushFrom(frame, slot);
+                } else {
+                  push(env.getAt(depth, slot, name));
+                }
+                sp = this.sp;
+                break;
+              }
+
+              case STORE_ENV: {
+                int depth = code[pc++];
+                int slot = code[pc++];
+                String name = proto.names[code[pc++]];
+                sp--;
+                if (refs[sp] == INT) {
+                  env.assignIntAt(depth, slot, name, prims[sp]);
+                } else if (refs[sp] == BOOL) {
+                  env.assignBoolAt(depth, slot, name, prims[sp] != 0);
+                } else {
+                  env.assignAt(depth, slot, name, refs[sp]);
+                }
+                break;
+              }
+
+              case DEFINE_ENV: {
+                int slot = code[pc++];
+                String name = proto.names[code[pc++]];
+                sp--;
+                if (refs[sp] == INT) {
+                  env.defineInt(slot, name, prims[sp]);
+                } else if (refs[sp] == BOOL) {
+                  env.defineBool(slot, name, prims[sp] != 0);
+                } else {
+                  env.define(slot, name, refs[sp]);
+                }
+                break;
+              }
+
+              case LOAD_NAME:
+                set(sp++, env.get(proto.names[code[pc++]]));
+                break;
+
+              case STORE_NAME:
+                sp--;
+                env.assign(proto.names[code[pc++]], box(sp));
+                break;
+
+              case PUSH_ENV:
+                env = new Environment(env, code[pc++]);
+                break;
+
+              case POP_ENV:
+                env = env.parent;
+                break;
+
+              case FUNCTION: {
+                Proto function = (Proto) proto.constants[code[pc++]];
+                int slot = code[pc++];
+                String name = proto.names[code[pc++]];
+                env.define(slot, name, new Function(function, env));
+                break;
+              }
+
+              case ADD:
+                sp--;
+                requireInts(sp - 1, sp);
+                prims[sp - 1] += prims[sp];
+                break;
+
+              case SUBTRACT:
+                sp--;
+                requireInts(sp - 1, sp);
+                prims[sp - 1] -= prims[sp];
+                break;
+
+              case MULTIPLY:
+                sp--;
+                requireInts(sp - 1, sp);
+                prims[sp - 1] *= prims[sp];
+                break;
+
+              case DIVIDE:
+                sp--;
+                requireInts(sp - 1, sp);
+                if (prims[sp] == 0) {
+                  throw arithmeticError();
+                }
+                prims[sp - 1] /= prims[sp];
+                break;
+
+              case MODULO:
+                sp--;
+                requireInts(sp - 1, sp);
+                if (prims[sp] == 0) {
+                  throw arithmeticError();
+                }
+                prims[sp - 1] %= prims[sp];
+                break;
+
+              case LESS:
+                sp--;
+                requireInts(sp - 1, sp);
+                refs[sp - 1] = BOOL;
+                prims[sp - 1] = prims[sp - 1] < prims[sp] ? 1 : 0;
+                break;
+
+              case LESS_EQUAL:
+                sp--;
+                requireInts(sp - 1, sp);
+                refs[sp - 1] = BOOL;
+                prims[sp - 1] = prims[sp - 1] <= prims[sp] ? 1 : 0;
+                break;
+
+              case GREATER:
+                sp--;
+                requireInts(sp - 1, sp);
+                refs[sp - 1] = BOOL;
+                prims[sp - 1] = prims[sp - 1] > prims[sp] ? 1 : 0;
+                break;
+
+              case GREATER_EQUAL:
+                sp--;
+                requireInts(sp - 1, sp);
+                refs[sp - 1] = BOOL;
+                prims[sp - 1] = prims[sp - 1] >= prims[sp] ? 1 : 0;
+                break;
+
+              case EQUAL:
+              case NOT_EQUAL: {
+                boolean negate = code[pc - 1] == NOT_EQUAL;
+                sp--;
+                Object type = refs[sp];
+                if (refs[sp - 1] != type || (type != INT && type != BOOL)) {
+                  throw typeMismatch();
+                }
+                refs[sp - 1] = BOOL;
+                prims[sp - 1] = (prims[sp - 1] == prims[sp]) != negate ? 1 : 0;
+                break;
+              }
+
+              case NEGATE:
+                if (refs[sp - 1] != INT) {
+                  throw typeMismatch();
+                }
+                prims[sp - 1] = -prims[sp - 1];
+                break;
+
+              case NOT:
+                if (refs[sp - 1] != BOOL) {
+                  throw typeMismatch();
+                }
+                prims[sp - 1] ^= 1;
+                break;
+
+              case REQUIRE_BOOL:
+                if (refs[sp - 1] != BOOL) {
+                  throw typeMismatch();
+                }
+                break;
+
+              case MISMATCH:
+                throw typeMismatch();
+
+              case JUMP:
+                pc = code[pc];
+                break;
+
+              case JUMP_IF_FALSE:
+                sp--;
+                if (refs[sp] != BOOL) {
+                  throw typeMismatch();
+                }
+                pc = prims[sp] == 0 ? code[pc] : pc + 1;
+                break;
+
+              case JUMP_IF_TRUE:
+                sp--;
+                if (refs[sp] != BOOL) {
+                  throw typeMismatch();
+                }
+                pc = prims[sp] != 0 ? code[pc] : pc + 1;
+                break;
+
+              case CHECK_CALLABLE:
+                if (!(refs[sp - 1] instanceof Interpreter.MadlangCallable)) {
+                  throw new MadlangError("Error: unbound reference");
+                }
+                break;
+
+              case CALL:
+              case TAIL_CALL: {
+                int argc = code[pc++];
+                int calleePos = sp - argc - 1;
+                Object callee = refs[calleePos];
+                this.sp = sp;
+
+                if (callee instanceof Function) {
+                  if (code[pc - 2] == TAIL_CALL) {
+                    // Reuse the current frame: slide callee and arguments down to
+                    // where this frame's result goes and drop the frame
+                    int returnTo = frameReturn[fp];
+                    System.arraycopy(refs, calleePos, refs, returnTo, argc + 1);
+                    System.arraycopy(prims, calleePos, prims, returnTo, argc + 1);
+                    this.sp = returnTo + argc + 1;
+                    calleePos = returnTo;
+                    frameProto[fp] = null;
+                    frameEnv[fp] = null;
+                    fp--;
+                  } else {
+                    framePc[fp] = pc;
+                    frameEnv[fp] = env;
+                  }
+                  enter((Function) callee, calleePos, argc);
+                  proto = frameProto[fp];
+                  code = proto.code;
+                  pc = 0;
+                  base = frameBase[fp];
+                  env = frameEnv[fp];
+                  refs = this.refs;
+                  prims = this.prims;
+                  sp = this.sp;
+                  break;
+                }
+
+                // Built-ins and foreign callables take boxed arguments
+                Interpreter.MadlangCallable function = (Interpreter.MadlangCallable) callee;
+                Object result;
+                if (argc == 0) {
+                  result = function.call0();
+                } else if (argc == 1) {
+                  result = function.call1(box(calleePos + 1));
+                } else if (argc == 2) {
+                  result = function.call2(box(calleePos + 1), box(calleePos + 2));
+                } else {
+                  Object[] arguments = new Object[argc];
+                  for (int i = 0; i < argc; i++) {
+                    arguments[i] = box(calleePos + 1 + i);
+                  }
+                  result = function.call(arguments);
+                }
+                refs = this.refs;
+                prims = this.prims;
+                this.sp = calleePos;
+                push(result);
+                sp = this.sp;
+                break;
+              }
+
+              case RETURN: {
+                int result = sp - 1;
+                int returnTo = frameReturn[fp];
+                frameProto[fp] = null;
+                frameEnv[fp] = null;
+                fp--;
+                if (fp == entry) {
+                  this.sp = returnTo;
+                  return box(result);
+                }
+                refs[returnTo] = refs[result];
+                prims[returnTo] = prims[result];
+                sp = returnTo + 1;
+
+                proto = frameProto[fp];
+                code = proto.code;
+                pc = framePc[fp];
+                base = frameBase[fp];
+                env = frameEnv[fp];
+                break;
+              }
+
+              case UNEXPECTED_RETURN:
+                throw new MadlangError("Error: unexpected return");
+
+              default:
+                throw new IllegalStateException("bad opcode " + code[pc - 1]);
+            }
+        }
+    }
+
+    // First declared slot among the fallbacks, or -1 to continue in the Environment
+    private int declaredFallback(int base, int[] fallbacks) {
+        for (int offset : fallbacks) {
+            if (refs[base + offset] != UNSET) {
+                return base + offset;
+            }
+        }
+        return -1;
+    }
+
+    private void requireInts(int lhs, int rhs) {
+        if (refs[lhs] != INT || refs[rhs] != INT) {
+            throw typeMismatch();
+        }
+    }
+}